@@ -0,0 +1,342 @@
+// Benchmarks JMH dos caminhos quentes da biblioteca.
+// As classes de opp.java estão no pacote padrão, então este arquivo também.
+// opp.java não compila direto (ver benchmarks/compilar.sh, que gera uma cópia
+// compilável); compilação e execução, na raiz do repositório, com JMH 1.37:
+//   JMH_CP=jmh-core.jar:jmh-generator-annprocess.jar:jopt-simple.jar:commons-math3.jar \
+//       sh benchmarks/compilar.sh
+//   java -cp build/benchmarks/classes:$JMH_CP BibliotecaBenchmarks
+// Sem argumentos roda tudo com o profiler de GC (alocação por operação);
+// argumentos são repassados ao JMH, ex.: "Busca -p tamanhoCatalogo=1000"
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BibliotecaBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        org.openjdk.jmh.runner.options.Options opcoes = new org.openjdk.jmh.runner.options.OptionsBuilder()
+            .include(BibliotecaBenchmarks.class.getSimpleName())
+            .addProfiler(org.openjdk.jmh.profile.GCProfiler.class)
+            .build();
+        new org.openjdk.jmh.runner.Runner(opcoes).run();
+    }
+
+    // Distribuição de Zipf sobre [0, n): a posição 0 é a mais popular.
+    // A sequência é pré-sorteada para não medir o gerador
+    static final class Zipf {
+        private static final int TAMANHO_SEQUENCIA = 1 << 16;
+        private final int[] sequencia = new int[TAMANHO_SEQUENCIA];
+        private int posicao;
+
+        Zipf(int n, double expoente, long semente) {
+            double[] acumulada = new double[n];
+            double soma = 0;
+            for (int i = 0; i < n; i++) {
+                soma += 1.0 / Math.pow(i + 1, expoente);
+                acumulada[i] = soma;
+            }
+            java.util.Random aleatorio = new java.util.Random(semente);
+            for (int i = 0; i < TAMANHO_SEQUENCIA; i++) {
+                int indice = java.util.Arrays.binarySearch(acumulada, aleatorio.nextDouble() * soma);
+                sequencia[i] = Math.min(indice < 0 ? -indice - 1 : indice, n - 1);
+            }
+        }
+
+        int proximo() {
+            return sequencia[posicao++ & (TAMANHO_SEQUENCIA - 1)];
+        }
+    }
+
+    static final int LICENCAS_POR_DIGITAL = 8;
+
+    static Livro[] criarCatalogo(int tamanho) {
+        Livro[] livros = new Livro[tamanho];
+        for (int i = 0; i < tamanho; i++) {
+            livros[i] = i % 4 == 0
+                ? new LivroDigital("Volume " + i + " de Algoritmos", "Autor " + (i % 97),
+                                   "978-0-" + i, "Categoria " + (i % 13), "/livros/" + i + ".pdf", LICENCAS_POR_DIGITAL)
+                : new LivroFisico("Volume " + i + " de Sistemas", "Autor " + (i % 97),
+                                  "978-1-" + i, "Categoria " + (i % 13), "Estante " + (i % 50));
+        }
+        return livros;
+    }
+
+    // Silencia os println do sistema, que dominariam as medições
+    static void silenciarSaida() {
+        System.setOut(new java.io.PrintStream(java.io.OutputStream.nullOutputStream()));
+    }
+
+    @State(Scope.Thread)
+    public static class EstadoSistema {
+        @Param({"1000", "100000"})
+        public int tamanhoCatalogo;
+
+        @Param({"0.99", "1.2"})
+        public double expoenteZipf;
+
+        SistemaBiblioteca sistema;
+        Livro[] livros;
+        long[] usuarios;
+        Zipf consultas;
+        int contador;
+
+        // Reconstruído por iteração: as reservas finalizadas continuam no armazém
+        @Setup(Level.Iteration)
+        public void preparar() {
+            silenciarSaida();
+            // O KDF das senhas não é medido aqui; custo baixo só acelera o setup
+            HashSenha.configurarIteracoes(1_000);
+            sistema = new SistemaBiblioteca();
+            livros = criarCatalogo(tamanhoCatalogo);
+            for (Livro livro : livros) {
+                sistema.adicionarLivro(livro);
+            }
+            // Administradores não têm limite de reservas
+            usuarios = new long[64];
+            for (int i = 0; i < usuarios.length; i++) {
+                Usuario usuario = new Administrador("Admin " + i, "admin" + i + "@bench", "senha");
+                sistema.adicionarUsuario(usuario);
+                usuarios[i] = usuario.getId();
+            }
+            consultas = new Zipf(tamanhoCatalogo, expoenteZipf, 42);
+            aposPreparar();
+        }
+
+        // Encerra as threads de fundo (notificações, log, autenticação)
+        @TearDown(Level.Iteration)
+        public void encerrar() throws java.io.IOException {
+            antesDeEncerrar();
+            sistema.fechar();
+        }
+
+        // Ganchos para os estados derivados, que dependem do sistema montado
+        void aposPreparar() {
+        }
+
+        void antesDeEncerrar() {
+        }
+    }
+
+    static final int CONSULTAS_QUENTES = 64;
+    static final int LIMITE_QUENTE = 10;
+
+    // Conjunto quente que cabe inteiro no cache de consultas: cada resultado
+    // guarda até LIMITE_QUENTE ids e 64 x 10 fica abaixo do peso máximo de
+    // 1000 ids, então o aquecimento deixa todas as consultas em cache
+    @State(Scope.Thread)
+    public static class EstadoBuscaQuente extends EstadoSistema {
+        String[] quentes;
+        long acertosAntes;
+        long falhasAntes;
+
+        @Override
+        void aposPreparar() {
+            quentes = new String[CONSULTAS_QUENTES];
+            for (int i = 0; i < quentes.length; i++) {
+                quentes[i] = livros[i].getTitulo();
+                sistema.buscarLivro(quentes[i], null, LIMITE_QUENTE);
+            }
+            acertosAntes = sistema.getAcertosCacheConsultas();
+            falhasAntes = sistema.getFalhasCacheConsultas();
+        }
+
+        // Sem 100% de acerto a medição não é de acerto de cache
+        @Override
+        void antesDeEncerrar() {
+            long acertos = sistema.getAcertosCacheConsultas() - acertosAntes;
+            long falhas = sistema.getFalhasCacheConsultas() - falhasAntes;
+            System.err.printf("📋 buscaCacheAcerto: %d acertos, %d falhas%n", acertos, falhas);
+            if (falhas > 0) {
+                throw new IllegalStateException("Conjunto quente não coube no cache: " + falhas + " falhas");
+            }
+        }
+    }
+
+    // Repete o conjunto quente aquecido no setup; o teardown confere os acertos
+    @Benchmark
+    public java.util.List<Livro> buscaCacheAcerto(EstadoBuscaQuente estado) {
+        String titulo = estado.quentes[estado.contador++ & (CONSULTAS_QUENTES - 1)];
+        return estado.sistema.buscarLivro(titulo, null, LIMITE_QUENTE);
+    }
+
+    // O limite faz parte da chave do cache; variá-lo força a ida ao índice
+    @Benchmark
+    public java.util.List<Livro> buscaCacheFalha(EstadoSistema estado) {
+        int limite = 20 + (estado.contador++ & 0xFFFF);
+        return estado.sistema.buscarLivro(estado.livros[estado.consultas.proximo()].getTitulo(), null, limite);
+    }
+
+    // Sorteio e liberação ficam fora da medição: o livro é devolvido depois de
+    // cada chamada, então toda reserva medida encontra exemplar livre
+    @State(Scope.Thread)
+    public static class EstadoReserva extends EstadoSistema {
+        long usuarioId;
+        long livroId;
+
+        @Setup(Level.Invocation)
+        public void sortear() {
+            usuarioId = usuarios[contador++ & (usuarios.length - 1)];
+            livroId = livros[consultas.proximo()].getId();
+        }
+
+        @TearDown(Level.Invocation)
+        public void liberar() {
+            for (Reserva reserva : sistema.obterReservasAtivasDoLivro(livroId)) {
+                sistema.finalizarReserva(reserva.getId());
+            }
+        }
+    }
+
+    // Caminho de sucesso de realizarReserva
+    @Benchmark
+    public boolean realizarReserva(EstadoReserva estado) {
+        return estado.sistema.realizarReserva(estado.usuarioId, estado.livroId);
+    }
+
+    @State(Scope.Thread)
+    public static class EstadoRepositorio {
+        @Param({"1000", "100000"})
+        public int tamanhoCatalogo;
+
+        // O mesmo repositório indexado que o SistemaBiblioteca usa para livros
+        RepositorioIndexado<Long, Livro> repositorio;
+        Zipf categorias;
+
+        @Setup(Level.Trial)
+        public void preparar() {
+            repositorio = new RepositorioIndexado<Long, Livro>(Livro::getId)
+                .declararIndice("categoria", Livro::getCategoria);
+            for (Livro livro : criarCatalogo(tamanhoCatalogo)) {
+                repositorio.adicionar(livro);
+            }
+            categorias = new Zipf(13, 1.0, 7);
+        }
+    }
+
+    // Consulta pelo índice secundário
+    @Benchmark
+    public java.util.List<Livro> repositorioBuscar(EstadoRepositorio estado) {
+        return estado.repositorio.buscarPorIndice("categoria", "Categoria " + estado.categorias.proximo());
+    }
+
+    // Varredura com predicado, para comparar com o índice
+    @Benchmark
+    public java.util.List<Livro> repositorioBuscarVarredura(EstadoRepositorio estado) {
+        String categoria = "Categoria " + estado.categorias.proximo();
+        return estado.repositorio.buscar(livro -> categoria.equals(livro.getCategoria()));
+    }
+
+    @Benchmark
+    public java.util.List<Livro> repositorioObterTodos(EstadoRepositorio estado) {
+        return estado.repositorio.obterTodos();
+    }
+
+    @State(Scope.Thread)
+    public static class EstadoCache {
+        @Param({"64", "4096"})
+        public int capacidade;
+
+        @Param({"0.99", "1.2"})
+        public double expoenteZipf;
+
+        Cache<Integer, String> cache;
+        String[] valores;
+        Zipf chaves;
+
+        // O universo de chaves é 8x a capacidade, então há despejo contínuo
+        @Setup(Level.Trial)
+        public void preparar() {
+            cache = new Cache<>(capacidade);
+            valores = new String[capacidade * 8];
+            for (int i = 0; i < valores.length; i++) {
+                valores[i] = "valor-" + i;
+            }
+            chaves = new Zipf(valores.length, expoenteZipf, 11);
+        }
+    }
+
+    // Padrão de uso do sistema: obtém e, na falha, armazena
+    @Benchmark
+    public String cacheObterOuArmazenar(EstadoCache estado) {
+        int chave = estado.chaves.proximo();
+        String valor = estado.cache.obter(chave);
+        if (valor == null) {
+            valor = estado.valores[chave];
+            estado.cache.armazenar(chave, valor);
+        }
+        return valor;
+    }
+
+    @State(Scope.Thread)
+    public static class EstadoEntidades {
+        UsuarioComum usuarioComum;
+        Administrador administrador;
+        LivroFisico livroFisico;
+        LivroDigital livroDigital;
+        Reserva reserva;
+
+        @Setup(Level.Trial)
+        public void preparar() {
+            usuarioComum = new UsuarioComum("João \"Leitor\" Silva", "joao@email.com", "123456");
+            administrador = new Administrador("Ana Admin", "ana@admin.com", "admin123");
+            livroFisico = new LivroFisico("Java: Como Programar", "Paul Deitel",
+                                          "978-85-7522-123-4", "Programação", "Estante A1");
+            livroDigital = new LivroDigital("Clean Code", "Robert Martin", "978-85-7522-456-7",
+                                            "Programação", "/livros/clean_code.pdf", 3);
+            reserva = new ReservaAvulsa(usuarioComum.getId(), livroFisico.getId());
+        }
+    }
+
+    @Benchmark
+    public void toJsonEntidades(EstadoEntidades estado, Blackhole buraco) {
+        buraco.consume(estado.usuarioComum.toJson());
+        buraco.consume(estado.administrador.toJson());
+        buraco.consume(estado.livroFisico.toJson());
+        buraco.consume(estado.livroDigital.toJson());
+        buraco.consume(estado.reserva.toJson());
+    }
+
+    @State(Scope.Thread)
+    public static class EstadoRelatorios {
+        @Param({"1000", "100000"})
+        public int tamanhoCatalogo;
+
+        // Como no sistema, os contadores são montados uma vez e os relatórios só os leem
+        EstatisticasBiblioteca estatisticasLivros;
+        EstatisticasBiblioteca estatisticasReservas;
+
+        @Setup(Level.Trial)
+        public void preparar() {
+            Livro[] livros = criarCatalogo(tamanhoCatalogo);
+            java.util.List<Reserva> reservas = new java.util.ArrayList<>(tamanhoCatalogo);
+            for (int i = 0; i < tamanhoCatalogo; i++) {
+                Reserva reserva = new ReservaAvulsa(i % 500, livros[i].getId());
+                if (i % 3 == 0) {
+                    reserva.setStatus("finalizada");
+                }
+                reservas.add(reserva);
+            }
+            estatisticasLivros = EstatisticasBiblioteca.deLivros(java.util.Arrays.asList(livros));
+            estatisticasReservas = EstatisticasBiblioteca.deReservas(reservas);
+        }
+    }
+
+    @Benchmark
+    public String relatorioUso(EstadoRelatorios estado) {
+        return new RelatorioUso(estado.estatisticasReservas).gerar();
+    }
+
+    @Benchmark
+    public String relatorioInventario(EstadoRelatorios estado) {
+        return new RelatorioInventario(estado.estatisticasLivros).gerar();
+    }
+}
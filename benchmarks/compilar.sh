@@ -0,0 +1,36 @@
+#!/bin/sh
+# Compila os benchmarks JMH contra uma cópia compilável de opp.java.
+# opp.java é um material didático de arquivo único e não compila como está:
+# traz uma versão antiga de SistemaBiblioteca (a primeira, antes do marcador
+# "CLASSE PRINCIPAL PARA EXECUÇÃO"), a classe pública BibliotecaDigitalDemo
+# num arquivo com outro nome e a última classe sem a chave de fechamento.
+# A cópia em $SAIDA/src corrige esses pontos sem alterar o original.
+#
+# Uso (na raiz do repositório, JMH 1.37):
+#   JMH_CP=jmh-core.jar:jmh-generator-annprocess.jar:jopt-simple.jar:commons-math3.jar \
+#       sh benchmarks/compilar.sh
+#   java -cp build/benchmarks/classes:$JMH_CP BibliotecaBenchmarks
+set -e
+
+SAIDA=${SAIDA:-build/benchmarks}
+if [ -z "$JMH_CP" ]; then
+    echo "❌ Defina JMH_CP com os jars do JMH (core, annprocess, jopt-simple, commons-math3)" >&2
+    exit 1
+fi
+
+rm -rf "$SAIDA"
+mkdir -p "$SAIDA/src" "$SAIDA/classes"
+
+awk '
+    /^\/\/ ================ CLASSE PRINCIPAL - SISTEMA/ && !visto { pulando = 1; visto = 1 }
+    /^\/\/ ================ CLASSE PRINCIPAL PARA EXECU/ { pulando = 0 }
+    pulando { next }
+    { print }
+    END { print "}" }
+' opp.java > "$SAIDA/src/BibliotecaDigitalDemo.java"
+
+# O processador de anotações do JMH é descoberto no classpath e gera os
+# benchmarks em $SAIDA/classes
+javac -encoding UTF-8 -cp "$JMH_CP" -d "$SAIDA/classes" \
+    "$SAIDA/src/BibliotecaDigitalDemo.java" benchmarks/BibliotecaBenchmarks.java
+echo "✅ Benchmarks compilados em $SAIDA/classes"
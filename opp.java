@@ -3,40 +3,68 @@
 // Interface Reservavel - define contrato para itens que podem ser reservados
 interface Reservavel {
     boolean podeSerReservado();
-    void reservar(int usuarioId);
+    void reservar(long usuarioId);
     void liberar();
     String getDetalhesReserva();
 }
 
 // Interface Persistivel - define contrato para persistência
 interface Persistivel {
-    String toJson();
     void fromJson(String json);
+    
+    // Escreve os campos em fluxo, sem Strings intermediárias
+    void escreverCamposJson(EscritorJson json);
+    
+    default void escreverJson(EscritorJson json) {
+        json.inicioObjeto();
+        escreverCamposJson(json);
+        json.fimObjeto();
+    }
+    
+    default String toJson() {
+        StringBuilder destino = new StringBuilder(128);
+        escreverJson(new EscritorJson(destino));
+        return destino.toString();
+    }
 }
 
 // Interface Notificavel - define contrato para notificações
 interface Notificavel {
     void receberNotificacao(String mensagem);
     boolean aceitaNotificacoes();
+    
+    // Entrega em lote (DespachanteNotificacoes); destinos lentos como e-mail
+    // ou filas podem sobrescrever para enviar tudo de uma vez
+    default void receberNotificacoes(java.util.List<String> mensagens) {
+        mensagens.forEach(this::receberNotificacao);
+    }
 }
 
 // ================ CLASSES ABSTRATAS ================
 
 // Classe abstrata Usuario - base para diferentes tipos de usuários
 abstract class Usuario implements Notificavel, Persistivel {
-    protected static int proximoId = 1; // Atributo de classe
+    protected static volatile GeradorIds sequenciaIds = ServicoIds.nova("usuario"); // Atributo de classe
     protected static final int MAX_RESERVAS = 3; // Constante final
     
-    protected int id;
+    protected long id;
     protected String nome;
     protected String email;
-    protected String senhaCriptografada;
+    protected volatile String senhaCriptografada;
     protected boolean ativo;
     protected boolean receberNotificacoes;
+    // Papel compartilhado (máscara compilada) mais permissões individuais
+    protected volatile Papel papel = Papel.LEITOR;
+    protected volatile long permissoesExtras;
     
     // Construtor sobrecarregado - básico
     public Usuario(String nome) {
-        this.id = proximoId++;
+        this(sequenciaIds.proximo(), nome);
+    }
+    
+    // Construtor sobrecarregado - restauração, com id já existente
+    protected Usuario(long id, String nome) {
+        this.id = id;
         this.nome = nome;
         this.ativo = true;
         this.receberNotificacoes = true;
@@ -49,9 +77,24 @@ abstract class Usuario implements Notificavel, Persistivel {
         this.senhaCriptografada = criptografarSenha(senha);
     }
     
-    // Método estático de classe
+    // Troca a sequência de ids (ex.: uma sequência com marca d'água persistida)
+    public static void configurarSequencia(GeradorIds sequencia) {
+        sequenciaIds = sequencia;
+    }
+    
+    public static void avancarSequenciaPara(long id) {
+        sequenciaIds.avancarPara(id);
+    }
+    
+    // Método estático de classe - hash com sal e custo (ver HashSenha)
     public static String criptografarSenha(String senha) {
-        return "hash_" + senha.hashCode();
+        return HashSenha.gerar(senha);
+    }
+    
+    // Senha de custo baixo (dados de demonstração): evita o KDF completo na
+    // inicialização e é regravada no custo atual no primeiro login
+    public void definirSenhaProvisoria(String senha) {
+        this.senhaCriptografada = HashSenha.gerar(senha, HashSenha.CUSTO_PROVISORIO);
     }
     
     // Métodos abstratos - devem ser implementados pelas subclasses
@@ -59,13 +102,26 @@ abstract class Usuario implements Notificavel, Persistivel {
     public abstract void processarLogin();
     public abstract String getTipo();
     
-    // Método concreto que pode ser sobrescrito
+    // Quantas reservas ainda cabem; usado na validação de lotes
+    public int getVagasReserva() {
+        return podeReservar() ? Integer.MAX_VALUE : 0;
+    }
+    
+    // Método concreto que pode ser sobrescrito. Usuário sem senha não
+    // autentica; hash legado ou de custo menor é regravado no custo atual
     public boolean autenticar(String senhaFornecida) {
-        return this.senhaCriptografada.equals(criptografarSenha(senhaFornecida));
+        String armazenado = this.senhaCriptografada;
+        if (!HashSenha.verificar(senhaFornecida, armazenado)) {
+            return false;
+        }
+        if (HashSenha.precisaAtualizar(armazenado)) {
+            this.senhaCriptografada = criptografarSenha(senhaFornecida);
+        }
+        return true;
     }
     
     // Encapsulamento - getters e setters
-    public int getId() { return id; }
+    public long getId() { return id; }
     public String getNome() { return nome; }
     public String getEmail() { return email; }
     public boolean isAtivo() { return ativo; }
@@ -74,6 +130,33 @@ abstract class Usuario implements Notificavel, Persistivel {
     public void setEmail(String email) { this.email = email; }
     public void setAtivo(boolean ativo) { this.ativo = ativo; }
     
+    public Papel getPapel() { return papel; }
+    public void setPapel(Papel papel) { this.papel = papel; }
+    
+    // Permissões além das do papel, sem criar um papel novo
+    public void concederPermissoes(long permissoes) {
+        permissoesExtras |= permissoes;
+    }
+    
+    public void revogarPermissoes(long permissoes) {
+        permissoesExtras &= ~permissoes;
+    }
+    
+    public long getMascaraPermissoes() {
+        return papel.getMascara() | permissoesExtras;
+    }
+    
+    // Checagem em lote: todas as permissões da máscara, com um único AND
+    public boolean temPermissoes(long permissoes) {
+        return (getMascaraPermissoes() & permissoes) == permissoes;
+    }
+    
+    // Consulta por nome não registra permissões: nome desconhecido é negado
+    public boolean temPermissao(String permissao) {
+        long bit = Permissoes.buscar(permissao);
+        return bit != 0 && temPermissoes(bit);
+    }
+    
     // Implementação da interface Notificavel
     @Override
     public void receberNotificacao(String mensagem) {
@@ -89,11 +172,44 @@ abstract class Usuario implements Notificavel, Persistivel {
     
     // Implementação básica da interface Persistivel
     @Override
-    public String toJson() {
-        return String.format(
-            "{\"id\":%d,\"nome\":\"%s\",\"email\":\"%s\",\"tipo\":\"%s\",\"ativo\":%b}",
-            id, nome, email != null ? email : "", getTipo(), ativo
-        );
+    public void escreverCamposJson(EscritorJson json) {
+        json.campo("id", id)
+            .campo("nome", nome)
+            .campo("email", email != null ? email : "")
+            .campo("tipo", getTipo())
+            .campo("ativo", ativo)
+            .campo("senhaHash", senhaCriptografada)
+            .campo("notificacoes", receberNotificacoes)
+            .campo("papel", papel.getNome())
+            .campo("permissoesExtras", String.join(",", Permissoes.nomes(permissoesExtras)));
+    }
+    
+    @Override
+    public void fromJson(String json) {
+        LeitorJson.lerCampos(json).forEach(this::aplicarCampoJson);
+    }
+    
+    // Aplica um campo lido; subclasses tratam seus campos e delegam o resto
+    protected void aplicarCampoJson(String campo, String valor) {
+        switch (campo) {
+            case "id": this.id = Long.parseLong(valor); break;
+            case "nome": this.nome = valor; break;
+            case "email": this.email = valor == null || valor.isEmpty() ? null : valor; break;
+            case "ativo": this.ativo = Boolean.parseBoolean(valor); break;
+            case "senhaHash": this.senhaCriptografada = valor; break;
+            case "notificacoes": this.receberNotificacoes = Boolean.parseBoolean(valor); break;
+            case "papel":
+                // Papel não definido nesta execução mantém o padrão do tipo
+                Papel restaurado = Papel.porNome(valor);
+                if (restaurado != null) {
+                    this.papel = restaurado;
+                }
+                break;
+            case "permissoesExtras":
+                this.permissoesExtras = valor == null || valor.isEmpty() ? 0 : Permissoes.mascara(valor.split(","));
+                break;
+            default: break; // "tipo" e campos desconhecidos são ignorados
+        }
     }
     
     @Override
@@ -105,20 +221,25 @@ abstract class Usuario implements Notificavel, Persistivel {
 
 // Classe abstrata Livro - base para diferentes tipos de livros
 abstract class Livro implements Reservavel, Persistivel {
-    protected static int proximoId = 1;
+    protected static volatile GeradorIds sequenciaIds = ServicoIds.nova("livro");
     
-    protected int id;
+    protected long id;
     protected String titulo;
     protected String autor;
     protected String isbn;
     protected String categoria;
     protected boolean disponivel;
-    protected int usuarioReservaId;
+    protected long usuarioReservaId;
     protected String dataReserva;
     
     // Construtor sobrecarregado - básico
     public Livro(String titulo, String autor) {
-        this.id = proximoId++;
+        this(sequenciaIds.proximo(), titulo, autor);
+    }
+    
+    // Construtor sobrecarregado - restauração, com id já existente
+    protected Livro(long id, String titulo, String autor) {
+        this.id = id;
         this.titulo = titulo;
         this.autor = autor;
         this.disponivel = true;
@@ -132,6 +253,14 @@ abstract class Livro implements Reservavel, Persistivel {
         this.categoria = categoria;
     }
     
+    public static void configurarSequencia(GeradorIds sequencia) {
+        sequenciaIds = sequencia;
+    }
+    
+    public static void avancarSequenciaPara(long id) {
+        sequenciaIds.avancarPara(id);
+    }
+    
     // Método estático para validar ISBN
     public static boolean validarISBN(String isbn) {
         return isbn != null && isbn.matches("\\d{3}-\\d{2}-\\d{4}-\\d{3}-\\d");
@@ -148,7 +277,7 @@ abstract class Livro implements Reservavel, Persistivel {
     }
     
     @Override
-    public void reservar(int usuarioId) {
+    public void reservar(long usuarioId) {
         if (podeSerReservado()) {
             this.disponivel = false;
             this.usuarioReservaId = usuarioId;
@@ -173,7 +302,7 @@ abstract class Livro implements Reservavel, Persistivel {
     }
     
     // Getters
-    public int getId() { return id; }
+    public long getId() { return id; }
     public String getTitulo() { return titulo; }
     public String getAutor() { return autor; }
     public String getIsbn() { return isbn; }
@@ -181,13 +310,36 @@ abstract class Livro implements Reservavel, Persistivel {
     public boolean isDisponivel() { return disponivel; }
     
     @Override
-    public String toJson() {
-        return String.format(
-            "{\"id\":%d,\"titulo\":\"%s\",\"autor\":\"%s\",\"isbn\":\"%s\"," +
-            "\"categoria\":\"%s\",\"disponivel\":%b,\"tipo\":\"%s\"}",
-            id, titulo, autor, isbn != null ? isbn : "", 
-            categoria != null ? categoria : "", disponivel, getTipoMidia()
-        );
+    public void escreverCamposJson(EscritorJson json) {
+        json.campo("id", id)
+            .campo("titulo", titulo)
+            .campo("autor", autor)
+            .campo("isbn", isbn != null ? isbn : "")
+            .campo("categoria", categoria != null ? categoria : "")
+            .campo("disponivel", disponivel)
+            .campo("tipo", getTipoMidia())
+            .campo("usuarioReservaId", usuarioReservaId)
+            .campo("dataReserva", dataReserva);
+    }
+    
+    @Override
+    public void fromJson(String json) {
+        LeitorJson.lerCampos(json).forEach(this::aplicarCampoJson);
+    }
+    
+    // Aplica um campo lido; subclasses tratam seus campos e delegam o resto
+    protected void aplicarCampoJson(String campo, String valor) {
+        switch (campo) {
+            case "id": this.id = Long.parseLong(valor); break;
+            case "titulo": this.titulo = valor; break;
+            case "autor": this.autor = valor; break;
+            case "isbn": this.isbn = valor == null || valor.isEmpty() ? null : valor; break;
+            case "categoria": this.categoria = valor == null || valor.isEmpty() ? null : valor; break;
+            case "disponivel": this.disponivel = Boolean.parseBoolean(valor); break;
+            case "usuarioReservaId": this.usuarioReservaId = Long.parseLong(valor); break;
+            case "dataReserva": this.dataReserva = valor; break;
+            default: break;
+        }
     }
     
     @Override
@@ -248,6 +400,12 @@ class UsuarioComum extends Usuario {
         this.quantidadeReservas = 0;
     }
     
+    // Construtor de restauração (ver RestauradorJson)
+    public UsuarioComum(long id, String nome) {
+        super(id, nome);
+        this.quantidadeReservas = 0;
+    }
+    
     // Sobrescrita de métodos abstratos
     @Override
     public boolean podeReservar() {
@@ -264,25 +422,49 @@ class UsuarioComum extends Usuario {
         return "UsuarioComum";
     }
     
+    @Override
+    public int getVagasReserva() {
+        return ativo ? Math.max(0, MAX_RESERVAS - quantidadeReservas) : 0;
+    }
+    
     public void incrementarReservas() { quantidadeReservas++; }
     public void decrementarReservas() { 
         if (quantidadeReservas > 0) quantidadeReservas--; 
     }
     public int getQuantidadeReservas() { return quantidadeReservas; }
+    
+    @Override
+    public void escreverCamposJson(EscritorJson json) {
+        super.escreverCamposJson(json);
+        json.campo("quantidadeReservas", quantidadeReservas);
+    }
+    
+    @Override
+    protected void aplicarCampoJson(String campo, String valor) {
+        if ("quantidadeReservas".equals(campo)) {
+            this.quantidadeReservas = Integer.parseInt(valor);
+        } else {
+            super.aplicarCampoJson(campo, valor);
+        }
+    }
 }
 
 // Herança - Administrador herda de Usuario
 class Administrador extends Usuario {
-    private String[] permissoes;
-    
     public Administrador(String nome) {
         super(nome);
-        this.permissoes = new String[]{"READ", "WRITE", "DELETE", "ADMIN"};
+        this.papel = Papel.ADMINISTRADOR;
     }
     
     public Administrador(String nome, String email, String senha) {
         super(nome, email, senha);
-        this.permissoes = new String[]{"READ", "WRITE", "DELETE", "ADMIN"};
+        this.papel = Papel.ADMINISTRADOR;
+    }
+    
+    // Construtor de restauração (ver RestauradorJson)
+    public Administrador(long id, String nome) {
+        super(id, nome);
+        this.papel = Papel.ADMINISTRADOR;
     }
     
     // Sobrescrita - comportamento específico para admin
@@ -310,13 +492,6 @@ class Administrador extends Usuario {
         }
         return autenticado;
     }
-    
-    public boolean temPermissao(String permissao) {
-        for (String p : permissoes) {
-            if (p.equals(permissao)) return true;
-        }
-        return false;
-    }
 }
 
 // Herança - LivroFisico herda de Livro
@@ -335,6 +510,12 @@ class LivroFisico extends Livro {
         this.estado = "novo";
     }
     
+    // Construtor de restauração (ver RestauradorJson)
+    public LivroFisico(long id, String titulo, String autor) {
+        super(id, titulo, autor);
+        this.estado = "novo";
+    }
+    
     @Override
     public String getTipoMidia() {
         return "LivroFisico";
@@ -348,6 +529,22 @@ class LivroFisico extends Livro {
     public String getLocalizacao() { return localizacao; }
     public String getEstado() { return estado; }
     public void setEstado(String estado) { this.estado = estado; }
+    
+    @Override
+    public void escreverCamposJson(EscritorJson json) {
+        super.escreverCamposJson(json);
+        json.campo("localizacao", localizacao)
+            .campo("estado", estado);
+    }
+    
+    @Override
+    protected void aplicarCampoJson(String campo, String valor) {
+        switch (campo) {
+            case "localizacao": this.localizacao = valor; break;
+            case "estado": this.estado = valor; break;
+            default: super.aplicarCampoJson(campo, valor);
+        }
+    }
 }
 
 // Herança - LivroDigital herda de Livro
@@ -355,12 +552,15 @@ class LivroDigital extends Livro {
     private String caminhoArquivo;
     private long tamanhoMB;
     private int licencasDisponiveis;
-    private int licencasEmUso;
+    // Empréstimos das licenças; recriado quando o total muda (restauração)
+    private volatile PoolLicencas licencas;
+    // Reserva -> vaga da licença emprestada; criado no primeiro empréstimo
+    private MapaLongInt vagasPorReserva;
     
     public LivroDigital(String titulo, String autor) {
         super(titulo, autor);
         this.licencasDisponiveis = 1;
-        this.licencasEmUso = 0;
+        this.licencas = new PoolLicencas(1);
     }
     
     public LivroDigital(String titulo, String autor, String isbn, String categoria, 
@@ -368,7 +568,14 @@ class LivroDigital extends Livro {
         super(titulo, autor, isbn, categoria);
         this.caminhoArquivo = caminhoArquivo;
         this.licencasDisponiveis = licencas;
-        this.licencasEmUso = 0;
+        this.licencas = new PoolLicencas(licencas);
+    }
+    
+    // Construtor de restauração (ver RestauradorJson)
+    public LivroDigital(long id, String titulo, String autor) {
+        super(id, titulo, autor);
+        this.licencasDisponiveis = 1;
+        this.licencas = new PoolLicencas(1);
     }
     
     @Override
@@ -379,104 +586,322 @@ class LivroDigital extends Livro {
     // Sobrescrita - considera licenças digitais
     @Override
     public boolean calcularDisponibilidade() {
-        return licencasEmUso < licencasDisponiveis;
+        return licencas.getLivres() > 0;
     }
     
+    // Empréstimo sem token e sem prazo (API antiga), devolvido por liberar();
+    // prefira arrendar()
     @Override
-    public void reservar(int usuarioId) {
-        if (calcularDisponibilidade()) {
-            licencasEmUso++;
+    public void reservar(long usuarioId) {
+        if (licencas.ocuparSemToken(usuarioId)) {
             this.usuarioReservaId = usuarioId;
             this.dataReserva = java.time.LocalDate.now().toString();
+        }
+        this.disponivel = licencas.getLivres() > 0;
+    }
+    
+    // Empresta uma licença ao usuário até 'venceEmMillis'; devolve o token
+    // do empréstimo, ou -1 se não há licença livre
+    public long arrendar(long usuarioId, long venceEmMillis) {
+        return arrendar(usuarioId, 0, venceEmMillis);
+    }
+    
+    // Empréstimo de uma reserva: guarda só a vaga (int, sem boxing), e o pool
+    // confere a reserva na vaga antes de devolver. Falso se não há licença
+    public synchronized boolean arrendarParaReserva(long reservaId, long usuarioId, long venceEmMillis) {
+        long token = arrendar(usuarioId, reservaId, venceEmMillis);
+        if (token <= 0) {
+            return false;
+        }
+        if (vagasPorReserva == null) {
+            vagasPorReserva = new MapaLongInt(4, -1);
+        }
+        vagasPorReserva.colocar(reservaId, PoolLicencas.vagaDe(token));
+        return true;
+    }
+    
+    // Devolve a licença da reserva. Reserva sem vaga registrada foi restaurada
+    // do disco, e a licença dela voltou sem token; se o pool já recolheu a
+    // licença por vencimento, nada mais é liberado
+    public synchronized void devolverDaReserva(long reservaId) {
+        int vaga = vagasPorReserva == null ? -1 : vagasPorReserva.remover(reservaId);
+        if (vaga < 0) {
+            licencas.devolverSemToken();
+        } else {
+            licencas.devolverDaReferencia(vaga, reservaId);
+        }
+        this.disponivel = licencas.getLivres() > 0;
+    }
+    
+    // Recolhe os empréstimos com prazo vencido; devolve quantos
+    public int recolherVencidas(long agoraMillis) {
+        int recolhidas = licencas.recolherVencidos(agoraMillis);
+        this.disponivel = licencas.getLivres() > 0;
+        return recolhidas;
+    }
+    
+    private long arrendar(long usuarioId, long referencia, long venceEmMillis) {
+        long token = licencas.adquirir(usuarioId, referencia, venceEmMillis);
+        if (token > 0) {
             // Livros digitais podem ter múltiplas "reservas" simultâneas
-            if (licencasEmUso >= licencasDisponiveis) {
-                this.disponivel = false;
-            }
+            this.usuarioReservaId = usuarioId;
+            this.dataReserva = java.time.LocalDate.now().toString();
         }
+        this.disponivel = licencas.getLivres() > 0;
+        return token;
     }
     
+    // Devolve a licença do token em O(1); false se o token não vale mais
+    public boolean devolver(long token) {
+        boolean devolvida = licencas.devolver(token);
+        this.disponivel = licencas.getLivres() > 0;
+        return devolvida;
+    }
+    
+    // Devolve um empréstimo sem token; os com token só voltam pelo token
     @Override
     public void liberar() {
-        if (licencasEmUso > 0) {
-            licencasEmUso--;
-            if (licencasEmUso < licencasDisponiveis) {
-                this.disponivel = true;
-            }
-        }
+        licencas.devolverSemToken();
+        this.disponivel = licencas.getLivres() > 0;
     }
     
     public String getCaminhoArquivo() { return caminhoArquivo; }
+    public long getTamanhoMB() { return tamanhoMB; }
     public int getLicencasDisponiveis() { return licencasDisponiveis; }
-    public int getLicencasEmUso() { return licencasEmUso; }
+    public int getLicencasEmUso() { return licencas.getEmUso(); }
+    public PoolLicencas getLicencas() { return licencas; }
+    
+    @Override
+    public void escreverCamposJson(EscritorJson json) {
+        super.escreverCamposJson(json);
+        json.campo("caminhoArquivo", caminhoArquivo)
+            .campo("tamanhoMB", tamanhoMB)
+            .campo("licencasDisponiveis", licencasDisponiveis)
+            .campo("licencasEmUso", getLicencasEmUso());
+    }
+    
+    // Empréstimos restaurados não têm token: voltam como licenças ocupadas
+    // sem token e sem prazo, separadas das vagas com token e liberadas por
+    // liberar() ou pelo fim da reserva restaurada
+    @Override
+    protected void aplicarCampoJson(String campo, String valor) {
+        switch (campo) {
+            case "caminhoArquivo": this.caminhoArquivo = valor; break;
+            case "tamanhoMB": this.tamanhoMB = Long.parseLong(valor); break;
+            case "licencasDisponiveis":
+                this.licencasDisponiveis = Integer.parseInt(valor);
+                this.licencas = new PoolLicencas(licencasDisponiveis);
+                break;
+            case "licencasEmUso":
+                for (int i = Integer.parseInt(valor) - getLicencasEmUso(); i > 0; i--) {
+                    licencas.ocuparSemToken(usuarioReservaId);
+                }
+                this.disponivel = licencas.getLivres() > 0;
+                break;
+            default: super.aplicarCampoJson(campo, valor);
+        }
+    }
 }
 
-// Classe de reserva
-class Reserva implements Persistivel {
-    private static int proximoId = 1;
+// Classe de reserva. Datas são guardadas como dia epoch (int) e o status
+// como código byte; a API continua expondo as Strings de sempre. O estado
+// fica nas subclasses: ReservaAvulsa guarda os campos no próprio objeto e as
+// visões do ArmazemReservas leem e escrevem nas colunas
+abstract class Reserva implements Persistivel {
+    private static volatile GeradorIds sequenciaIds = ServicoIds.nova("reserva");
     
-    private int id;
-    private int usuarioId;
-    private int livroId;
-    private String dataReserva;
-    private String dataVencimento;
-    private String status;
+    // Códigos de status; status desconhecidos são internados sob demanda
+    static final byte STATUS_ATIVA = 0;
+    static final byte STATUS_FINALIZADA = 1;
+    static final byte STATUS_EXPIRADA = 2;
+    private static final java.util.List<String> nomesStatus =
+        new java.util.concurrent.CopyOnWriteArrayList<>(new String[] { "ativa", "finalizada", "expirada" });
     
-    public Reserva(int usuarioId, int livroId) {
-        this.id = proximoId++;
-        this.usuarioId = usuarioId;
-        this.livroId = livroId;
-        this.dataReserva = java.time.LocalDate.now().toString();
-        this.dataVencimento = java.time.LocalDate.now().plusDays(14).toString();
-        this.status = "ativa";
+    static long proximoId() {
+        return sequenciaIds.proximo();
+    }
+    
+    public static void configurarSequencia(GeradorIds sequencia) {
+        sequenciaIds = sequencia;
+    }
+    
+    public static void avancarSequenciaPara(long id) {
+        sequenciaIds.avancarPara(id);
+    }
+    
+    static byte codigoStatus(String status) {
+        int codigo = nomesStatus.indexOf(status);
+        return codigo >= 0 ? (byte) codigo : internarStatus(status);
+    }
+    
+    // Só consulta: -1 se o status nunca foi usado (consultas não internam)
+    static int procurarStatus(String status) {
+        return nomesStatus.indexOf(status);
+    }
+    
+    private static synchronized byte internarStatus(String status) {
+        int codigo = nomesStatus.indexOf(status);
+        if (codigo < 0) {
+            if (nomesStatus.size() > Byte.MAX_VALUE) {
+                throw new IllegalStateException("Status de reserva demais");
+            }
+            nomesStatus.add(status);
+            codigo = nomesStatus.size() - 1;
+        }
+        return (byte) codigo;
+    }
+    
+    static String nomeStatus(byte codigo) {
+        return nomesStatus.get(codigo);
     }
     
-    public int getId() { return id; }
-    public int getUsuarioId() { return usuarioId; }
-    public int getLivroId() { return livroId; }
-    public String getStatus() { return status; }
-    public void setStatus(String status) { this.status = status; }
+    public abstract long getId();
+    public abstract long getUsuarioId();
+    public abstract long getLivroId();
+    public abstract int getDiaReserva();
+    public abstract int getDiaVencimento();
+    public abstract byte getCodigoStatus();
+    public abstract void setCodigoStatus(byte status);
+    
+    public String getDataReserva() { return java.time.LocalDate.ofEpochDay(getDiaReserva()).toString(); }
+    public String getDataVencimento() { return java.time.LocalDate.ofEpochDay(getDiaVencimento()).toString(); }
+    public String getStatus() { return nomeStatus(getCodigoStatus()); }
+    public void setStatus(String status) { setCodigoStatus(codigoStatus(status)); }
+    
+    // Dia epoch a partir do qual a reserva está vencida (o dia após o vencimento)
+    public long getDiaExpiracao() {
+        return getDiaVencimento() + 1L;
+    }
     
     @Override
-    public String toJson() {
-        return String.format(
-            "{\"id\":%d,\"usuarioId\":%d,\"livroId\":%d,\"dataReserva\":\"%s\"," +
-            "\"dataVencimento\":\"%s\",\"status\":\"%s\"}",
-            id, usuarioId, livroId, dataReserva, dataVencimento, status
-        );
+    public void escreverCamposJson(EscritorJson json) {
+        json.campo("id", getId())
+            .campo("usuarioId", getUsuarioId())
+            .campo("livroId", getLivroId())
+            .campo("dataReserva", getDataReserva())
+            .campo("dataVencimento", getDataVencimento())
+            .campo("status", getStatus())
+            .campo("tipo", "Reserva");
     }
     
     @Override
     public void fromJson(String json) {
-        // Implementação simplificada
+        LeitorJson.lerCampos(json).forEach(this::aplicarCampoJson);
     }
     
+    abstract void aplicarCampoJson(String campo, String valor);
+    
     @Override
     public String toString() {
         return String.format("Reserva[%d]: Usuário %d - Livro %d (%s)", 
-                           id, usuarioId, livroId, status);
+                           getId(), getUsuarioId(), getLivroId(), getStatus());
+    }
+}
+
+// Reserva com o estado no próprio objeto: criada pelas operações e na
+// restauração, antes de ser copiada para o ArmazemReservas
+class ReservaAvulsa extends Reserva {
+    private long id;
+    private long usuarioId;
+    private long livroId;
+    private int diaReserva;
+    private int diaVencimento;
+    private volatile byte status;
+    
+    public ReservaAvulsa(long usuarioId, long livroId) {
+        this(proximoId(), usuarioId, livroId);
+    }
+    
+    // Construtor de restauração, com id já existente
+    public ReservaAvulsa(long id, long usuarioId, long livroId) {
+        this.id = id;
+        this.usuarioId = usuarioId;
+        this.livroId = livroId;
+        this.diaReserva = (int) java.time.LocalDate.now().toEpochDay();
+        this.diaVencimento = diaReserva + 14;
+        this.status = STATUS_ATIVA;
+    }
+    
+    @Override public long getId() { return id; }
+    @Override public long getUsuarioId() { return usuarioId; }
+    @Override public long getLivroId() { return livroId; }
+    @Override public int getDiaReserva() { return diaReserva; }
+    @Override public int getDiaVencimento() { return diaVencimento; }
+    @Override public byte getCodigoStatus() { return status; }
+    @Override public void setCodigoStatus(byte status) { this.status = status; }
+    
+    @Override
+    void aplicarCampoJson(String campo, String valor) {
+        switch (campo) {
+            case "id": this.id = Long.parseLong(valor); break;
+            case "usuarioId": this.usuarioId = Long.parseLong(valor); break;
+            case "livroId": this.livroId = Long.parseLong(valor); break;
+            case "dataReserva": this.diaReserva = (int) java.time.LocalDate.parse(valor).toEpochDay(); break;
+            case "dataVencimento": this.diaVencimento = (int) java.time.LocalDate.parse(valor).toEpochDay(); break;
+            case "status": this.status = codigoStatus(valor); break;
+            default: break;
+        }
+    }
+}
+
+// Resultado de um item de um lote de reservas: a reserva criada ou o motivo da recusa
+class ResultadoReserva {
+    private final long usuarioId;
+    private final long livroId;
+    private final Reserva reserva;
+    private final String motivo;
+    
+    private ResultadoReserva(long usuarioId, long livroId, Reserva reserva, String motivo) {
+        this.usuarioId = usuarioId;
+        this.livroId = livroId;
+        this.reserva = reserva;
+        this.motivo = motivo;
+    }
+    
+    static ResultadoReserva sucesso(Reserva reserva) {
+        return new ResultadoReserva(reserva.getUsuarioId(), reserva.getLivroId(), reserva, null);
+    }
+    
+    static ResultadoReserva falha(long usuarioId, long livroId, String motivo) {
+        return new ResultadoReserva(usuarioId, livroId, null, motivo);
+    }
+    
+    public boolean isSucesso() { return reserva != null; }
+    public long getUsuarioId() { return usuarioId; }
+    public long getLivroId() { return livroId; }
+    public Reserva getReserva() { return reserva; }
+    public String getMotivo() { return motivo; }
+    
+    @Override
+    public String toString() {
+        return isSucesso() ? "✅ " + reserva : String.format("❌ Usuário %d - Livro %d: %s", usuarioId, livroId, motivo);
     }
 }
 
 // Relatório de uso - herda de Relatorio
 class RelatorioUso extends Relatorio {
-    private java.util.List<Reserva> reservas;
+    private EstatisticasBiblioteca estatisticas;
     
     public RelatorioUso(java.util.List<Reserva> reservas) {
+        this(EstatisticasBiblioteca.deReservas(reservas));
+    }
+    
+    // Lê os contadores mantidos pelo sistema: O(1) no volume de reservas
+    public RelatorioUso(EstatisticasBiblioteca estatisticas) {
         super("Relatório de Uso da Biblioteca");
-        this.reservas = reservas;
+        this.estatisticas = estatisticas;
     }
     
     @Override
     protected String gerarConteudo() {
         StringBuilder conteudo = new StringBuilder();
-        conteudo.append("Total de reservas: ").append(reservas.size()).append("\n");
+        long totalReservas = estatisticas.getTotalReservas();
+        conteudo.append("Total de reservas: ").append(totalReservas).append("\n");
         
-        long reservasAtivas = reservas.stream()
-            .filter(r -> "ativa".equals(r.getStatus()))
-            .count();
+        long reservasAtivas = estatisticas.getReservas("ativa");
         
         conteudo.append("Reservas ativas: ").append(reservasAtivas).append("\n");
-        conteudo.append("Reservas finalizadas: ").append(reservas.size() - reservasAtivas);
+        conteudo.append("Reservas finalizadas: ").append(totalReservas - reservasAtivas);
         
         return conteudo.toString();
     }
@@ -485,125 +910,4936 @@ class RelatorioUso extends Relatorio {
 // ================ CLASSES GENÉRICAS ================
 
 // Repositório genérico para qualquer tipo de objeto
+// Cada escrita publica uma nova versão imutável (VetorPersistente); leitores
+// pegam a versão corrente em O(1), sem cópia e sem ver escritas posteriores
 class Repositorio<T> {
-    private java.util.List<T> itens;
+    private volatile VetorPersistente<T> itens;
     
     public Repositorio() {
-        this.itens = new java.util.ArrayList<>();
+        this.itens = VetorPersistente.vazio();
     }
     
-    public void adicionar(T item) {
-        itens.add(item);
+    public synchronized void adicionar(T item) {
+        itens = itens.comAcrescimo(item);
     }
     
-    public void remover(T item) {
-        itens.remove(item);
+    public synchronized void remover(T item) {
+        int indice = itens.indexOf(item);
+        if (indice >= 0) {
+            itens = itens.semIndice(indice);
+        }
+    }
+    
+    // Versão corrente, consistente num ponto no tempo
+    public VetorPersistente<T> instantaneo() {
+        return itens;
     }
     
+    // Lista imutável: é o próprio instantâneo, sem cópia
     public java.util.List<T> obterTodos() {
-        return new java.util.ArrayList<>(itens);
+        return instantaneo();
     }
     
     public int tamanho() {
-        return itens.size();
+        return instantaneo().size();
     }
     
     // Método genérico para busca com critério
     public java.util.List<T> buscar(java.util.function.Predicate<T> criterio) {
-        return itens.stream()
-                   .filter(criterio)
-                   .collect(java.util.stream.Collectors.toList());
+        return fluxo(criterio).collect(java.util.stream.Collectors.toList());
+    }
+    
+    // Variantes preguiçosas: percorrem o instantâneo só até onde o consumidor
+    // pedir (ex.: limit(20)), sem montar a lista de resultados
+    public java.util.stream.Stream<T> fluxo() {
+        return instantaneo().stream();
+    }
+    
+    public java.util.stream.Stream<T> fluxo(java.util.function.Predicate<T> criterio) {
+        return fluxo().filter(criterio);
+    }
+    
+    public java.util.Iterator<T> iterador() {
+        return instantaneo().iterator();
+    }
+}
+
+// Página de uma consulta paginada por chave (keyset): os itens e o cursor
+// para a próxima chamada ("depois da chave X"), null na última página
+class Pagina<K, T> {
+    private final java.util.List<T> itens;
+    private final K proximo;
+    
+    public Pagina(java.util.List<T> itens, K proximo) {
+        this.itens = itens;
+        this.proximo = proximo;
+    }
+    
+    // Recebe até limite + 1 itens em ordem de chave; o excedente só indica
+    // que existe uma próxima página
+    public static <K, T> Pagina<K, T> de(java.util.List<T> itens, int limite,
+                                         java.util.function.Function<? super T, ? extends K> chave) {
+        if (exigirLimite(limite) >= itens.size()) {
+            return new Pagina<>(itens, null);
+        }
+        java.util.List<T> pagina = itens.subList(0, limite);
+        return new Pagina<>(pagina, limite == 0 ? null : chave.apply(pagina.get(limite - 1)));
+    }
+    
+    public static int exigirLimite(int limite) {
+        if (limite < 0) {
+            throw new IllegalArgumentException("Limite de página negativo: " + limite);
+        }
+        return limite;
     }
+    
+    public java.util.List<T> getItens() { return itens; }
+    public K getProximo() { return proximo; }
+    public boolean temProxima() { return proximo != null; }
 }
 
-// Cache genérico
+// Cache genérico - LRU por ordem de acesso, com TTL opcional e limite por peso.
+// A leitura reordena a lista LRU, por isso todos os acessos são sincronizados
 class Cache<K, V> {
-    private java.util.Map<K, V> cache;
-    private final int tamanhoMaximo;
+    // Entrada do cache: valor, peso e instante de expiração (nanoTime)
+    private static final class Entrada<V> {
+        final V valor;
+        final int peso;
+        final boolean temTtl;
+        final long expiraEm;
+        
+        Entrada(V valor, int peso, long ttlNanos) {
+            this.valor = valor;
+            this.peso = peso;
+            this.temTtl = ttlNanos > 0;
+            this.expiraEm = temTtl ? System.nanoTime() + ttlNanos : 0L;
+        }
+        
+        boolean expirada(long agora) {
+            return temTtl && agora - expiraEm >= 0;
+        }
+    }
     
+    private java.util.LinkedHashMap<K, Entrada<V>> cache;
+    private final long pesoMaximo;
+    private final java.util.function.ToIntFunction<? super V> pesador;
+    private final long ttlPadraoNanos;
+    private long pesoAtual;
+    private long acertos;
+    private long falhas;
+    
+    // Construtor sobrecarregado - limite por quantidade de entradas
     public Cache(int tamanhoMaximo) {
-        this.cache = new java.util.LinkedHashMap<>();
-        this.tamanhoMaximo = tamanhoMaximo;
+        this(tamanhoMaximo, valor -> 1, 0);
     }
     
-    public V obter(K chave) {
-        return cache.get(chave);
+    // Construtor sobrecarregado - limite por peso e TTL padrão (0 = sem TTL)
+    public Cache(long pesoMaximo, java.util.function.ToIntFunction<? super V> pesador, long ttlPadraoMillis) {
+        // accessOrder = true: cada leitura move a entrada para o fim (LRU)
+        this.cache = new java.util.LinkedHashMap<>(16, 0.75f, true);
+        this.pesoMaximo = pesoMaximo;
+        this.pesador = pesador;
+        this.ttlPadraoNanos = java.util.concurrent.TimeUnit.MILLISECONDS.toNanos(ttlPadraoMillis);
     }
     
-    public void armazenar(K chave, V valor) {
-        if (cache.size() >= tamanhoMaximo) {
-            // Remove o item mais antigo
-            K primeiraChave = cache.keySet().iterator().next();
-            cache.remove(primeiraChave);
+    public synchronized V obter(K chave) {
+        Entrada<V> entrada = cache.get(chave);
+        if (entrada == null) {
+            falhas++;
+            return null;
+        }
+        if (entrada.expirada(System.nanoTime())) {
+            descartar(chave);
+            falhas++;
+            return null;
         }
-        cache.put(chave, valor);
+        acertos++;
+        return entrada.valor;
     }
     
-    public boolean contem(K chave) {
-        return cache.containsKey(chave);
+    public synchronized void armazenar(K chave, V valor) {
+        armazenarNanos(chave, valor, ttlPadraoNanos);
     }
     
-    public void limpar() {
-        cache.clear();
+    // Sobrecarga com TTL específico para a entrada
+    public synchronized void armazenar(K chave, V valor, long ttlMillis) {
+        armazenarNanos(chave, valor, java.util.concurrent.TimeUnit.MILLISECONDS.toNanos(ttlMillis));
     }
-}
-
-// ================ CLASSE PRINCIPAL - SISTEMA ================
-
-class SistemaBiblioteca {
-    private Repositorio<Usuario> repositorioUsuarios;
-    private Repositorio<Livro> repositorioLivros;
-    private Repositorio<Reserva> repositorioReservas;
-    private Cache<String, java.util.List<Livro>> cacheConsultas;
-    
-    // Constantes final
-    private static final String VERSAO = "1.0";
-    private static final int CACHE_SIZE = 50;
     
-    public SistemaBiblioteca() {
-        this.repositorioUsuarios = new Repositorio<>();
-        this.repositorioLivros = new Repositorio<>();
-        this.repositorioReservas = new Repositorio<>();
-        this.cacheConsultas = new Cache<>(CACHE_SIZE);
+    private void armazenarNanos(K chave, V valor, long ttlNanos) {
+        int peso = Math.max(1, pesador.applyAsInt(valor));
+        descartar(chave);
+        if (peso > pesoMaximo) {
+            return; // Entrada maior que o cache inteiro: não armazena
+        }
+        cache.put(chave, new Entrada<>(valor, peso, ttlNanos));
+        pesoAtual += peso;
         
-        inicializarDadosDemo();
+        // Remove as entradas menos recentemente usadas até caber no limite
+        java.util.Iterator<java.util.Map.Entry<K, Entrada<V>>> it = cache.entrySet().iterator();
+        while (pesoAtual > pesoMaximo && it.hasNext()) {
+            java.util.Map.Entry<K, Entrada<V>> maisAntiga = it.next();
+            pesoAtual -= maisAntiga.getValue().peso;
+            it.remove();
+        }
     }
     
-    private void inicializarDadosDemo() {
-        // Criando usuários - demonstra polimorfismo e herança
-        Usuario user1 = new UsuarioComum("João Silva", "joao@email.com", "123456");
-        Usuario user2 = new UsuarioComum("Maria Santos");
-        Usuario admin = new Administrador("Ana Admin", "ana@admin.com", "admin123");
-        
-        repositorioUsuarios.adicionar(user1);
-        repositorioUsuarios.adicionar(user2);
-        repositorioUsuarios.adicionar(admin);
-        
-        // Criando livros - demonstra polimorfismo e herança
-        Livro livro1 = new LivroFisico("Java: Como Programar", "Paul Deitel", 
-                                      "978-85-7522-123-4", "Programação", "Estante A1");
-        Livro livro2 = new LivroDigital("Clean Code", "Robert Martin", 
-                                       "978-85-7522-456-7", "Programação", 
-                                       "/livros/clean_code.pdf", 3);
-        Livro livro3 = new LivroFisico("Design Patterns", "Gang of Four");
-        
-        repositorioLivros.adicionar(livro1);
-        repositorioLivros.adicionar(livro2);
-        repositorioLivros.adicionar(livro3);
+    public synchronized boolean contem(K chave) {
+        Entrada<V> entrada = cache.get(chave);
+        if (entrada != null && entrada.expirada(System.nanoTime())) {
+            descartar(chave);
+            return false;
+        }
+        return entrada != null;
     }
     
-    // Método sobrecarregado para busca
-    public java.util.List<Livro> buscarLivro(String titulo) {
-        return buscarLivro(titulo, null);
+    // Invalidação direcionada de uma chave
+    public synchronized void invalidar(K chave) {
+        descartar(chave);
     }
     
-    public java.util.List<Livro> buscarLivro(String titulo, String autor) {
-        String chaveCache = titulo + (autor != null ? "_" + autor : "");
-        
-        // Verifica cache primeiro
-        if (cacheConsultas.contem(chaveCache)) {
-            System.out.println("📋 Resultado obtido do cache");
-            return cacheConsultas.obter(chaveCache);
+    // Invalida todas as entradas que satisfazem o critério
+    public synchronized int invalidarSe(java.util.function.BiPredicate<? super K, ? super V> criterio) {
+        int removidas = 0;
+        java.util.Iterator<java.util.Map.Entry<K, Entrada<V>>> it = cache.entrySet().iterator();
+        while (it.hasNext()) {
+            java.util.Map.Entry<K, Entrada<V>> entrada = it.next();
+            if (criterio.test(entrada.getKey(), entrada.getValue().valor)) {
+                pesoAtual -= entrada.getValue().peso;
+                it.remove();
+                removidas++;
+            }
+        }
+        return removidas;
+    }
+    
+    public synchronized void limpar() {
+        cache.clear();
+        pesoAtual = 0;
+    }
+    
+    public synchronized int tamanho() { return cache.size(); }
+    public synchronized long getPesoAtual() { return pesoAtual; }
+    public synchronized long getAcertos() { return acertos; }
+    public synchronized long getFalhas() { return falhas; }
+    
+    public synchronized double getTaxaAcerto() {
+        long total = acertos + falhas;
+        return total == 0 ? 0.0 : (double) acertos / total;
+    }
+    
+    private void descartar(K chave) {
+        Entrada<V> removida = cache.remove(chave);
+        if (removida != null) {
+            pesoAtual -= removida.peso;
+        }
+    }
+}
+
+// Escritor JSON em fluxo - escreve direto num Appendable (StringBuilder,
+// Writer...), com escape correto e números sem boxing. Reutilizável: um único
+// escritor serve milhões de registros via redirecionar()
+class EscritorJson {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    private Appendable destino;
+    private boolean primeiroCampo;
+    private final char[] digitos = new char[20];
+    
+    public EscritorJson(Appendable destino) {
+        this.destino = destino;
+    }
+    
+    public EscritorJson redirecionar(Appendable destino) {
+        this.destino = destino;
+        this.primeiroCampo = false;
+        return this;
+    }
+    
+    public EscritorJson inicioObjeto() {
+        escrever('{');
+        primeiroCampo = true;
+        return this;
+    }
+    
+    public EscritorJson fimObjeto() {
+        escrever('}');
+        primeiroCampo = false;
+        return this;
+    }
+    
+    // Separador de registros no formato JSON Lines
+    public EscritorJson novaLinha() {
+        escrever('\n');
+        return this;
+    }
+    
+    public EscritorJson campo(String nome, CharSequence valor) {
+        nome(nome);
+        if (valor == null) {
+            escrever("null");
+        } else {
+            texto(valor);
+        }
+        return this;
+    }
+    
+    public EscritorJson campo(String nome, long valor) {
+        nome(nome);
+        numero(valor);
+        return this;
+    }
+    
+    public EscritorJson campo(String nome, boolean valor) {
+        nome(nome);
+        escrever(valor ? "true" : "false");
+        return this;
+    }
+    
+    // Escreve cada item como uma linha; devolve a quantidade escrita
+    public long escreverTodos(Iterable<? extends Persistivel> itens) {
+        long quantidade = 0;
+        for (Persistivel item : itens) {
+            item.escreverJson(this);
+            novaLinha();
+            quantidade++;
+        }
+        return quantidade;
+    }
+    
+    private void nome(String nome) {
+        if (!primeiroCampo) {
+            escrever(',');
+        }
+        primeiroCampo = false;
+        texto(nome);
+        escrever(':');
+    }
+    
+    // String entre aspas; trechos sem caracteres especiais são copiados de uma vez
+    private void texto(CharSequence valor) {
+        escrever('"');
+        int inicio = 0;
+        int tamanho = valor.length();
+        for (int i = 0; i < tamanho; i++) {
+            char c = valor.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            anexar(valor, inicio, i);
+            inicio = i + 1;
+            switch (c) {
+                case '"': escrever("\\\""); break;
+                case '\\': escrever("\\\\"); break;
+                case '\n': escrever("\\n"); break;
+                case '\r': escrever("\\r"); break;
+                case '\t': escrever("\\t"); break;
+                case '\b': escrever("\\b"); break;
+                case '\f': escrever("\\f"); break;
+                default:
+                    escrever("\\u00");
+                    escrever(HEX[c >> 4]);
+                    escrever(HEX[c & 0xF]);
+            }
+        }
+        anexar(valor, inicio, tamanho);
+        escrever('"');
+    }
+    
+    // Converte o número em dígitos num buffer reutilizado
+    private void numero(long valor) {
+        if (valor == Long.MIN_VALUE) {
+            escrever("-9223372036854775808");
+            return;
+        }
+        int pos = digitos.length;
+        boolean negativo = valor < 0;
+        long resto = negativo ? -valor : valor;
+        do {
+            digitos[--pos] = (char) ('0' + (resto % 10));
+            resto /= 10;
+        } while (resto != 0);
+        if (negativo) {
+            digitos[--pos] = '-';
+        }
+        for (int i = pos; i < digitos.length; i++) {
+            escrever(digitos[i]);
+        }
+    }
+    
+    private void anexar(CharSequence valor, int inicio, int fim) {
+        if (inicio < fim) {
+            try {
+                destino.append(valor, inicio, fim);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }
+    }
+    
+    private void escrever(char c) {
+        try {
+            destino.append(c);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+    
+    private void escrever(String s) {
+        try {
+            destino.append(s);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+}
+
+// Leitor JSON em fluxo (pull) - devolve um evento por vez, sem montar árvore.
+// Lê de um Reader com buffer próprio, então arquivos de qualquer tamanho
+// são processados com memória constante
+class LeitorJson {
+    enum Evento { INICIO_OBJETO, FIM_OBJETO, INICIO_LISTA, FIM_LISTA, NOME, TEXTO, NUMERO, BOOLEANO, NULO, FIM }
+    
+    private final java.io.Reader origem;
+    private final char[] buffer;
+    private int posicao;
+    private int limite;
+    private final StringBuilder valor = new StringBuilder();
+    // Pilha de contextos: true = objeto, false = lista
+    private boolean[] contextos = new boolean[16];
+    private int profundidade;
+    // O que a gramática aceita a seguir (ver ESPERA_*); fora de objetos e
+    // listas, registros seguidos (JSON Lines) não levam separador
+    private int esperado = ESPERA_VALOR_OU_FIM;
+    private boolean valorNulo;
+    
+    private static final int ESPERA_VALOR = 0;           // depois de ':' ou de ',' numa lista
+    private static final int ESPERA_VALOR_OU_FIM = 1;    // depois de '[' ou no nível de fora
+    private static final int ESPERA_NOME = 2;            // depois de ',' num objeto
+    private static final int ESPERA_NOME_OU_FIM = 3;     // depois de '{'
+    private static final int ESPERA_DOIS_PONTOS = 4;     // depois de um nome
+    private static final int ESPERA_SEPARADOR_OU_FIM = 5; // depois de um valor dentro de '{' ou '['
+
+    
+    public LeitorJson(java.io.Reader origem) {
+        this.origem = origem;
+        this.buffer = new char[1 << 14];
+    }
+    
+    // Lê um único objeto plano para um mapa nome -> valor textual
+    public static java.util.Map<String, String> lerCampos(String json) {
+        java.util.Map<String, String> campos = new java.util.LinkedHashMap<>();
+        if (!new LeitorJson(new java.io.StringReader(json)).lerRegistro(campos)) {
+            throw new IllegalArgumentException("JSON vazio");
+        }
+        return campos;
+    }
+    
+    // Exatamente um ':' depois de cada nome e um ',' entre membros; qualquer
+    // desvio é IllegalStateException (carregarRegistros depende disso para
+    // detectar registros corrompidos)
+    public Evento proximo() {
+        valorNulo = false;
+        int c = proximoSignificativo();
+        if (esperado == ESPERA_DOIS_PONTOS) {
+            if (c != ':') {
+                throw invalido(c, "':' depois do nome");
+            }
+            c = proximoSignificativo();
+            esperado = ESPERA_VALOR;
+        } else if (esperado == ESPERA_SEPARADOR_OU_FIM && c == ',') {
+            c = proximoSignificativo();
+            esperado = emObjeto() ? ESPERA_NOME : ESPERA_VALOR;
+        }
+        switch (c) {
+            case -1:
+                if (profundidade > 0 || esperado != ESPERA_VALOR_OU_FIM) {
+                    throw new IllegalStateException("JSON inválido: fim inesperado da entrada");
+                }
+                return Evento.FIM;
+            case '}':
+            case ']':
+                boolean objeto = c == '}';
+                boolean aceitaFim = esperado == ESPERA_SEPARADOR_OU_FIM
+                    || esperado == (objeto ? ESPERA_NOME_OU_FIM : ESPERA_VALOR_OU_FIM);
+                if (profundidade == 0 || emObjeto() != objeto || !aceitaFim) {
+                    throw invalido(c, descreverEsperado());
+                }
+                profundidade--;
+                valorConcluido();
+                return objeto ? Evento.FIM_OBJETO : Evento.FIM_LISTA;
+            case '"':
+                if (esperado == ESPERA_NOME || esperado == ESPERA_NOME_OU_FIM) {
+                    lerTexto();
+                    esperado = ESPERA_DOIS_PONTOS;
+                    return Evento.NOME;
+                }
+                exigirValor(c);
+                lerTexto();
+                valorConcluido();
+                return Evento.TEXTO;
+            default:
+                exigirValor(c);
+                return lerValor(c);
+        }
+    }
+    
+    private Evento lerValor(int c) {
+        switch (c) {
+            case '{':
+                empilhar(true);
+                esperado = ESPERA_NOME_OU_FIM;
+                return Evento.INICIO_OBJETO;
+            case '[':
+                empilhar(false);
+                esperado = ESPERA_VALOR_OU_FIM;
+                return Evento.INICIO_LISTA;
+            case 't':
+                lerLiteral("true", c);
+                valorConcluido();
+                return Evento.BOOLEANO;
+            case 'f':
+                lerLiteral("false", c);
+                valorConcluido();
+                return Evento.BOOLEANO;
+            case 'n':
+                lerLiteral("null", c);
+                valorNulo = true;
+                valorConcluido();
+                return Evento.NULO;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    lerNumero(c);
+                    valorConcluido();
+                    return Evento.NUMERO;
+                }
+                throw invalido(c, "valor");
+        }
+    }
+    
+    private void exigirValor(int c) {
+        if (esperado != ESPERA_VALOR && esperado != ESPERA_VALOR_OU_FIM) {
+            throw invalido(c, descreverEsperado());
+        }
+    }
+    
+    private String descreverEsperado() {
+        switch (esperado) {
+            case ESPERA_SEPARADOR_OU_FIM: return "',' ou o fechamento do bloco aberto";
+            case ESPERA_NOME:
+            case ESPERA_NOME_OU_FIM: return "nome de campo";
+            default: return "valor";
+        }
+    }
+    
+    private void valorConcluido() {
+        esperado = profundidade == 0 ? ESPERA_VALOR_OU_FIM : ESPERA_SEPARADOR_OU_FIM;
+    }
+    
+    private boolean emObjeto() {
+        return profundidade > 0 && contextos[profundidade - 1];
+    }
+    
+    private static IllegalStateException invalido(int c, String esperadoAqui) {
+        return new IllegalStateException("JSON inválido: esperado " + esperadoAqui + ", encontrado "
+            + (c == -1 ? "fim da entrada" : "'" + (char) c + "'"));
+    }
+    
+    // Texto do último NOME/TEXTO/NUMERO/BOOLEANO; null para NULO
+    public String getTexto() {
+        return valorNulo ? null : valor.toString();
+    }
+    
+    public long getLong() {
+        return Long.parseLong(valor, 0, valor.length(), 10);
+    }
+    
+    // Lê o próximo objeto plano no mapa (reaproveitado entre registros);
+    // devolve false no fim da entrada
+    public boolean lerRegistro(java.util.Map<String, String> campos) {
+        campos.clear();
+        Evento evento = proximo();
+        if (evento == Evento.FIM) {
+            return false;
+        }
+        if (evento != Evento.INICIO_OBJETO) {
+            throw new IllegalStateException("Esperado início de objeto, encontrado " + evento);
+        }
+        while ((evento = proximo()) != Evento.FIM_OBJETO) {
+            if (evento != Evento.NOME) {
+                throw new IllegalStateException("Esperado nome de campo, encontrado " + evento);
+            }
+            String nome = getTexto();
+            Evento tipoValor = proximo();
+            switch (tipoValor) {
+                case TEXTO:
+                case NUMERO:
+                case BOOLEANO:
+                case NULO:
+                    campos.put(nome, getTexto());
+                    break;
+                default:
+                    throw new IllegalStateException("Registro deve ser plano; campo aninhado: " + nome);
+            }
+        }
+        return true;
+    }
+    
+    // Pula só espaços; separadores são conferidos por proximo()
+    private int proximoSignificativo() {
+        while (true) {
+            int c = ler();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+    
+    private void lerTexto() {
+        valor.setLength(0);
+        while (true) {
+            int c = ler();
+            if (c == -1) {
+                throw new IllegalStateException("JSON inválido: texto não terminado");
+            }
+            if (c == '"') {
+                return;
+            }
+            if (c != '\\') {
+                valor.append((char) c);
+                continue;
+            }
+            int escape = ler();
+            switch (escape) {
+                case '"': valor.append('"'); break;
+                case '\\': valor.append('\\'); break;
+                case '/': valor.append('/'); break;
+                case 'n': valor.append('\n'); break;
+                case 'r': valor.append('\r'); break;
+                case 't': valor.append('\t'); break;
+                case 'b': valor.append('\b'); break;
+                case 'f': valor.append('\f'); break;
+                case 'u':
+                    int codigo = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digito = Character.digit(ler(), 16);
+                        if (digito < 0) {
+                            throw new IllegalStateException("JSON inválido: escape \\u malformado");
+                        }
+                        codigo = (codigo << 4) | digito;
+                    }
+                    valor.append((char) codigo);
+                    break;
+                default:
+                    throw new IllegalStateException("JSON inválido: escape \\" + (char) escape);
+            }
+        }
+    }
+    
+    private void lerNumero(int primeiro) {
+        valor.setLength(0);
+        valor.append((char) primeiro);
+        while (true) {
+            int c = espiar();
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                valor.append((char) ler());
+            } else {
+                return;
+            }
+        }
+    }
+    
+    private void lerLiteral(String literal, int primeiro) {
+        valor.setLength(0);
+        valor.append((char) primeiro);
+        for (int i = 1; i < literal.length(); i++) {
+            int c = ler();
+            if (c != literal.charAt(i)) {
+                throw new IllegalStateException("JSON inválido: esperado " + literal);
+            }
+            valor.append((char) c);
+        }
+    }
+    
+    private void empilhar(boolean objeto) {
+        if (profundidade == contextos.length) {
+            contextos = java.util.Arrays.copyOf(contextos, profundidade * 2);
+        }
+        contextos[profundidade++] = objeto;
+    }
+    
+    private int ler() {
+        if (posicao == limite && !preencher()) {
+            return -1;
+        }
+        return buffer[posicao++];
+    }
+    
+    private int espiar() {
+        if (posicao == limite && !preencher()) {
+            return -1;
+        }
+        return buffer[posicao];
+    }
+    
+    private boolean preencher() {
+        try {
+            int lidos = origem.read(buffer, 0, buffer.length);
+            if (lidos <= 0) {
+                return false;
+            }
+            posicao = 0;
+            limite = lidos;
+            return true;
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+}
+
+// Restaurador JSON - reconstrói entidades pelo discriminador "tipo"
+final class RestauradorJson {
+    private RestauradorJson() {}
+    
+    public static Persistivel criar(java.util.Map<String, String> campos) {
+        String tipo = campos.get("tipo");
+        if (tipo == null) {
+            throw new IllegalArgumentException("Registro sem campo 'tipo': " + campos);
+        }
+        if ("EsperaLivro".equals(tipo)) {
+            RegistroEspera espera = new RegistroEspera();
+            campos.forEach(espera::aplicarCampoJson);
+            return espera;
+        }
+        long id = Long.parseLong(campos.get("id"));
+        switch (tipo) {
+            case "UsuarioComum":
+                return aplicar(new UsuarioComum(id, campos.get("nome")), campos);
+            case "Administrador":
+                return aplicar(new Administrador(id, campos.get("nome")), campos);
+            case "LivroFisico":
+                return aplicar(new LivroFisico(id, campos.get("titulo"), campos.get("autor")), campos);
+            case "LivroDigital":
+                return aplicar(new LivroDigital(id, campos.get("titulo"), campos.get("autor")), campos);
+            case "Reserva":
+                Reserva reserva = new ReservaAvulsa(id, Long.parseLong(campos.get("usuarioId")),
+                                                    Long.parseLong(campos.get("livroId")));
+                campos.forEach(reserva::aplicarCampoJson);
+                return reserva;
+            default:
+                throw new IllegalArgumentException("Tipo desconhecido: " + tipo);
+        }
+    }
+    
+    private static Usuario aplicar(Usuario usuario, java.util.Map<String, String> campos) {
+        campos.forEach(usuario::aplicarCampoJson);
+        return usuario;
+    }
+    
+    private static Livro aplicar(Livro livro, java.util.Map<String, String> campos) {
+        campos.forEach(livro::aplicarCampoJson);
+        return livro;
+    }
+}
+
+// Diário de operações (write-ahead log) - registros JSON Lines com o estado
+// completo das entidades alteradas, o que torna a reaplicação idempotente.
+// Commit em grupo: quem chega primeiro grava e faz fsync do lote inteiro
+// acumulado, liberando de uma vez todos que esperavam
+class DiarioOperacoes implements java.io.Closeable {
+    public static final String ARQUIVO_SNAPSHOT = "snapshot.jsonl";
+    private static final String PREFIXO_SEGMENTO = "diario-";
+    
+    private final java.nio.file.Path diretorio;
+    private final java.util.concurrent.locks.ReentrantLock trava = new java.util.concurrent.locks.ReentrantLock();
+    private final java.util.concurrent.locks.Condition loteGravado = trava.newCondition();
+    // Buffer duplo: um recebe registros enquanto o outro é gravado
+    private StringBuilder pendente = new StringBuilder(1 << 14);
+    private StringBuilder livre = new StringBuilder(1 << 14);
+    private final EscritorJson escritor = new EscritorJson(pendente);
+    private long ultimoAnexado;
+    private long ultimoDuravel;
+    private boolean gravando;
+    private java.io.IOException falha;
+    private java.nio.channels.FileChannel canal;
+    private long segmentoAtual;
+    
+    public DiarioOperacoes(java.nio.file.Path diretorio) throws java.io.IOException {
+        this.diretorio = diretorio;
+        java.nio.file.Files.createDirectories(diretorio);
+        java.util.List<java.nio.file.Path> existentes = segmentos(diretorio);
+        this.segmentoAtual = existentes.isEmpty() ? 1 : numeroSegmento(existentes.get(existentes.size() - 1)) + 1;
+        this.canal = abrirSegmento(segmentoAtual);
+    }
+    
+    // Segmentos existentes, em ordem de gravação
+    public static java.util.List<java.nio.file.Path> segmentos(java.nio.file.Path diretorio) throws java.io.IOException {
+        if (!java.nio.file.Files.isDirectory(diretorio)) {
+            return new java.util.ArrayList<>();
+        }
+        try (java.util.stream.Stream<java.nio.file.Path> arquivos = java.nio.file.Files.list(diretorio)) {
+            return arquivos.filter(p -> p.getFileName().toString().startsWith(PREFIXO_SEGMENTO))
+                           .sorted()
+                           .collect(java.util.stream.Collectors.toList());
+        }
+    }
+    
+    // Anexa o estado atual das entidades; chamado ainda sob as travas de domínio,
+    // para que a ordem no diário siga a ordem das alterações. Devolve o ticket
+    // a ser passado para aguardar()
+    public long anexar(Persistivel... entidades) {
+        trava.lock();
+        try {
+            for (Persistivel entidade : entidades) {
+                escritor.inicioObjeto().campo("op", "gravar");
+                entidade.escreverCamposJson(escritor);
+                escritor.fimObjeto().novaLinha();
+            }
+            return ++ultimoAnexado;
+        } finally {
+            trava.unlock();
+        }
+    }
+    
+    public long anexarRemocao(String tipo, long id) {
+        trava.lock();
+        try {
+            escritor.inicioObjeto()
+                    .campo("op", "remover")
+                    .campo("tipo", tipo)
+                    .campo("id", id)
+                    .fimObjeto()
+                    .novaLinha();
+            return ++ultimoAnexado;
+        } finally {
+            trava.unlock();
+        }
+    }
+    
+    // Bloqueia até o ticket estar em disco (fsync)
+    public void aguardar(long ticket) throws java.io.IOException {
+        trava.lock();
+        try {
+            while (ultimoDuravel < ticket) {
+                if (falha != null) {
+                    throw falha;
+                }
+                if (gravando) {
+                    loteGravado.awaitUninterruptibly();
+                } else {
+                    gravarLote();
+                }
+            }
+        } finally {
+            trava.unlock();
+        }
+    }
+    
+    // Fecha o segmento atual e abre o próximo; devolve o número do segmento
+    // fechado (ele e os anteriores podem ser apagados após um snapshot)
+    public long rotacionar() throws java.io.IOException {
+        trava.lock();
+        try {
+            esvaziar();
+            canal.close();
+            long fechado = segmentoAtual;
+            segmentoAtual++;
+            canal = abrirSegmento(segmentoAtual);
+            return fechado;
+        } finally {
+            trava.unlock();
+        }
+    }
+    
+    // Apaga segmentos já cobertos por um snapshot
+    public void descartarAte(long segmento) throws java.io.IOException {
+        for (java.nio.file.Path arquivo : segmentos(diretorio)) {
+            if (numeroSegmento(arquivo) <= segmento) {
+                java.nio.file.Files.deleteIfExists(arquivo);
+            }
+        }
+    }
+    
+    public java.nio.file.Path getDiretorio() { return diretorio; }
+    
+    @Override
+    public void close() throws java.io.IOException {
+        trava.lock();
+        try {
+            esvaziar();
+            canal.close();
+        } finally {
+            trava.unlock();
+        }
+    }
+    
+    // Grava tudo o que foi anexado e espera até não haver líder escrevendo:
+    // o líder usa o canal fora da trava, então só agora ele pode ser trocado.
+    // Chamado com a trava, que volta a ser do chamador ao sair
+    private void esvaziar() throws java.io.IOException {
+        while (gravando || ultimoDuravel < ultimoAnexado) {
+            if (falha != null) {
+                throw falha;
+            }
+            if (gravando) {
+                loteGravado.awaitUninterruptibly();
+            } else {
+                gravarLote();
+            }
+        }
+    }
+    
+    // Chamado com a trava; solta a trava durante a escrita para que outros
+    // continuem anexando ao próximo lote
+    private void gravarLote() {
+        gravando = true;
+        StringBuilder lote = pendente;
+        long ate = ultimoAnexado;
+        pendente = livre;
+        livre = null;
+        escritor.redirecionar(pendente);
+        java.nio.channels.FileChannel destino = canal;
+        
+        trava.unlock();
+        java.io.IOException erro = null;
+        try {
+            java.nio.ByteBuffer bytes = java.nio.charset.StandardCharsets.UTF_8.encode(java.nio.CharBuffer.wrap(lote));
+            while (bytes.hasRemaining()) {
+                destino.write(bytes);
+            }
+            destino.force(false);
+        } catch (java.io.IOException e) {
+            erro = e;
+        } finally {
+            trava.lock();
+            lote.setLength(0);
+            livre = lote;
+            gravando = false;
+            if (erro == null) {
+                ultimoDuravel = ate;
+            } else {
+                falha = erro;
+            }
+            loteGravado.signalAll();
+        }
+    }
+    
+    private java.nio.channels.FileChannel abrirSegmento(long numero) throws java.io.IOException {
+        return java.nio.channels.FileChannel.open(
+            diretorio.resolve(String.format("%s%012d.jsonl", PREFIXO_SEGMENTO, numero)),
+            java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE,
+            java.nio.file.StandardOpenOption.APPEND);
+    }
+    
+    private static long numeroSegmento(java.nio.file.Path arquivo) {
+        String nome = arquivo.getFileName().toString();
+        return Long.parseLong(nome.substring(PREFIXO_SEGMENTO.length(), nome.indexOf('.')));
+    }
+}
+
+// Catálogo mapeado em memória - snapshot binário e versionado do acervo.
+// Layout: cabeçalho | registros de tamanho fixo ordenados por id | heap de
+// strings (tamanho + UTF-8, com deduplicação). O arquivo é aberto com
+// FileChannel.map, então abrir custa O(1) independente do tamanho do acervo;
+// os livros são materializados sob demanda
+class CatalogoMapeado {
+    private static final int MAGICO = 0x4249424C; // "BIBL"
+    private static final int VERSAO_FORMATO = 1;
+    private static final int TAMANHO_CABECALHO = 32;
+    private static final int TAMANHO_REGISTRO = 64;
+    private static final byte TIPO_FISICO = 1;
+    private static final byte TIPO_DIGITAL = 2;
+    private static final int SEM_TEXTO = -1;
+    
+    // Deslocamentos dentro de cada registro
+    private static final int OFS_ID = 0;
+    private static final int OFS_TIPO = 8;
+    private static final int OFS_DISPONIVEL = 9;
+    private static final int OFS_LICENCAS = 12;
+    private static final int OFS_LICENCAS_EM_USO = 16;
+    private static final int OFS_USUARIO_RESERVA = 20;
+    private static final int OFS_TAMANHO_MB = 28;
+    private static final int OFS_TEXTOS = 36; // 7 referências int ao heap
+    private static final int TEXTO_TITULO = 0;
+    private static final int TEXTO_AUTOR = 1;
+    private static final int TEXTO_ISBN = 2;
+    private static final int TEXTO_CATEGORIA = 3;
+    private static final int TEXTO_LOCAL = 4; // localização ou caminho do arquivo
+    private static final int TEXTO_ESTADO = 5;
+    private static final int TEXTO_DATA_RESERVA = 6;
+    
+    // Livros materializados recentemente; quem altera um livro o promove ao
+    // repositório do sistema, então o cache só poupa releituras e é limitado
+    private static final int LIMITE_MATERIALIZADOS = 1 << 12;
+    
+    private final java.nio.MappedByteBuffer mapa;
+    private final int quantidade;
+    private final int inicioHeap;
+    private final Cache<Integer, Livro> materializados = new Cache<>(LIMITE_MATERIALIZADOS);
+    private volatile IndiceRegistros indice;
+    // O arquivo é somente leitura; remoções ficam registradas em memória
+    private final java.util.Set<Integer> removidos = java.util.concurrent.ConcurrentHashMap.newKeySet();
+    
+    // Índice dos registros, montado na primeira busca (abrir continua O(1)):
+    // tokens de título e autor para busca por prefixo, e valores exatos de
+    // categoria e autor. Cada lista traz os índices dos registros em ordem
+    // crescente (que é a ordem de id), em int[] sem boxing
+    private static final class IndiceRegistros {
+        final java.util.NavigableMap<String, int[]> tokensTitulo = new java.util.TreeMap<>();
+        final java.util.NavigableMap<String, int[]> tokensAutor = new java.util.TreeMap<>();
+        final java.util.Map<String, int[]> porCategoria = new java.util.HashMap<>();
+        final java.util.Map<String, int[]> porAutor = new java.util.HashMap<>();
+    }
+    
+    // Lista de registros em construção
+    private static final class Postagem {
+        int[] registros = new int[4];
+        int tamanho;
+        
+        void acrescentar(int registro) {
+            // Um registro com o mesmo token duas vezes entra uma vez
+            if (tamanho > 0 && registros[tamanho - 1] == registro) {
+                return;
+            }
+            if (tamanho == registros.length) {
+                registros = java.util.Arrays.copyOf(registros, tamanho * 2);
+            }
+            registros[tamanho++] = registro;
+        }
+        
+        int[] fechar() {
+            return java.util.Arrays.copyOf(registros, tamanho);
+        }
+    }
+    
+    // Um cabeçalho inconsistente com o tamanho do arquivo é catálogo truncado
+    // ou corrompido: falha aqui, e não num acesso fora do mapeamento depois
+    private CatalogoMapeado(java.nio.MappedByteBuffer mapa) throws java.io.IOException {
+        if (mapa.capacity() < TAMANHO_CABECALHO || mapa.getInt(0) != MAGICO) {
+            throw new java.io.IOException("Arquivo não é um catálogo binário");
+        }
+        if (mapa.getInt(4) != VERSAO_FORMATO) {
+            throw new java.io.IOException("Versão de catálogo não suportada: " + mapa.getInt(4));
+        }
+        if (mapa.getInt(12) != TAMANHO_REGISTRO) {
+            throw new java.io.IOException("Tamanho de registro inesperado: " + mapa.getInt(12));
+        }
+        int quantidade = mapa.getInt(8);
+        long inicioHeap = mapa.getLong(16);
+        long fimRegistros = TAMANHO_CABECALHO + (long) quantidade * TAMANHO_REGISTRO;
+        if (quantidade < 0 || fimRegistros > inicioHeap || inicioHeap > mapa.capacity()) {
+            throw new java.io.IOException("Cabeçalho de catálogo inconsistente: " + quantidade
+                + " registros, heap em " + inicioHeap + ", arquivo de " + mapa.capacity() + " bytes");
+        }
+        this.mapa = mapa;
+        this.quantidade = quantidade;
+        this.inicioHeap = (int) inicioHeap;
+    }
+    
+    public static CatalogoMapeado abrir(java.nio.file.Path arquivo) throws java.io.IOException {
+        try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(
+                arquivo, java.nio.file.StandardOpenOption.READ)) {
+            // O mapeamento continua válido depois de fechar o canal
+            return new CatalogoMapeado(canal.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, canal.size()));
+        }
+    }
+    
+    // Grava o snapshot; um único mapeamento limita o arquivo a 2 GB
+    public static void gravar(java.nio.file.Path arquivo, java.util.Collection<? extends Livro> livros)
+            throws java.io.IOException {
+        Livro[] ordenados = livros.toArray(new Livro[0]);
+        java.util.Arrays.sort(ordenados, java.util.Comparator.comparingLong(Livro::getId));
+        
+        java.io.ByteArrayOutputStream heap = new java.io.ByteArrayOutputStream();
+        java.util.Map<String, Integer> deduplicados = new java.util.HashMap<>();
+        java.nio.ByteBuffer registros = java.nio.ByteBuffer.allocate(
+            Math.multiplyExact(ordenados.length, TAMANHO_REGISTRO));
+        
+        for (Livro livro : ordenados) {
+            int base = registros.position();
+            registros.putLong(base + OFS_ID, livro.getId());
+            registros.putLong(base + OFS_USUARIO_RESERVA, livro.usuarioReservaId);
+            registros.put(base + OFS_DISPONIVEL, (byte) (livro.isDisponivel() ? 1 : 0));
+            String local = null;
+            String estado = null;
+            if (livro instanceof LivroDigital) {
+                LivroDigital digital = (LivroDigital) livro;
+                registros.put(base + OFS_TIPO, TIPO_DIGITAL);
+                registros.putInt(base + OFS_LICENCAS, digital.getLicencasDisponiveis());
+                registros.putInt(base + OFS_LICENCAS_EM_USO, digital.getLicencasEmUso());
+                registros.putLong(base + OFS_TAMANHO_MB, digital.getTamanhoMB());
+                local = digital.getCaminhoArquivo();
+            } else if (livro instanceof LivroFisico) {
+                LivroFisico fisico = (LivroFisico) livro;
+                registros.put(base + OFS_TIPO, TIPO_FISICO);
+                local = fisico.getLocalizacao();
+                estado = fisico.getEstado();
+            } else {
+                throw new IllegalArgumentException("Tipo de livro não suportado: " + livro.getTipoMidia());
+            }
+            String[] textos = { livro.getTitulo(), livro.getAutor(), livro.getIsbn(),
+                                livro.getCategoria(), local, estado, livro.dataReserva };
+            for (int i = 0; i < textos.length; i++) {
+                registros.putInt(base + OFS_TEXTOS + 4 * i, anexarTexto(heap, deduplicados, textos[i]));
+            }
+            registros.position(base + TAMANHO_REGISTRO);
+        }
+        registros.flip();
+        
+        long inicioHeap = TAMANHO_CABECALHO + (long) ordenados.length * TAMANHO_REGISTRO;
+        if (inicioHeap + heap.size() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Catálogo excede o limite de 2 GB de um mapeamento");
+        }
+        java.nio.ByteBuffer cabecalho = java.nio.ByteBuffer.allocate(TAMANHO_CABECALHO);
+        cabecalho.putInt(MAGICO).putInt(VERSAO_FORMATO).putInt(ordenados.length)
+                 .putInt(TAMANHO_REGISTRO).putLong(inicioHeap).putLong(0L);
+        cabecalho.flip();
+        
+        java.nio.file.Path temporario = arquivo.resolveSibling(arquivo.getFileName() + ".tmp");
+        try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(temporario,
+                java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE,
+                java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (java.nio.ByteBuffer parte : new java.nio.ByteBuffer[] {
+                    cabecalho, registros, java.nio.ByteBuffer.wrap(heap.toByteArray()) }) {
+                while (parte.hasRemaining()) {
+                    canal.write(parte);
+                }
+            }
+            canal.force(true);
+        }
+        java.nio.file.Files.move(temporario, arquivo, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                                 java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    public int tamanho() {
+        return quantidade;
+    }
+    
+    // Conta os registros direto do mapa, sem materializar livros nem
+    // decodificar a mesma categoria mais de uma vez. Livros marcados como
+    // removidos também entram: a remoção já descontou o estado deles
+    public void acumularEstatisticas(EstatisticasBiblioteca estatisticas) {
+        java.util.Map<Integer, String> categorias = new java.util.HashMap<>();
+        for (int i = 0; i < quantidade; i++) {
+            int base = registro(i);
+            int referencia = mapa.getInt(base + OFS_TEXTOS + 4 * TEXTO_CATEGORIA);
+            String categoria = categorias.computeIfAbsent(referencia, this::textoDoHeap);
+            estatisticas.contarLivro(mapa.get(base + OFS_TIPO) == TIPO_DIGITAL ? "LivroDigital" : "LivroFisico",
+                                     categoria, mapa.get(base + OFS_DISPONIVEL) != 0, 1);
+        }
+    }
+    
+    // Leituras diretas do mapa, sem materializar o livro
+    public long getId(int indice) {
+        return mapa.getLong(registro(indice) + OFS_ID);
+    }
+    
+    public String getTitulo(int indice) {
+        return texto(indice, TEXTO_TITULO);
+    }
+    
+    public String getAutor(int indice) {
+        return texto(indice, TEXTO_AUTOR);
+    }
+    
+    public String getCategoria(int indice) {
+        return texto(indice, TEXTO_CATEGORIA);
+    }
+    
+    public String getIsbn(int indice) {
+        return texto(indice, TEXTO_ISBN);
+    }
+    
+    public String getTipoMidia(int indice) {
+        return mapa.get(registro(indice) + OFS_TIPO) == TIPO_DIGITAL ? "LivroDigital" : "LivroFisico";
+    }
+    
+    public boolean isDisponivel(int indice) {
+        return mapa.get(registro(indice) + OFS_DISPONIVEL) != 0;
+    }
+    
+    // Maior id do catálogo; os registros estão ordenados
+    public long getMaiorId() {
+        return quantidade == 0 ? 0 : getId(quantidade - 1);
+    }
+    
+    // Busca binária pelo id sobre os registros ordenados; -1 se ausente
+    public int indiceDe(long id) {
+        int baixo = 0;
+        int alto = quantidade - 1;
+        while (baixo <= alto) {
+            int meio = (baixo + alto) >>> 1;
+            long atual = getId(meio);
+            if (atual < id) {
+                baixo = meio + 1;
+            } else if (atual > id) {
+                alto = meio - 1;
+            } else {
+                return meio;
+            }
+        }
+        return -1;
+    }
+    
+    // Índice do primeiro registro com id maior que o dado (busca binária)
+    public int primeiroApos(long id) {
+        int baixo = 0;
+        int alto = quantidade;
+        while (baixo < alto) {
+            int meio = (baixo + alto) >>> 1;
+            if (getId(meio) <= id) {
+                baixo = meio + 1;
+            } else {
+                alto = meio;
+            }
+        }
+        return baixo;
+    }
+    
+    public Livro buscarPorId(long id) {
+        int indice = indiceDe(id);
+        return indice < 0 || removidos.contains(indice) ? null : obter(indice);
+    }
+    
+    // Como buscarPorId, sem guardar no cache
+    public Livro lerPorId(long id) {
+        int indice = indiceDe(id);
+        return indice < 0 || removidos.contains(indice) ? null : ler(indice);
+    }
+    
+    // Retorna false se o id não está no catálogo ou já foi removido
+    public boolean marcarRemovido(long id) {
+        int indice = indiceDe(id);
+        return indice >= 0 && removidos.add(indice);
+    }
+    
+    public boolean isRemovido(int indice) {
+        return removidos.contains(indice);
+    }
+    
+    // Percorre os registros no mapa e materializa só os que passam no filtro
+    public java.util.List<Livro> filtrar(java.util.function.IntPredicate filtro, int limite) {
+        return filtrar(null, 0, filtro, limite);
+    }
+    
+    // A partir do índice 'inicio'; com primeiroApos() pagina por id
+    public java.util.List<Livro> filtrar(int inicio, java.util.function.IntPredicate filtro, int limite) {
+        return filtrar(null, inicio, filtro, limite);
+    }
+    
+    // Só os registros da lista (crescente; null = todos) a partir de 'inicio'
+    public java.util.List<Livro> filtrar(int[] registros, int inicio, java.util.function.IntPredicate filtro, int limite) {
+        java.util.List<Livro> resultado = new java.util.ArrayList<>();
+        registrosApos(registros, inicio).filter(filtro).limit(limite)
+                                        .forEach(i -> resultado.add(ler(i)));
+        return resultado;
+    }
+    
+    // Registros não removidos da lista (null = todos) a partir de 'inicio', em ordem
+    public java.util.stream.IntStream registrosApos(int[] registros, int inicio) {
+        java.util.stream.IntStream fluxo;
+        if (registros == null) {
+            fluxo = java.util.stream.IntStream.range(Math.max(0, inicio), quantidade);
+        } else {
+            int posicao = java.util.Arrays.binarySearch(registros, inicio);
+            fluxo = java.util.Arrays.stream(registros, posicao < 0 ? -posicao - 1 : posicao, registros.length);
+        }
+        return fluxo.filter(i -> !removidos.contains(i));
+    }
+    
+    // Registros com exatamente a categoria / o autor, em ordem (não copiar)
+    public int[] registrosPorCategoria(String categoria) {
+        int[] registros = indice().porCategoria.get(categoria);
+        return registros != null ? registros : new int[0];
+    }
+    
+    public int[] registrosPorAutor(String autor) {
+        int[] registros = indice().porAutor.get(autor);
+        return registros != null ? registros : new int[0];
+    }
+    
+    // Pontuação de cada registro que casa com todos os tokens, com os mesmos
+    // pesos do MotorBusca; null para consulta sem tokens. Removidos ficam de fora
+    public java.util.Map<Integer, Integer> pontuar(String titulo, String autor) {
+        IndiceRegistros indice = indice();
+        java.util.Map<Integer, Integer> pontuacao = null;
+        for (String token : MotorBusca.tokenizar(titulo)) {
+            pontuacao = intersectar(pontuacao, correspondencias(indice.tokensTitulo, token));
+        }
+        if (autor != null) {
+            for (String token : MotorBusca.tokenizar(autor)) {
+                pontuacao = intersectar(pontuacao, correspondencias(indice.tokensAutor, token));
+            }
+        }
+        if (pontuacao != null) {
+            pontuacao.keySet().removeIf(removidos::contains);
+        }
+        return pontuacao;
+    }
+    
+    // Registros que casam com a consulta, em ordem; null para consulta sem tokens
+    public int[] registrosCorrespondentes(String titulo, String autor) {
+        java.util.Map<Integer, Integer> pontuacao = pontuar(titulo, autor);
+        if (pontuacao == null) {
+            return null;
+        }
+        int[] registros = pontuacao.keySet().stream().mapToInt(Integer::intValue).toArray();
+        java.util.Arrays.sort(registros);
+        return registros;
+    }
+    
+    // Livro do registro: o materializado em cache ou uma leitura nova, que
+    // não entra no cache (varreduras não o enchem)
+    public Livro ler(int indice) {
+        Livro livro = materializados.obter(indice);
+        return livro != null ? livro : materializar(verificarIndice(indice));
+    }
+    
+    // Materializa o LivroFisico/LivroDigital do registro, guardando no cache
+    public Livro obter(int indice) {
+        Livro livro = materializados.obter(verificarIndice(indice));
+        if (livro == null) {
+            livro = materializar(indice);
+            materializados.armazenar(indice, livro);
+        }
+        return livro;
+    }
+    
+    public int getQuantidadeMaterializada() {
+        return materializados.tamanho();
+    }
+    
+    private int verificarIndice(int indice) {
+        if (indice < 0 || indice >= quantidade) {
+            throw new IndexOutOfBoundsException("Índice fora do catálogo: " + indice);
+        }
+        return indice;
+    }
+    
+    private IndiceRegistros indice() {
+        IndiceRegistros atual = indice;
+        if (atual == null) {
+            synchronized (this) {
+                atual = indice;
+                if (atual == null) {
+                    indice = atual = construirIndice();
+                }
+            }
+        }
+        return atual;
+    }
+    
+    // Uma passada pelos registros; autor e categoria são deduplicados no
+    // heap, então cada texto distinto é decodificado (e tokenizado) uma vez
+    private IndiceRegistros construirIndice() {
+        java.util.Map<String, Postagem> tokensTitulo = new java.util.HashMap<>();
+        java.util.Map<String, Postagem> tokensAutor = new java.util.HashMap<>();
+        java.util.Map<String, Postagem> porCategoria = new java.util.HashMap<>();
+        java.util.Map<String, Postagem> porAutor = new java.util.HashMap<>();
+        java.util.Map<Integer, String> textos = new java.util.HashMap<>();
+        java.util.Map<Integer, java.util.List<String>> tokensPorAutor = new java.util.HashMap<>();
+        for (int i = 0; i < quantidade; i++) {
+            int base = registro(i);
+            for (String token : MotorBusca.tokenizar(texto(i, TEXTO_TITULO))) {
+                tokensTitulo.computeIfAbsent(token, t -> new Postagem()).acrescentar(i);
+            }
+            int referenciaAutor = mapa.getInt(base + OFS_TEXTOS + 4 * TEXTO_AUTOR);
+            String autor = textos.computeIfAbsent(referenciaAutor, this::textoDoHeap);
+            for (String token : tokensPorAutor.computeIfAbsent(referenciaAutor, r -> MotorBusca.tokenizar(autor))) {
+                tokensAutor.computeIfAbsent(token, t -> new Postagem()).acrescentar(i);
+            }
+            String categoria = textos.computeIfAbsent(mapa.getInt(base + OFS_TEXTOS + 4 * TEXTO_CATEGORIA),
+                                                      this::textoDoHeap);
+            if (autor != null) {
+                porAutor.computeIfAbsent(autor, t -> new Postagem()).acrescentar(i);
+            }
+            if (categoria != null) {
+                porCategoria.computeIfAbsent(categoria, t -> new Postagem()).acrescentar(i);
+            }
+        }
+        IndiceRegistros novo = new IndiceRegistros();
+        tokensTitulo.forEach((token, postagem) -> novo.tokensTitulo.put(token, postagem.fechar()));
+        tokensAutor.forEach((token, postagem) -> novo.tokensAutor.put(token, postagem.fechar()));
+        porCategoria.forEach((valor, postagem) -> novo.porCategoria.put(valor, postagem.fechar()));
+        porAutor.forEach((valor, postagem) -> novo.porAutor.put(valor, postagem.fechar()));
+        return novo;
+    }
+    
+    private static java.util.Map<Integer, Integer> correspondencias(java.util.NavigableMap<String, int[]> tokens,
+                                                                    String token) {
+        java.util.Map<Integer, Integer> encontrados = new java.util.HashMap<>();
+        for (java.util.Map.Entry<String, int[]> entrada : MotorBusca.termosQueCasam(tokens, token).entrySet()) {
+            int pontos = entrada.getKey().equals(token) ? MotorBusca.PONTOS_TOKEN_EXATO : MotorBusca.PONTOS_PREFIXO;
+            for (int registro : entrada.getValue()) {
+                encontrados.merge(registro, pontos, Math::max);
+            }
+        }
+        return encontrados;
+    }
+    
+    private static java.util.Map<Integer, Integer> intersectar(java.util.Map<Integer, Integer> acumulado,
+                                                               java.util.Map<Integer, Integer> parcial) {
+        if (acumulado == null) {
+            return parcial;
+        }
+        java.util.Map<Integer, Integer> resultado = new java.util.HashMap<>();
+        acumulado.forEach((registro, pontos) -> {
+            Integer outro = parcial.get(registro);
+            if (outro != null) {
+                resultado.put(registro, pontos + outro);
+            }
+        });
+        return resultado;
+    }
+    
+    private Livro materializar(int indice) {
+        int base = registro(indice);
+        // Ordem de inclusão: licencasDisponiveis precisa vir antes de licencasEmUso
+        java.util.Map<String, String> campos = new java.util.LinkedHashMap<>();
+        boolean digital = mapa.get(base + OFS_TIPO) == TIPO_DIGITAL;
+        campos.put("tipo", digital ? "LivroDigital" : "LivroFisico");
+        campos.put("id", Long.toString(mapa.getLong(base + OFS_ID)));
+        campos.put("titulo", texto(indice, TEXTO_TITULO));
+        campos.put("autor", texto(indice, TEXTO_AUTOR));
+        campos.put("isbn", texto(indice, TEXTO_ISBN));
+        campos.put("categoria", texto(indice, TEXTO_CATEGORIA));
+        campos.put("disponivel", Boolean.toString(mapa.get(base + OFS_DISPONIVEL) != 0));
+        campos.put("usuarioReservaId", Long.toString(mapa.getLong(base + OFS_USUARIO_RESERVA)));
+        campos.put("dataReserva", texto(indice, TEXTO_DATA_RESERVA));
+        if (digital) {
+            campos.put("caminhoArquivo", texto(indice, TEXTO_LOCAL));
+            campos.put("tamanhoMB", Long.toString(mapa.getLong(base + OFS_TAMANHO_MB)));
+            campos.put("licencasDisponiveis", Integer.toString(mapa.getInt(base + OFS_LICENCAS)));
+            campos.put("licencasEmUso", Integer.toString(mapa.getInt(base + OFS_LICENCAS_EM_USO)));
+        } else {
+            campos.put("localizacao", texto(indice, TEXTO_LOCAL));
+            campos.put("estado", texto(indice, TEXTO_ESTADO));
+        }
+        return (Livro) RestauradorJson.criar(campos);
+    }
+    
+    private int registro(int indice) {
+        return TAMANHO_CABECALHO + indice * TAMANHO_REGISTRO;
+    }
+    
+    private String texto(int indice, int campo) {
+        return textoDoHeap(mapa.getInt(registro(indice) + OFS_TEXTOS + 4 * campo));
+    }
+    
+    private String textoDoHeap(int referencia) {
+        if (referencia == SEM_TEXTO) {
+            return null;
+        }
+        int posicao = inicioHeap + referencia;
+        byte[] bytes = new byte[mapa.getInt(posicao)];
+        mapa.get(posicao + 4, bytes);
+        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+    
+    private static int anexarTexto(java.io.ByteArrayOutputStream heap, java.util.Map<String, Integer> deduplicados,
+                                   String texto) {
+        if (texto == null) {
+            return SEM_TEXTO;
+        }
+        Integer existente = deduplicados.get(texto);
+        if (existente != null) {
+            return existente;
+        }
+        int referencia = heap.size();
+        byte[] bytes = texto.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        heap.write(bytes.length >>> 24);
+        heap.write(bytes.length >>> 16);
+        heap.write(bytes.length >>> 8);
+        heap.write(bytes.length);
+        heap.write(bytes, 0, bytes.length);
+        deduplicados.put(texto, referencia);
+        return referencia;
+    }
+}
+
+// Estatísticas agregadas do acervo e das reservas, mantidas incrementalmente
+// pelo SistemaBiblioteca a cada inclusão, reserva e liberação. Contadores
+// LongAdder aceitam atualizações concorrentes sem disputa; os relatórios
+// leem os totais sem percorrer livros ou reservas
+class EstatisticasBiblioteca {
+    public static final String SEM_CATEGORIA = "(sem categoria)";
+    
+    private final java.util.concurrent.atomic.LongAdder totalLivros = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder livrosDisponiveis = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder totalReservas = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.ConcurrentMap<String, java.util.concurrent.atomic.LongAdder> livrosPorTipo =
+        new java.util.concurrent.ConcurrentHashMap<>();
+    private final java.util.concurrent.ConcurrentMap<String, java.util.concurrent.atomic.LongAdder> livrosPorCategoria =
+        new java.util.concurrent.ConcurrentHashMap<>();
+    private final java.util.concurrent.ConcurrentMap<String, java.util.concurrent.atomic.LongAdder> reservasPorStatus =
+        new java.util.concurrent.ConcurrentHashMap<>();
+    
+    // Uma única passada, para relatórios construídos a partir de listas
+    public static EstatisticasBiblioteca deLivros(java.util.Collection<? extends Livro> livros) {
+        EstatisticasBiblioteca estatisticas = new EstatisticasBiblioteca();
+        livros.forEach(estatisticas::livroAdicionado);
+        return estatisticas;
+    }
+    
+    public static EstatisticasBiblioteca deReservas(java.util.Collection<Reserva> reservas) {
+        EstatisticasBiblioteca estatisticas = new EstatisticasBiblioteca();
+        reservas.forEach(estatisticas::reservaAdicionada);
+        return estatisticas;
+    }
+    
+    public void livroAdicionado(Livro livro) {
+        contarLivro(livro.getTipoMidia(), livro.getCategoria(), livro.isDisponivel(), 1);
+    }
+    
+    public void livroRemovido(Livro livro) {
+        contarLivro(livro.getTipoMidia(), livro.getCategoria(), livro.isDisponivel(), -1);
+    }
+    
+    // Usado também pelo CatalogoMapeado, que conta sem materializar os livros
+    void contarLivro(String tipoMidia, String categoria, boolean disponivel, long delta) {
+        totalLivros.add(delta);
+        if (disponivel) {
+            livrosDisponiveis.add(delta);
+        }
+        contador(livrosPorTipo, tipoMidia).add(delta);
+        contador(livrosPorCategoria, categoria != null ? categoria : SEM_CATEGORIA).add(delta);
+    }
+    
+    public void disponibilidadeAlterada(boolean disponivelAgora) {
+        livrosDisponiveis.add(disponivelAgora ? 1 : -1);
+    }
+    
+    public void reservaAdicionada(Reserva reserva) {
+        totalReservas.increment();
+        contador(reservasPorStatus, reserva.getStatus()).increment();
+    }
+    
+    public void reservaRemovida(Reserva reserva) {
+        totalReservas.decrement();
+        contador(reservasPorStatus, reserva.getStatus()).decrement();
+    }
+    
+    public void statusReservaAlterado(String anterior, String novo) {
+        contador(reservasPorStatus, anterior).decrement();
+        contador(reservasPorStatus, novo).increment();
+    }
+    
+    public long getTotalLivros() {
+        return totalLivros.sum();
+    }
+    
+    public long getLivros(String tipoMidia) {
+        return soma(livrosPorTipo, tipoMidia);
+    }
+    
+    public long getLivrosDisponiveis() {
+        return livrosDisponiveis.sum();
+    }
+    
+    public long getLivrosReservados() {
+        return getTotalLivros() - getLivrosDisponiveis();
+    }
+    
+    public long getLivrosDaCategoria(String categoria) {
+        return soma(livrosPorCategoria, categoria != null ? categoria : SEM_CATEGORIA);
+    }
+    
+    // Categorias em ordem alfabética; as que ficaram vazias são omitidas
+    public java.util.Map<String, Long> getLivrosPorCategoria() {
+        java.util.Map<String, Long> resultado = new java.util.TreeMap<>();
+        livrosPorCategoria.forEach((categoria, contador) -> {
+            long total = contador.sum();
+            if (total != 0) {
+                resultado.put(categoria, total);
+            }
+        });
+        return resultado;
+    }
+    
+    public long getTotalReservas() {
+        return totalReservas.sum();
+    }
+    
+    public long getReservas(String status) {
+        return soma(reservasPorStatus, status);
+    }
+    
+    private static java.util.concurrent.atomic.LongAdder contador(
+            java.util.concurrent.ConcurrentMap<String, java.util.concurrent.atomic.LongAdder> contadores, String chave) {
+        java.util.concurrent.atomic.LongAdder contador = contadores.get(chave);
+        return contador != null ? contador
+            : contadores.computeIfAbsent(chave, c -> new java.util.concurrent.atomic.LongAdder());
+    }
+    
+    private static long soma(java.util.concurrent.ConcurrentMap<String, java.util.concurrent.atomic.LongAdder> contadores,
+                             String chave) {
+        java.util.concurrent.atomic.LongAdder contador = contadores.get(chave);
+        return contador != null ? contador.sum() : 0;
+    }
+}
+
+// Despachante assíncrono de notificações. Quem notifica só enfileira; a
+// entrega acontece em threads trabalhadoras, em lotes por destinatário.
+// Cada destinatário cai sempre na mesma fila (e no mesmo trabalhador), o
+// que preserva a ordem das mensagens de cada um
+class DespachanteNotificacoes implements AutoCloseable {
+    // O que fazer quando a fila do destinatário está cheia
+    enum PoliticaFila {
+        BLOQUEAR,   // quem notifica espera por espaço
+        DESCARTAR,  // a mensagem é descartada e contabilizada
+        COALESCER   // mensagens excedentes viram um resumo por destinatário
+    }
+    
+    private static final int TAMANHO_LOTE = 64;
+    private static final long ESPERA_MILLIS = 100;
+    
+    private static final class Envio {
+        final Notificavel destinatario;
+        final String mensagem;
+        
+        Envio(Notificavel destinatario, String mensagem) {
+            this.destinatario = destinatario;
+            this.mensagem = mensagem;
+        }
+    }
+    
+    // Excedentes coalescidos: só a quantidade e a última mensagem
+    private static final class Resumo {
+        int quantidade;
+        String ultimaMensagem;
+    }
+    
+    private final PoliticaFila politica;
+    private final java.util.concurrent.BlockingQueue<Envio>[] filas;
+    private final java.util.concurrent.ConcurrentMap<Notificavel, Resumo>[] excedentes;
+    private final Thread[] trabalhadores;
+    private volatile boolean encerrado;
+    private final java.util.concurrent.atomic.LongAdder entregues = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder descartadas = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder coalescidas = new java.util.concurrent.atomic.LongAdder();
+    // Falhas de entrega vão para o log de operações, não para a saída padrão
+    private volatile RegistroOperacoes registro = RegistroOperacoes.compartilhado();
+    
+    public DespachanteNotificacoes() {
+        this(1024, 2, PoliticaFila.COALESCER);
+    }
+    
+    // A capacidade total é dividida igualmente entre as filas dos trabalhadores
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DespachanteNotificacoes(int capacidade, int quantidadeTrabalhadores, PoliticaFila politica) {
+        if (capacidade < quantidadeTrabalhadores || quantidadeTrabalhadores < 1) {
+            throw new IllegalArgumentException("Capacidade e trabalhadores inválidos");
+        }
+        this.politica = politica;
+        this.filas = new java.util.concurrent.BlockingQueue[quantidadeTrabalhadores];
+        this.excedentes = new java.util.concurrent.ConcurrentMap[quantidadeTrabalhadores];
+        this.trabalhadores = new Thread[quantidadeTrabalhadores];
+        for (int i = 0; i < quantidadeTrabalhadores; i++) {
+            filas[i] = new java.util.concurrent.ArrayBlockingQueue<>(capacidade / quantidadeTrabalhadores);
+            excedentes[i] = new java.util.concurrent.ConcurrentHashMap<>();
+            int indice = i;
+            trabalhadores[i] = new Thread(() -> trabalhar(indice), "notificacoes-" + i);
+            trabalhadores[i].setDaemon(true);
+            trabalhadores[i].start();
+        }
+    }
+    
+    // Retorna false se o destinatário não aceita notificações, se o
+    // despachante foi encerrado ou se a mensagem foi descartada
+    public boolean enviar(Notificavel destinatario, String mensagem) {
+        if (encerrado || !destinatario.aceitaNotificacoes()) {
+            return false;
+        }
+        int indice = indice(destinatario);
+        Envio envio = new Envio(destinatario, mensagem);
+        // Com resumo pendente, a mensagem entra nele para não ultrapassar as anteriores
+        if (!excedentes[indice].containsKey(destinatario) && filas[indice].offer(envio)) {
+            return true;
+        }
+        switch (politica) {
+            case BLOQUEAR:
+                try {
+                    filas[indice].put(envio);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    descartadas.increment();
+                    return false;
+                }
+            case COALESCER:
+                excedentes[indice].compute(destinatario, (d, resumo) -> {
+                    Resumo atual = resumo != null ? resumo : new Resumo();
+                    atual.quantidade++;
+                    atual.ultimaMensagem = mensagem;
+                    return atual;
+                });
+                coalescidas.increment();
+                return true;
+            default:
+                descartadas.increment();
+                return false;
+        }
+    }
+    
+    public long getEntregues() { return entregues.sum(); }
+    public long getDescartadas() { return descartadas.sum(); }
+    public long getCoalescidas() { return coalescidas.sum(); }
+    
+    // O dono do registro (ex.: SistemaBiblioteca) é quem o fecha
+    public void configurarRegistro(RegistroOperacoes registro) {
+        this.registro = registro;
+    }
+    
+    // Para de aceitar mensagens e espera os trabalhadores esvaziarem as filas
+    @Override
+    public void close() {
+        encerrado = true;
+        for (Thread trabalhador : trabalhadores) {
+            try {
+                trabalhador.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    private int indice(Notificavel destinatario) {
+        int h = System.identityHashCode(destinatario) * 0x9E3779B9;
+        return (h >>> 16) % filas.length;
+    }
+    
+    private void trabalhar(int indice) {
+        java.util.concurrent.BlockingQueue<Envio> fila = filas[indice];
+        java.util.List<Envio> lote = new java.util.ArrayList<>(TAMANHO_LOTE);
+        while (true) {
+            try {
+                Envio primeiro = fila.poll(ESPERA_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS);
+                if (primeiro != null) {
+                    lote.add(primeiro);
+                    fila.drainTo(lote, TAMANHO_LOTE - 1);
+                    entregarLote(lote);
+                    lote.clear();
+                }
+                // Resumos só depois de esvaziar a fila, que só tem mensagens mais antigas
+                if (fila.isEmpty()) {
+                    entregarExcedentes(excedentes[indice]);
+                }
+                if (primeiro == null && encerrado && fila.isEmpty()) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+    
+    // Agrupa o lote por destinatário, mantendo a ordem de chegada
+    private void entregarLote(java.util.List<Envio> lote) {
+        java.util.Map<Notificavel, java.util.List<String>> porDestinatario = new java.util.IdentityHashMap<>();
+        for (Envio envio : lote) {
+            porDestinatario.computeIfAbsent(envio.destinatario, d -> new java.util.ArrayList<>()).add(envio.mensagem);
+        }
+        porDestinatario.forEach(this::entregar);
+    }
+    
+    private void entregarExcedentes(java.util.concurrent.ConcurrentMap<Notificavel, Resumo> pendentes) {
+        for (Notificavel destinatario : pendentes.keySet()) {
+            Resumo resumo = pendentes.remove(destinatario);
+            if (resumo != null) {
+                entregar(destinatario, java.util.Collections.singletonList(resumo.quantidade == 1
+                    ? resumo.ultimaMensagem
+                    : resumo.quantidade + " notificações agrupadas; última: " + resumo.ultimaMensagem));
+            }
+        }
+    }
+    
+    // Uma falha na entrega não derruba o trabalhador
+    private void entregar(Notificavel destinatario, java.util.List<String> mensagens) {
+        try {
+            destinatario.receberNotificacoes(mensagens);
+            entregues.add(mensagens.size());
+        } catch (RuntimeException e) {
+            descartadas.add(mensagens.size());
+            registro.registrarRejeicao("Falha ao entregar notificação: " + e.getMessage(), mensagens.size());
+        }
+    }
+}
+
+// Relógio grosso: uma thread de fundo atualiza o instante a cada
+// milissegundo e quem registra lê um volatile, sem chamada ao sistema. A
+// thread nasce na primeira leitura e termina depois de um segundo sem
+// leituras; a leitura seguinte a recria
+final class RelogioGrosso {
+    private static final int VOLTAS_OCIOSAS = 1000;
+    
+    private static volatile long agoraMillis;
+    // Marcado pelos leitores (só quando ainda falso) e zerado pela thread a
+    // cada VOLTAS_OCIOSAS voltas
+    private static volatile boolean lido;
+    private static final java.util.concurrent.atomic.AtomicBoolean ativo =
+        new java.util.concurrent.atomic.AtomicBoolean();
+    
+    private RelogioGrosso() {
+    }
+    
+    public static long agoraMillis() {
+        if (!ativo.get()) {
+            return iniciar();
+        }
+        if (!lido) {
+            lido = true;
+        }
+        return agoraMillis;
+    }
+    
+    private static long iniciar() {
+        long agora = System.currentTimeMillis();
+        agoraMillis = agora;
+        lido = true;
+        if (ativo.compareAndSet(false, true)) {
+            Thread atualizador = new Thread(RelogioGrosso::atualizar, "relogio-grosso");
+            atualizador.setDaemon(true);
+            atualizador.start();
+        }
+        return agora;
+    }
+    
+    private static void atualizar() {
+        int voltas = 0;
+        while (true) {
+            agoraMillis = System.currentTimeMillis();
+            java.util.concurrent.locks.LockSupport.parkNanos(1_000_000L);
+            if (++voltas == VOLTAS_OCIOSAS) {
+                voltas = 0;
+                if (!lido) {
+                    ativo.set(false);
+                    return;
+                }
+                lido = false;
+            }
+        }
+    }
+}
+
+// Log de operações assíncrono. Quem registra só reserva um slot no anel
+// pré-alocado (CAS, sem trava) e grava referências e números nele; a
+// formatação e a escrita acontecem numa thread de fundo. Com o anel cheio
+// a entrada é descartada e contabilizada, nunca bloqueia o chamador.
+// Os sistemas compartilham um único registro (compartilhado()), gravado no
+// arquivo rotativo operacoes.log; só registros próprios são fechados
+class RegistroOperacoes implements AutoCloseable {
+    // Destino das linhas formatadas; chamado só pela thread de fundo
+    interface Destino extends java.io.Closeable {
+        void escrever(CharSequence linha) throws java.io.IOException;
+        void descarregar() throws java.io.IOException;
+    }
+    
+    static class DestinoSaidaPadrao implements Destino {
+        @Override
+        public void escrever(CharSequence linha) {
+            System.out.append(linha).append('\n');
+        }
+        
+        @Override
+        public void descarregar() {
+            System.out.flush();
+        }
+        
+        @Override
+        public void close() {
+            System.out.flush();
+        }
+    }
+    
+    // Arquivo rotativo: ao passar de tamanhoMaximo bytes, operacoes.log vira
+    // operacoes.log.1, o .1 vira .2 e assim por diante até quantidadeArquivos;
+    // com um só arquivo, ele é truncado
+    static class DestinoArquivoRotativo implements Destino {
+        private final java.nio.file.Path arquivo;
+        private final long tamanhoMaximo;
+        private final int quantidadeArquivos;
+        private java.io.Writer saida;
+        private java.nio.channels.FileChannel canal;
+        
+        public DestinoArquivoRotativo(java.nio.file.Path arquivo, long tamanhoMaximo, int quantidadeArquivos)
+                throws java.io.IOException {
+            if (tamanhoMaximo <= 0 || quantidadeArquivos < 1) {
+                throw new IllegalArgumentException("Tamanho e quantidade de arquivos devem ser positivos");
+            }
+            this.arquivo = arquivo;
+            this.tamanhoMaximo = tamanhoMaximo;
+            this.quantidadeArquivos = quantidadeArquivos;
+            abrir();
+        }
+        
+        private void abrir() throws java.io.IOException {
+            canal = java.nio.channels.FileChannel.open(arquivo, java.nio.file.StandardOpenOption.CREATE,
+                java.nio.file.StandardOpenOption.WRITE, java.nio.file.StandardOpenOption.APPEND);
+            saida = new java.io.BufferedWriter(java.nio.channels.Channels.newWriter(
+                canal, java.nio.charset.StandardCharsets.UTF_8), 1 << 16);
+        }
+        
+        @Override
+        public void escrever(CharSequence linha) throws java.io.IOException {
+            saida.append(linha).append('\n');
+        }
+        
+        // A rotação é verificada a cada descarga, sobre o tamanho real do arquivo
+        @Override
+        public void descarregar() throws java.io.IOException {
+            saida.flush();
+            if (canal.size() >= tamanhoMaximo) {
+                saida.close();
+                for (int i = quantidadeArquivos - 1; i >= 1; i--) {
+                    java.nio.file.Path origem = i == 1 ? arquivo : arquivo.resolveSibling(arquivo.getFileName() + "." + (i - 1));
+                    if (java.nio.file.Files.exists(origem)) {
+                        java.nio.file.Files.move(origem, arquivo.resolveSibling(arquivo.getFileName() + "." + i),
+                                                 java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                if (quantidadeArquivos == 1) {
+                    java.nio.file.Files.deleteIfExists(arquivo);
+                }
+                abrir();
+            }
+        }
+        
+        @Override
+        public void close() throws java.io.IOException {
+            saida.close();
+        }
+    }
+    
+    private static final byte NIVEL_OPERACAO = 0;
+    private static final byte NIVEL_REJEICAO = 1;
+    private static final long ESPERA_NANOS = 1_000_000L;
+    // Registro padrão: arquivo (propriedade biblioteca.log) de até 10 MB, 5 gerações
+    private static final long TAMANHO_ARQUIVO_PADRAO = 10L << 20;
+    private static final int ARQUIVOS_PADRAO = 5;
+    
+    // Slots do anel em arrays paralelos; publicados[i] guarda a sequência
+    // escrita no slot e é o ponto de publicação para a thread de fundo
+    private final int mascara;
+    private final long[] instantes;
+    private final byte[] niveis;
+    private final byte[] aridades;
+    private final String[] mensagens;
+    private final long[] argumentos1;
+    private final long[] argumentos2;
+    private final java.util.concurrent.atomic.AtomicLongArray publicados;
+    private final java.util.concurrent.atomic.AtomicLong cursor = new java.util.concurrent.atomic.AtomicLong();
+    private volatile long consumidos;
+    private final java.util.concurrent.atomic.LongAdder descartados = new java.util.concurrent.atomic.LongAdder();
+    
+    private final Destino destino;
+    private final Thread escritor;
+    private final Thread ganchoDesligamento;
+    private final boolean compartilhado;
+    private volatile boolean encerrado;
+    
+    // Criado na primeira chamada a compartilhado()
+    private static final class Padrao {
+        static final RegistroOperacoes INSTANCIA = new RegistroOperacoes(destinoPadrao(), 8192, true);
+        
+        private static Destino destinoPadrao() {
+            java.nio.file.Path arquivo = java.nio.file.Paths.get(System.getProperty("biblioteca.log", "operacoes.log"));
+            try {
+                return new DestinoArquivoRotativo(arquivo, TAMANHO_ARQUIVO_PADRAO, ARQUIVOS_PADRAO);
+            } catch (java.io.IOException e) {
+                reportarFalha(e);
+                return new DestinoSaidaPadrao();
+            }
+        }
+    }
+    
+    // Registro único do processo: uma thread de escrita e um gancho de
+    // desligamento para todos os sistemas; close() nele não tem efeito
+    public static RegistroOperacoes compartilhado() {
+        return Padrao.INSTANCIA;
+    }
+    
+    // A capacidade é arredondada para potência de dois
+    public RegistroOperacoes(Destino destino, int capacidade) {
+        this(destino, capacidade, false);
+    }
+    
+    private RegistroOperacoes(Destino destino, int capacidade, boolean compartilhado) {
+        int tamanho = Integer.highestOneBit(Math.max(capacidade - 1, 1)) << 1;
+        this.mascara = tamanho - 1;
+        this.instantes = new long[tamanho];
+        this.niveis = new byte[tamanho];
+        this.aridades = new byte[tamanho];
+        this.mensagens = new String[tamanho];
+        this.argumentos1 = new long[tamanho];
+        this.argumentos2 = new long[tamanho];
+        this.publicados = new java.util.concurrent.atomic.AtomicLongArray(tamanho);
+        for (int i = 0; i < tamanho; i++) {
+            publicados.set(i, -1);
+        }
+        this.destino = destino;
+        this.compartilhado = compartilhado;
+        this.escritor = new Thread(this::escreverPendentes, "registro-operacoes");
+        this.escritor.setDaemon(true);
+        this.escritor.start();
+        // Garante que as últimas entradas cheguem ao destino na saída da JVM
+        this.ganchoDesligamento = new Thread(this::encerrar);
+        Runtime.getRuntime().addShutdownHook(ganchoDesligamento);
+    }
+    
+    public void registrar(String operacao) {
+        publicar(NIVEL_OPERACAO, operacao, 0, 0, 0);
+    }
+    
+    public void registrar(String operacao, long argumento) {
+        publicar(NIVEL_OPERACAO, operacao, 1, argumento, 0);
+    }
+    
+    public void registrar(String operacao, long argumento1, long argumento2) {
+        publicar(NIVEL_OPERACAO, operacao, 2, argumento1, argumento2);
+    }
+    
+    // Rejeições usam mensagens constantes e ids numéricos: nada é concatenado
+    // na thread de quem registra
+    public void registrarRejeicao(String motivo) {
+        publicar(NIVEL_REJEICAO, motivo, 0, 0, 0);
+    }
+    
+    public void registrarRejeicao(String motivo, long argumento) {
+        publicar(NIVEL_REJEICAO, motivo, 1, argumento, 0);
+    }
+    
+    public void registrarRejeicao(String motivo, long argumento1, long argumento2) {
+        publicar(NIVEL_REJEICAO, motivo, 2, argumento1, argumento2);
+    }
+    
+    public long getDescartados() {
+        return descartados.sum();
+    }
+    
+    private void publicar(byte nivel, String mensagem, int aridade, long argumento1, long argumento2) {
+        long sequencia;
+        do {
+            sequencia = cursor.get();
+            if (sequencia - consumidos > mascara) {
+                descartados.increment();
+                return;
+            }
+        } while (!cursor.compareAndSet(sequencia, sequencia + 1));
+        
+        int slot = (int) sequencia & mascara;
+        instantes[slot] = RelogioGrosso.agoraMillis();
+        niveis[slot] = nivel;
+        aridades[slot] = (byte) aridade;
+        mensagens[slot] = mensagem;
+        argumentos1[slot] = argumento1;
+        argumentos2[slot] = argumento2;
+        publicados.lazySet(slot, sequencia);
+    }
+    
+    // Thread de fundo: consome os slots publicados em ordem de sequência
+    private void escreverPendentes() {
+        StringBuilder linha = new StringBuilder(256);
+        boolean pendenteDescarga = false;
+        while (true) {
+            long sequencia = consumidos;
+            int slot = (int) sequencia & mascara;
+            if (publicados.get(slot) != sequencia) {
+                if (pendenteDescarga) {
+                    pendenteDescarga = !executar(destino::descarregar);
+                }
+                if (encerrado && cursor.get() == sequencia) {
+                    return;
+                }
+                java.util.concurrent.locks.LockSupport.parkNanos(ESPERA_NANOS);
+                continue;
+            }
+            formatar(linha, slot);
+            mensagens[slot] = null;
+            consumidos = sequencia + 1;
+            try {
+                destino.escrever(linha);
+            } catch (java.io.IOException e) {
+                reportarFalha(e);
+            }
+            pendenteDescarga = true;
+        }
+    }
+    
+    private void formatar(StringBuilder linha, int slot) {
+        linha.setLength(0);
+        linha.append(niveis[slot] == NIVEL_REJEICAO ? "❌ REJEIÇÃO: " : "🔍 LOG: ")
+             .append(java.time.LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(instantes[slot]),
+                                                       java.time.ZoneId.systemDefault()))
+             .append(" - ").append(mensagens[slot]);
+        if (aridades[slot] > 0) {
+            linha.append(" [").append(argumentos1[slot]);
+            if (aridades[slot] > 1) {
+                linha.append(", ").append(argumentos2[slot]);
+            }
+            linha.append(']');
+        }
+    }
+    
+    private interface AcaoEs {
+        void executar() throws java.io.IOException;
+    }
+    
+    // Falhas de E/S são reportadas direto no stderr, sem derrubar a thread
+    private static boolean executar(AcaoEs acao) {
+        try {
+            acao.executar();
+            return true;
+        } catch (java.io.IOException e) {
+            reportarFalha(e);
+            return false;
+        }
+    }
+    
+    private static void reportarFalha(java.io.IOException e) {
+        System.err.println("❌ Falha ao gravar o log de operações: " + e.getMessage());
+    }
+    
+    private void encerrar() {
+        encerrado = true;
+        try {
+            escritor.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executar(destino::close);
+    }
+    
+    @Override
+    public void close() {
+        if (compartilhado) {
+            return; // vive até a saída da JVM, descarregado pelo gancho
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(ganchoDesligamento);
+        } catch (IllegalStateException e) {
+            return; // a JVM já está encerrando e o gancho cuida disso
+        }
+        encerrar();
+    }
+}
+
+// Hash de senhas com PBKDF2-HMAC-SHA256, sal aleatório e custo ajustável.
+// Formato armazenado: "pbkdf2$<iterações>$<sal base64>$<hash base64>", de
+// modo que hashes antigos continuam verificáveis depois de mudar o custo
+final class HashSenha {
+    private static final String ALGORITMO = "PBKDF2WithHmacSHA256";
+    private static final String PREFIXO = "pbkdf2";
+    private static final String PREFIXO_LEGADO = "hash_";
+    private static final int BYTES_SAL = 16;
+    private static final int BITS_HASH = 256;
+    private static final java.security.SecureRandom ALEATORIO = new java.security.SecureRandom();
+    
+    // OWASP recomenda 600.000 para PBKDF2-HMAC-SHA256; o padrão favorece
+    // a latência de login e pode ser elevado em produção
+    private static volatile int iteracoes = 210_000;
+    // Custo de senhas provisórias (ex.: dados de demonstração); regravadas
+    // no custo atual no primeiro login
+    static final int CUSTO_PROVISORIO = 1_000;
+    
+    private HashSenha() {
+    }
+    
+    public static void configurarIteracoes(int novasIteracoes) {
+        if (novasIteracoes < 1) {
+            throw new IllegalArgumentException("Iterações devem ser positivas");
+        }
+        iteracoes = novasIteracoes;
+    }
+    
+    public static String gerar(String senha) {
+        return gerar(senha, iteracoes);
+    }
+    
+    static String gerar(String senha, int custo) {
+        byte[] sal = new byte[BYTES_SAL];
+        ALEATORIO.nextBytes(sal);
+        java.util.Base64.Encoder base64 = java.util.Base64.getEncoder().withoutPadding();
+        return PREFIXO + "$" + custo + "$" + base64.encodeToString(sal) + "$"
+            + base64.encodeToString(derivar(senha, sal, custo));
+    }
+    
+    // Comparação em tempo constante; aceita o formato legado "hash_<n>".
+    // Hash malformado (custo ou base64 inválidos) não autentica
+    public static boolean verificar(String senha, String armazenado) {
+        if (senha == null || armazenado == null) {
+            return false;
+        }
+        if (armazenado.startsWith(PREFIXO_LEGADO)) {
+            return armazenado.equals(PREFIXO_LEGADO + senha.hashCode());
+        }
+        String[] partes = armazenado.split("\\$");
+        if (partes.length != 4 || !PREFIXO.equals(partes[0])) {
+            return false;
+        }
+        int custo = lerCusto(partes[1]);
+        byte[] esperado;
+        byte[] sal;
+        try {
+            java.util.Base64.Decoder base64 = java.util.Base64.getDecoder();
+            esperado = base64.decode(partes[3]);
+            sal = base64.decode(partes[2]);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        if (custo < 1 || esperado.length == 0 || sal.length == 0) {
+            return false;
+        }
+        return java.security.MessageDigest.isEqual(esperado, derivar(senha, sal, custo));
+    }
+    
+    // Hash legado ou com custo abaixo do atual deve ser regravado no próximo
+    // login; malformado não é regravado (verificar já o recusa)
+    public static boolean precisaAtualizar(String armazenado) {
+        if (armazenado == null) {
+            return false;
+        }
+        if (armazenado.startsWith(PREFIXO_LEGADO)) {
+            return true;
+        }
+        String[] partes = armazenado.split("\\$");
+        if (partes.length != 4 || !PREFIXO.equals(partes[0])) {
+            return false;
+        }
+        int custo = lerCusto(partes[1]);
+        return custo >= 1 && custo < iteracoes;
+    }
+    
+    // Custo gravado no hash, ou -1 se não for um inteiro
+    private static int lerCusto(String texto) {
+        try {
+            return Integer.parseInt(texto);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static byte[] derivar(String senha, byte[] sal, int custo) {
+        javax.crypto.spec.PBEKeySpec especificacao = new javax.crypto.spec.PBEKeySpec(senha.toCharArray(), sal, custo, BITS_HASH);
+        try {
+            return javax.crypto.SecretKeyFactory.getInstance(ALGORITMO).generateSecret(especificacao).getEncoded();
+        } catch (java.security.GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 indisponível na JVM", e);
+        } finally {
+            especificacao.clearPassword();
+        }
+    }
+}
+
+// Serviço de autenticação. A verificação de senha (cara, por causa do KDF)
+// roda num executor limitado: uma rajada de logins enfileira até a
+// capacidade e depois é recusada, sem roubar CPU das reservas. Um login
+// bem-sucedido gera um token de sessão com validade; operações seguintes
+// validam o token no mapa concorrente e não passam pelo KDF
+class ServicoAutenticacao implements AutoCloseable {
+    private static final int BYTES_TOKEN = 32;
+    private static final int LOGINS_POR_VARREDURA = 1024;
+    private static final java.security.SecureRandom ALEATORIO = new java.security.SecureRandom();
+    
+    private static final class Sessao {
+        final Usuario usuario;
+        final long expiraEm;
+        
+        Sessao(Usuario usuario, long expiraEm) {
+            this.usuario = usuario;
+            this.expiraEm = expiraEm;
+        }
+    }
+    
+    private final java.util.concurrent.ThreadPoolExecutor verificadores;
+    private final java.util.concurrent.ConcurrentMap<String, Sessao> sessoes = new java.util.concurrent.ConcurrentHashMap<>();
+    private final long validadeMillis;
+    private final java.util.concurrent.atomic.AtomicInteger loginsDesdeVarredura = new java.util.concurrent.atomic.AtomicInteger();
+    // Chamado quando o login regrava o hash da senha (ex.: para o diário)
+    private final java.util.function.Consumer<Usuario> aoAtualizarSenha;
+    
+    // Metade dos núcleos verifica senhas; sessões valem 30 minutos
+    public ServicoAutenticacao() {
+        this(usuario -> { });
+    }
+    
+    public ServicoAutenticacao(java.util.function.Consumer<Usuario> aoAtualizarSenha) {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 256, 30 * 60 * 1000L, aoAtualizarSenha);
+    }
+    
+    public ServicoAutenticacao(int threads, int capacidadeFila, long validadeMillis) {
+        this(threads, capacidadeFila, validadeMillis, usuario -> { });
+    }
+    
+    public ServicoAutenticacao(int threads, int capacidadeFila, long validadeMillis,
+                               java.util.function.Consumer<Usuario> aoAtualizarSenha) {
+        this.validadeMillis = validadeMillis;
+        this.aoAtualizarSenha = aoAtualizarSenha;
+        this.verificadores = new java.util.concurrent.ThreadPoolExecutor(threads, threads, 30, java.util.concurrent.TimeUnit.SECONDS,
+            new java.util.concurrent.ArrayBlockingQueue<>(capacidadeFila), tarefa -> {
+                Thread thread = new Thread(tarefa, "verificacao-senha");
+                thread.setDaemon(true);
+                return thread;
+            }, new java.util.concurrent.ThreadPoolExecutor.AbortPolicy());
+        this.verificadores.allowCoreThreadTimeOut(true);
+    }
+    
+    // Completa com o token da sessão, ou null se as credenciais forem
+    // inválidas; com a fila cheia completa com RejectedExecutionException
+    public java.util.concurrent.CompletableFuture<String> entrar(Usuario usuario, String senha) {
+        try {
+            return java.util.concurrent.CompletableFuture.supplyAsync(
+                () -> verificar(usuario, senha) ? abrirSessao(usuario) : null, verificadores);
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            return java.util.concurrent.CompletableFuture.failedFuture(e);
+        }
+    }
+    
+    // Verificação síncrona, sem sessão; um hash regravado pelo login é
+    // repassado a aoAtualizarSenha antes de retornar
+    public boolean verificar(Usuario usuario, String senha) {
+        if (usuario == null || !usuario.isAtivo()) {
+            return false;
+        }
+        String hashAnterior = usuario.senhaCriptografada;
+        // autenticar é polimórfico: mantém a etapa extra do Administrador
+        if (!usuario.autenticar(senha)) {
+            return false;
+        }
+        if (usuario.senhaCriptografada != hashAnterior) {
+            aoAtualizarSenha.accept(usuario);
+        }
+        return true;
+    }
+    
+    // O(1), sem KDF; sessões vencidas são removidas ao serem consultadas
+    public Usuario validarSessao(String token) {
+        if (token == null) {
+            return null;
+        }
+        Sessao sessao = sessoes.get(token);
+        if (sessao == null) {
+            return null;
+        }
+        if (RelogioGrosso.agoraMillis() >= sessao.expiraEm) {
+            sessoes.remove(token, sessao);
+            return null;
+        }
+        return sessao.usuario;
+    }
+    
+    public void encerrarSessao(String token) {
+        if (token != null) {
+            sessoes.remove(token);
+        }
+    }
+    
+    public int getSessoesAbertas() {
+        return sessoes.size();
+    }
+    
+    @Override
+    public void close() {
+        verificadores.shutdown();
+        sessoes.clear();
+    }
+    
+    private String abrirSessao(Usuario usuario) {
+        byte[] bytes = new byte[BYTES_TOKEN];
+        ALEATORIO.nextBytes(bytes);
+        String token = java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessoes.put(token, new Sessao(usuario, RelogioGrosso.agoraMillis() + validadeMillis));
+        // Varredura amortizada das sessões vencidas que nunca mais foram consultadas
+        if (loginsDesdeVarredura.incrementAndGet() >= LOGINS_POR_VARREDURA) {
+            loginsDesdeVarredura.set(0);
+            long agora = RelogioGrosso.agoraMillis();
+            sessoes.values().removeIf(sessao -> agora >= sessao.expiraEm);
+        }
+        return token;
+    }
+}
+
+// Registro de permissões: cada nome é internado numa posição de bit, de modo
+// que um conjunto de permissões cabe num long e a checagem é um único AND
+final class Permissoes {
+    private static final int MAXIMO = Long.SIZE;
+    private static final java.util.concurrent.ConcurrentMap<String, Long> bits = new java.util.concurrent.ConcurrentHashMap<>();
+    // Lido sem trava por nomes(); escrito só sob a trava de internar
+    private static final java.util.concurrent.atomic.AtomicReferenceArray<String> nomes =
+        new java.util.concurrent.atomic.AtomicReferenceArray<>(MAXIMO);
+    private static int proximaPosicao;
+    
+    public static final long READ = bit("READ");
+    public static final long WRITE = bit("WRITE");
+    public static final long DELETE = bit("DELETE");
+    public static final long ADMIN = bit("ADMIN");
+    public static final long RESERVAR = bit("RESERVAR");
+    
+    private Permissoes() {
+    }
+    
+    // Idempotente: o mesmo nome sempre devolve o mesmo bit
+    public static long bit(String nome) {
+        Long bit = bits.get(nome);
+        return bit != null ? bit : internar(nome);
+    }
+    
+    // Bit de uma permissão já registrada, ou 0 se o nome for desconhecido
+    public static long buscar(String nome) {
+        Long bit = nome != null ? bits.get(nome) : null;
+        return bit != null ? bit : 0;
+    }
+    
+    private static synchronized long internar(String nome) {
+        Long existente = bits.get(nome);
+        if (existente != null) {
+            return existente;
+        }
+        if (proximaPosicao == MAXIMO) {
+            throw new IllegalStateException("Limite de " + MAXIMO + " permissões atingido");
+        }
+        long bit = 1L << proximaPosicao;
+        // O nome é publicado antes do bit: quem obteve o bit acha o nome
+        nomes.set(proximaPosicao++, nome);
+        bits.put(nome, bit);
+        return bit;
+    }
+    
+    public static long mascara(String... nomesPermissoes) {
+        long mascara = 0;
+        for (String nome : nomesPermissoes) {
+            mascara |= bit(nome);
+        }
+        return mascara;
+    }
+    
+    // Nomes das permissões da máscara, na ordem em que foram internadas
+    public static java.util.List<String> nomes(long mascara) {
+        java.util.List<String> resultado = new java.util.ArrayList<>(Long.bitCount(mascara));
+        for (long resto = mascara; resto != 0; resto &= resto - 1) {
+            resultado.add(nomes.get(Long.numberOfTrailingZeros(resto)));
+        }
+        return resultado;
+    }
+}
+
+// Papel imutável com a máscara de permissões compilada; uma única instância
+// por papel é compartilhada por todos os usuários que o têm
+final class Papel {
+    private static final java.util.concurrent.ConcurrentMap<String, Papel> registrados = new java.util.concurrent.ConcurrentHashMap<>();
+    
+    public static final Papel LEITOR = definir("LEITOR", Permissoes.READ | Permissoes.RESERVAR);
+    public static final Papel ADMINISTRADOR = definir("ADMINISTRADOR",
+        Permissoes.READ | Permissoes.WRITE | Permissoes.DELETE | Permissoes.ADMIN | Permissoes.RESERVAR);
+    
+    private final String nome;
+    private final long mascara;
+    
+    private Papel(String nome, long mascara) {
+        this.nome = nome;
+        this.mascara = mascara;
+    }
+    
+    // Redefinir um nome existente com a mesma máscara devolve o papel já
+    // registrado; com outra máscara é recusado (os usuários compartilham a instância)
+    public static Papel definir(String nome, long mascara) {
+        Papel papel = registrados.computeIfAbsent(nome, n -> new Papel(n, mascara));
+        if (papel.mascara != mascara) {
+            throw new IllegalArgumentException("Papel " + nome + " já definido com outras permissões: " + papel);
+        }
+        return papel;
+    }
+    
+    public static Papel definir(String nome, String... permissoes) {
+        return definir(nome, Permissoes.mascara(permissoes));
+    }
+    
+    public static Papel porNome(String nome) {
+        return registrados.get(nome);
+    }
+    
+    public String getNome() { return nome; }
+    public long getMascara() { return mascara; }
+    
+    public boolean temPermissoes(long permissoes) {
+        return (mascara & permissoes) == permissoes;
+    }
+    
+    @Override
+    public String toString() {
+        return nome + Permissoes.nomes(mascara);
+    }
+}
+
+// Roda de temporização hierárquica para expiração de reservas, com
+// granularidade de um dia (dia epoch). Cada nível tem 64 baldes: o nível 0
+// cobre 64 dias, o 1 cobre 4.096 e o 2 cobre 262.144. Agendar e cancelar
+// são O(1) (listas duplamente encadeadas); avançar um dia esvazia um balde
+// inteiro de uma vez e, nas viradas de bloco, redistribui um balde do nível acima
+class RodaExpiracao {
+    private static final int BITS_NIVEL = 6;
+    private static final int BALDES = 1 << BITS_NIVEL;
+    private static final int MASCARA = BALDES - 1;
+    private static final int NIVEIS = 3;
+    
+    private static final class Entrada {
+        final long id;
+        final long dia;
+        Entrada anterior;
+        Entrada proxima;
+        int nivel;
+        int balde;
+        
+        Entrada(long id, long dia) {
+            this.id = id;
+            this.dia = dia;
+        }
+    }
+    
+    // Pedido de cancelamento na fila de pedidos (nenhum dia real é tão antigo)
+    private static final long CANCELAMENTO = Long.MIN_VALUE;
+    private static final int PEDIDOS_POR_DRENAGEM = 4096;
+    
+    // Agendar e cancelar só enfileiram (sem trava); os pedidos são aplicados
+    // em ordem, sob o monitor, por avancarAte e tamanho
+    private final java.util.concurrent.ConcurrentLinkedQueue<Entrada> pedidos =
+        new java.util.concurrent.ConcurrentLinkedQueue<>();
+    private final java.util.concurrent.atomic.AtomicLong pedidosRecebidos = new java.util.concurrent.atomic.AtomicLong();
+    
+    private final Entrada[][] baldes = new Entrada[NIVEIS][BALDES];
+    private final java.util.Map<Long, Entrada> porId = new java.util.HashMap<>();
+    // Entradas já vencidas ao serem agendadas; saem no próximo avanço. Lista
+    // encadeada como os baldes, para cancelar em O(1)
+    private Entrada vencidas;
+    private long diaAtual;
+    
+    public RodaExpiracao(long diaInicial) {
+        this.diaAtual = diaInicial;
+    }
+    
+    // Reagendar um id já presente substitui a data anterior
+    public void agendar(long id, long dia) {
+        pedir(new Entrada(id, dia));
+    }
+    
+    // Cancelar um id que não está agendado não tem efeito
+    public void cancelar(long id) {
+        pedir(new Entrada(id, CANCELAMENTO));
+    }
+    
+    public synchronized int tamanho() {
+        drenarPedidos();
+        return porId.size();
+    }
+    
+    // Sem avanço periódico a fila cresceria sem limite: a cada
+    // PEDIDOS_POR_DRENAGEM pedidos, quem enfileirou aplica o lote
+    private void pedir(Entrada pedido) {
+        pedidos.add(pedido);
+        if (pedidosRecebidos.incrementAndGet() % PEDIDOS_POR_DRENAGEM == 0) {
+            synchronized (this) {
+                drenarPedidos();
+            }
+        }
+    }
+    
+    // Sob o monitor; a fila preserva a ordem entre pedidos do mesmo id
+    private void drenarPedidos() {
+        Entrada pedido;
+        while ((pedido = pedidos.poll()) != null) {
+            Entrada anterior = porId.remove(pedido.id);
+            if (anterior != null) {
+                desencadear(anterior);
+            }
+            if (pedido.dia != CANCELAMENTO) {
+                porId.put(pedido.id, pedido);
+                posicionar(pedido);
+            }
+        }
+    }
+    
+    public synchronized long getDiaAtual() {
+        return diaAtual;
+    }
+    
+    // Avança até o dia informado e devolve, em lote, os ids que venceram
+    public synchronized java.util.List<Long> avancarAte(long dia) {
+        drenarPedidos();
+        java.util.List<Long> expirados = new java.util.ArrayList<>();
+        while (diaAtual < dia) {
+            diaAtual++;
+            // Ao entrar num bloco novo de um nível, o balde correspondente
+            // desce para os níveis de baixo
+            for (int nivel = NIVEIS - 1; nivel >= 1; nivel--) {
+                if ((diaAtual & ((1L << (BITS_NIVEL * nivel)) - 1)) == 0) {
+                    int balde = (int) (diaAtual >>> (BITS_NIVEL * nivel)) & MASCARA;
+                    Entrada entrada = baldes[nivel][balde];
+                    baldes[nivel][balde] = null;
+                    while (entrada != null) {
+                        Entrada proxima = entrada.proxima;
+                        posicionar(entrada);
+                        entrada = proxima;
+                    }
+                }
+            }
+            int balde = (int) diaAtual & MASCARA;
+            for (Entrada entrada = baldes[0][balde]; entrada != null; entrada = entrada.proxima) {
+                porId.remove(entrada.id);
+                expirados.add(entrada.id);
+            }
+            baldes[0][balde] = null;
+        }
+        // Inclui as que venceram ao descer de nível no próprio dia
+        for (Entrada entrada = vencidas; entrada != null; entrada = entrada.proxima) {
+            porId.remove(entrada.id);
+            expirados.add(entrada.id);
+        }
+        vencidas = null;
+        return expirados;
+    }
+    
+    // Menor nível cujo bloco do nível acima coincide com o do dia atual;
+    // além do alcance do último nível, fica nele até ser redistribuída
+    private void posicionar(Entrada entrada) {
+        entrada.anterior = null;
+        entrada.proxima = null;
+        if (entrada.dia <= diaAtual) {
+            entrada.nivel = -1;
+            entrada.proxima = vencidas;
+            if (vencidas != null) {
+                vencidas.anterior = entrada;
+            }
+            vencidas = entrada;
+            return;
+        }
+        int nivel = 0;
+        while (nivel < NIVEIS - 1
+               && (entrada.dia >>> (BITS_NIVEL * (nivel + 1))) != (diaAtual >>> (BITS_NIVEL * (nivel + 1)))) {
+            nivel++;
+        }
+        int balde = (int) (entrada.dia >>> (BITS_NIVEL * nivel)) & MASCARA;
+        entrada.nivel = nivel;
+        entrada.balde = balde;
+        Entrada cabeca = baldes[nivel][balde];
+        entrada.proxima = cabeca;
+        if (cabeca != null) {
+            cabeca.anterior = entrada;
+        }
+        baldes[nivel][balde] = entrada;
+    }
+    
+    private void desencadear(Entrada entrada) {
+        if (entrada.anterior != null) {
+            entrada.anterior.proxima = entrada.proxima;
+        } else if (entrada.nivel < 0) {
+            vencidas = entrada.proxima;
+        } else {
+            baldes[entrada.nivel][entrada.balde] = entrada.proxima;
+        }
+        if (entrada.proxima != null) {
+            entrada.proxima.anterior = entrada.anterior;
+        }
+    }
+}
+
+// Mapa long -> int com endereçamento aberto e sondagem linear, sem boxing.
+// Não é thread-safe: quem compartilha faz a sincronização. obter() pode ser
+// chamado numa leitura otimista (StampedLock) concorrente com escritas: as
+// duas colunas são publicadas juntas numa Tabela volátil, e a sondagem é
+// limitada ao tamanho da tabela, então uma leitura inconsistente devolve
+// lixo (descartado pelo validate) mas nunca lança nem fica em laço
+class MapaLongInt {
+    private static final long VAZIO = Long.MIN_VALUE; // chave reservada
+    
+    private static final class Tabela {
+        final long[] chaves;
+        final int[] valores;
+        final int mascara;
+        
+        Tabela(int capacidade) {
+            chaves = new long[capacidade];
+            java.util.Arrays.fill(chaves, VAZIO);
+            valores = new int[capacidade];
+            mascara = capacidade - 1;
+        }
+    }
+    
+    private final int ausente;
+    private volatile Tabela tabela;
+    private int tamanho;
+    
+    // 'ausente' é o valor devolvido para chaves que não estão no mapa
+    public MapaLongInt(int capacidadeInicial, int ausente) {
+        this.ausente = ausente;
+        this.tabela = new Tabela(Integer.highestOneBit(Math.max(capacidadeInicial * 2 - 1, 8)) << 1);
+    }
+    
+    public int obter(long chave) {
+        Tabela t = tabela;
+        int mascara = t.mascara;
+        int i = posicao(chave, mascara);
+        for (int sondagens = 0; sondagens <= mascara; sondagens++, i = (i + 1) & mascara) {
+            long atual = t.chaves[i];
+            if (atual == chave) {
+                return t.valores[i];
+            }
+            if (atual == VAZIO) {
+                return ausente;
+            }
+        }
+        return ausente;
+    }
+    
+    public boolean contem(long chave) {
+        return obter(chave) != ausente;
+    }
+    
+    // Devolve o valor anterior, ou 'ausente'
+    public int colocar(long chave, int valor) {
+        if (chave == VAZIO) {
+            throw new IllegalArgumentException("Chave reservada: " + chave);
+        }
+        Tabela t = tabela;
+        for (int i = posicao(chave, t.mascara); ; i = (i + 1) & t.mascara) {
+            long atual = t.chaves[i];
+            if (atual == chave) {
+                int anterior = t.valores[i];
+                t.valores[i] = valor;
+                return anterior;
+            }
+            if (atual == VAZIO) {
+                // Valor antes da chave: quem encontra a chave lê o valor certo
+                t.valores[i] = valor;
+                t.chaves[i] = chave;
+                // Fator de carga até 1/2
+                if (++tamanho > (t.mascara + 1) >>> 1) {
+                    redimensionar();
+                }
+                return ausente;
+            }
+        }
+    }
+    
+    // Remoção com deslocamento para trás, sem lápides
+    public int remover(long chave) {
+        Tabela t = tabela;
+        long[] chaves = t.chaves;
+        int[] valores = t.valores;
+        int mascara = t.mascara;
+        for (int i = posicao(chave, mascara); ; i = (i + 1) & mascara) {
+            long atual = chaves[i];
+            if (atual == VAZIO) {
+                return ausente;
+            }
+            if (atual == chave) {
+                int anterior = valores[i];
+                int vaga = i;
+                for (int j = (i + 1) & mascara; chaves[j] != VAZIO; j = (j + 1) & mascara) {
+                    int ideal = posicao(chaves[j], mascara);
+                    // Move j para a vaga se a posição ideal de j não está em (vaga, j]
+                    if (((j - ideal) & mascara) >= ((j - vaga) & mascara)) {
+                        chaves[vaga] = chaves[j];
+                        valores[vaga] = valores[j];
+                        vaga = j;
+                    }
+                }
+                chaves[vaga] = VAZIO;
+                tamanho--;
+                return anterior;
+            }
+        }
+    }
+    
+    public int tamanho() {
+        return tamanho;
+    }
+    
+    // Percorre os pares em ordem de tabela (sem ordem definida)
+    public void paraCada(java.util.function.LongConsumer chaveConsumidor, java.util.function.IntConsumer valorConsumidor) {
+        Tabela t = tabela;
+        for (int i = 0; i < t.chaves.length; i++) {
+            if (t.chaves[i] != VAZIO) {
+                chaveConsumidor.accept(t.chaves[i]);
+                valorConsumidor.accept(t.valores[i]);
+            }
+        }
+    }
+    
+    private static int posicao(long chave, int mascara) {
+        long h = chave * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mascara;
+    }
+    
+    // Monta a tabela nova inteira antes de publicá-la
+    private void redimensionar() {
+        Tabela antiga = tabela;
+        Tabela nova = new Tabela(antiga.chaves.length << 1);
+        for (int i = 0; i < antiga.chaves.length; i++) {
+            long chave = antiga.chaves[i];
+            if (chave != VAZIO) {
+                int j = posicao(chave, nova.mascara);
+                while (nova.chaves[j] != VAZIO) {
+                    j = (j + 1) & nova.mascara;
+                }
+                nova.chaves[j] = chave;
+                nova.valores[j] = antiga.valores[i];
+            }
+        }
+        tabela = nova;
+    }
+}
+
+// Armazém colunar de reservas: cada campo é uma coluna de primitivos
+// (ids long, datas como dia epoch int, status byte) dividida em blocos de
+// tamanho fixo. Crescer só acrescenta blocos, sem copiar linhas; as
+// varreduras são laços sobre arrays. obterPorChave/obterTodos devolvem
+// visões Reserva leves (flyweight) que leem e escrevem nas colunas
+class ArmazemReservas {
+    private static final int BITS_BLOCO = 14;
+    private static final int TAMANHO_BLOCO = 1 << BITS_BLOCO;
+    private static final int MASCARA_BLOCO = TAMANHO_BLOCO - 1;
+    private static final int VOLTAS_ANTES_DE_CEDER = 64;
+    
+    // Referências de blocos são publicadas antes do volatile 'blocosAlocados',
+    // e as linhas antes do volatile 'linhas'
+    private long[][] ids = new long[4][];
+    private long[][] usuarios = new long[4][];
+    private long[][] livros = new long[4][];
+    private int[][] diasReserva = new int[4][];
+    private int[][] diasVencimento = new int[4][];
+    private byte[][] status = new byte[4][];
+    private volatile int blocosAlocados;
+    private final Object travaCrescimento = new Object();
+    
+    // Inclusões pegam a linha no cursor, sem trava; 'linhas' é o prefixo já
+    // preenchido, publicado em ordem de linha
+    private final java.util.concurrent.atomic.AtomicInteger proximaLinha = new java.util.concurrent.atomic.AtomicInteger();
+    private volatile int linhas;
+    
+    // Índice id -> linha em listras (como em ListasAdjacencia); cada listra tem
+    // leituras otimistas e escritas exclusivas
+    private static final class ListraIndice {
+        final MapaLongInt linhaPorId = new MapaLongInt(64, -1);
+        final java.util.concurrent.locks.StampedLock trava = new java.util.concurrent.locks.StampedLock();
+    }
+    
+    private final ListraIndice[] indice;
+    private final int mascaraIndice;
+    
+    public ArmazemReservas() {
+        int quantidade = Integer.highestOneBit(Math.max(16, Runtime.getRuntime().availableProcessors() * 8) - 1) << 1;
+        this.indice = new ListraIndice[quantidade];
+        for (int i = 0; i < quantidade; i++) {
+            indice[i] = new ListraIndice();
+        }
+        this.mascaraIndice = quantidade - 1;
+    }
+    
+    // Visão de uma linha; Reserva não tem campos, então a visão guarda só a
+    // posição (e a referência ao armazém)
+    private final class Visao extends Reserva {
+        private final int linha;
+        
+        Visao(int linha) {
+            this.linha = linha;
+        }
+        
+        @Override public long getId() { return ids[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+        @Override public long getUsuarioId() { return usuarios[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+        @Override public long getLivroId() { return livros[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+        @Override public int getDiaReserva() { return diasReserva[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+        @Override public int getDiaVencimento() { return diasVencimento[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+        @Override public byte getCodigoStatus() { return status[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+        @Override public void setCodigoStatus(byte codigo) { status[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO] = codigo; }
+        
+        @Override
+        void aplicarCampoJson(String campo, String valor) {
+            atualizarCampo(linha, campo, valor);
+        }
+        
+        // Duas visões da mesma linha são a mesma reserva
+        @Override
+        public boolean equals(Object outro) {
+            return outro instanceof Visao && ((Visao) outro).linha == linha;
+        }
+        
+        @Override
+        public int hashCode() {
+            return linha;
+        }
+    }
+    
+    // Copia a reserva para as colunas (substitui a linha se o id já existe)
+    // e devolve a visão que passa a representá-la. Só a listra do id é
+    // travada; a linha sai do cursor e o bloco só é criado na virada
+    public Reserva adicionar(Reserva reserva) {
+        long id = reserva.getId();
+        ListraIndice listra = listraIndice(id);
+        int linha;
+        boolean nova;
+        long carimbo = listra.trava.writeLock();
+        try {
+            linha = listra.linhaPorId.obter(id);
+            nova = linha < 0;
+            if (nova) {
+                linha = proximaLinha.getAndIncrement();
+                listra.linhaPorId.colocar(id, linha);
+            }
+        } finally {
+            listra.trava.unlockWrite(carimbo);
+        }
+        int bloco = linha >>> BITS_BLOCO;
+        if (bloco >= blocosAlocados) {
+            garantirBloco(bloco);
+        }
+        int posicao = linha & MASCARA_BLOCO;
+        ids[bloco][posicao] = id;
+        usuarios[bloco][posicao] = reserva.getUsuarioId();
+        livros[bloco][posicao] = reserva.getLivroId();
+        diasReserva[bloco][posicao] = reserva.getDiaReserva();
+        diasVencimento[bloco][posicao] = reserva.getDiaVencimento();
+        status[bloco][posicao] = reserva.getCodigoStatus();
+        if (nova) {
+            publicar(linha);
+        }
+        return new Visao(linha);
+    }
+    
+    // Leitores veem 'linhas' como prefixo contínuo: cada inclusão espera as
+    // linhas anteriores, que só copiam campos, antes de publicar a sua. Passadas
+    // VOLTAS_ANTES_DE_CEDER voltas cede o processador, pois a linha anterior
+    // pode ser de uma thread que perdeu a CPU no meio da cópia
+    private void publicar(int linha) {
+        for (int voltas = 0; linhas != linha; voltas++) {
+            if (voltas < VOLTAS_ANTES_DE_CEDER) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        linhas = linha + 1;
+    }
+    
+    // Aplica um campo JSON direto na coluna; o id identifica a linha e não muda
+    private synchronized void atualizarCampo(int linha, String campo, String valor) {
+        int bloco = linha >>> BITS_BLOCO;
+        int posicao = linha & MASCARA_BLOCO;
+        switch (campo) {
+            case "id":
+                if (Long.parseLong(valor) != ids[bloco][posicao]) {
+                    throw new IllegalArgumentException("O id identifica a linha da reserva: " + valor);
+                }
+                break;
+            case "usuarioId": usuarios[bloco][posicao] = Long.parseLong(valor); break;
+            case "livroId": livros[bloco][posicao] = Long.parseLong(valor); break;
+            case "dataReserva": diasReserva[bloco][posicao] = (int) java.time.LocalDate.parse(valor).toEpochDay(); break;
+            case "dataVencimento": diasVencimento[bloco][posicao] = (int) java.time.LocalDate.parse(valor).toEpochDay(); break;
+            case "status": status[bloco][posicao] = Reserva.codigoStatus(valor); break;
+            default: break;
+        }
+    }
+    
+    public Reserva obterPorChave(long id) {
+        int linha = linhaDe(id);
+        return linha < 0 ? null : new Visao(linha);
+    }
+    
+    public int tamanho() {
+        return linhas;
+    }
+    
+    // Linha da reserva, ou -1 (também enquanto a inclusão não foi publicada);
+    // estável enquanto o armazém existir
+    public int linhaDe(long id) {
+        ListraIndice listra = listraIndice(id);
+        long carimbo = listra.trava.tryOptimisticRead();
+        int linha = listra.linhaPorId.obter(id);
+        if (!listra.trava.validate(carimbo)) {
+            carimbo = listra.trava.readLock();
+            try {
+                linha = listra.linhaPorId.obter(id);
+            } finally {
+                listra.trava.unlockRead(carimbo);
+            }
+        }
+        return linha < linhas ? linha : -1;
+    }
+    
+    private ListraIndice listraIndice(long id) {
+        long h = id * 0x9E3779B97F4A7C15L; // espalha ids sequenciais
+        return indice[(int) (h ^ (h >>> 32)) & mascaraIndice];
+    }
+    
+    public Reserva obterPorLinha(int linha) {
+        return new Visao(linha);
+    }
+    
+    // Linhas existentes agora, em ordem de inclusão, sem cópia: as linhas só
+    // são acrescentadas, então o prefixo lido fica estável (o status de cada
+    // reserva continua vivo, lido das colunas)
+    public java.util.List<Reserva> obterTodos() {
+        int total = linhas;
+        return new java.util.AbstractList<Reserva>() {
+            @Override
+            public Reserva get(int linha) {
+                return new Visao(java.util.Objects.checkIndex(linha, total));
+            }
+            
+            @Override
+            public int size() {
+                return total;
+            }
+        };
+    }
+    
+    // Página por cursor em ordem de inclusão, que é a ordem dos ids gerados.
+    // Linhas nunca são apagadas: um cursor desconhecido é erro do chamador
+    public Pagina<Long, Reserva> pagina(Long depoisDe, int limite) {
+        int inicio = 0;
+        if (depoisDe != null) {
+            int linha = linhaDe(depoisDe);
+            if (linha < 0) {
+                throw new IllegalArgumentException("Cursor de reserva desconhecido: " + depoisDe);
+            }
+            inicio = linha + 1;
+        }
+        int fim = (int) Math.min(linhas, (long) inicio + Pagina.exigirLimite(limite) + 1);
+        java.util.List<Reserva> itens = new java.util.ArrayList<>(Math.max(0, fim - inicio));
+        for (int linha = inicio; linha < fim; linha++) {
+            itens.add(new Visao(linha));
+        }
+        return Pagina.de(itens, limite, Reserva::getId);
+    }
+    
+    // Varredura sem visões: ids e status direto das colunas
+    public long contarPorStatus(byte codigo) {
+        int total = linhas;
+        long contagem = 0;
+        for (int bloco = 0; bloco * TAMANHO_BLOCO < total; bloco++) {
+            byte[] coluna = status[bloco];
+            int fim = Math.min(TAMANHO_BLOCO, total - bloco * TAMANHO_BLOCO);
+            for (int i = 0; i < fim; i++) {
+                if (coluna[i] == codigo) {
+                    contagem++;
+                }
+            }
+        }
+        return contagem;
+    }
+    
+    // Leitores de linha para varreduras (RelatorioAnalitico); linha < tamanho()
+    public long getUsuarioId(int linha) { return usuarios[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+    public long getLivroId(int linha) { return livros[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+    public byte getCodigoStatus(int linha) { return status[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+    public int getDiaVencimento(int linha) { return diasVencimento[linha >>> BITS_BLOCO][linha & MASCARA_BLOCO]; }
+    
+    // Só na virada de bloco; quem chega depois de alocado nem passa pela trava
+    private void garantirBloco(int bloco) {
+        synchronized (travaCrescimento) {
+            for (int novo = blocosAlocados; novo <= bloco; novo++) {
+                if (novo == ids.length) {
+                    int novoTamanho = ids.length * 2;
+                    ids = java.util.Arrays.copyOf(ids, novoTamanho);
+                    usuarios = java.util.Arrays.copyOf(usuarios, novoTamanho);
+                    livros = java.util.Arrays.copyOf(livros, novoTamanho);
+                    diasReserva = java.util.Arrays.copyOf(diasReserva, novoTamanho);
+                    diasVencimento = java.util.Arrays.copyOf(diasVencimento, novoTamanho);
+                    status = java.util.Arrays.copyOf(status, novoTamanho);
+                }
+                ids[novo] = new long[TAMANHO_BLOCO];
+                usuarios[novo] = new long[TAMANHO_BLOCO];
+                livros[novo] = new long[TAMANHO_BLOCO];
+                diasReserva[novo] = new int[TAMANHO_BLOCO];
+                diasVencimento[novo] = new int[TAMANHO_BLOCO];
+                status[novo] = new byte[TAMANHO_BLOCO];
+                blocosAlocados = novo + 1;
+            }
+        }
+    }
+}
+
+// Listas de adjacência chave long -> valores int (ex.: usuário -> linhas de
+// reserva), sem boxing: cada chave tem um int[] próprio que cresce por dobra.
+// Consultas percorrem só os valores da chave. As chaves são distribuídas em
+// listras com monitor próprio (como em TravasListradas), então inclusões de
+// chaves diferentes raramente disputam a mesma trava
+class ListasAdjacencia {
+    private static final class Listra {
+        private final MapaLongInt posicaoPorChave = new MapaLongInt(16, -1);
+        private int[][] listas = new int[16][];
+        private int[] tamanhos = new int[16];
+        private int chaves;
+        
+        synchronized void adicionar(long chave, int valor) {
+            int posicao = posicaoPorChave.obter(chave);
+            if (posicao < 0) {
+                posicao = chaves++;
+                if (posicao == listas.length) {
+                    listas = java.util.Arrays.copyOf(listas, posicao * 2);
+                    tamanhos = java.util.Arrays.copyOf(tamanhos, posicao * 2);
+                }
+                listas[posicao] = new int[4];
+                posicaoPorChave.colocar(chave, posicao);
+            }
+            int[] lista = listas[posicao];
+            if (tamanhos[posicao] == lista.length) {
+                lista = listas[posicao] = java.util.Arrays.copyOf(lista, lista.length * 2);
+            }
+            lista[tamanhos[posicao]++] = valor;
+        }
+        
+        synchronized int[] obter(long chave) {
+            int posicao = posicaoPorChave.obter(chave);
+            return posicao < 0 ? new int[0] : java.util.Arrays.copyOf(listas[posicao], tamanhos[posicao]);
+        }
+        
+        synchronized int contar(long chave) {
+            int posicao = posicaoPorChave.obter(chave);
+            return posicao < 0 ? 0 : tamanhos[posicao];
+        }
+    }
+    
+    private final Listra[] listras;
+    private final int mascara;
+    
+    public ListasAdjacencia() {
+        this(Runtime.getRuntime().availableProcessors() * 8);
+    }
+    
+    public ListasAdjacencia(int quantidadeMinima) {
+        int quantidade = Integer.highestOneBit(Math.max(16, quantidadeMinima) - 1) << 1;
+        this.listras = new Listra[quantidade];
+        for (int i = 0; i < quantidade; i++) {
+            listras[i] = new Listra();
+        }
+        this.mascara = quantidade - 1;
+    }
+    
+    public void adicionar(long chave, int valor) {
+        listra(chave).adicionar(chave, valor);
+    }
+    
+    // Cópia dos valores da chave, em ordem de inclusão
+    public int[] obter(long chave) {
+        return listra(chave).obter(chave);
+    }
+    
+    public int contar(long chave) {
+        return listra(chave).contar(chave);
+    }
+    
+    private Listra listra(long chave) {
+        long h = chave * 0x9E3779B97F4A7C15L; // espalha ids sequenciais
+        return listras[(int) (h ^ (h >>> 32)) & mascara];
+    }
+}
+
+// Lista de espera de um título: FIFO justa, com uma fila prioritária que é
+// atendida antes (administradores). Entrar é sem trava (filas lock-free);
+// o repasse tira o próximo em O(1). Cada entrada é um objeto próprio, então
+// uma entrada antiga de quem saiu e voltou nunca devolve a posição anterior
+class ListaEspera {
+    static final class Entrada {
+        final long usuarioId;
+        final boolean prioritario;
+        
+        Entrada(long usuarioId, boolean prioritario) {
+            this.usuarioId = usuarioId;
+            this.prioritario = prioritario;
+        }
+    }
+    
+    private final java.util.concurrent.ConcurrentLinkedDeque<Entrada> prioritaria = new java.util.concurrent.ConcurrentLinkedDeque<>();
+    private final java.util.concurrent.ConcurrentLinkedDeque<Entrada> comum = new java.util.concurrent.ConcurrentLinkedDeque<>();
+    // Entrada vigente de cada usuário na fila
+    private final java.util.concurrent.ConcurrentHashMap<Long, Entrada> aguardando = new java.util.concurrent.ConcurrentHashMap<>();
+    // Um repasse por vez por título; ver SistemaBiblioteca.repassar
+    final java.util.concurrent.atomic.AtomicBoolean repassando = new java.util.concurrent.atomic.AtomicBoolean();
+    
+    // Falso se o usuário já está aguardando
+    public boolean entrar(long usuarioId, boolean prioritario) {
+        Entrada entrada = new Entrada(usuarioId, prioritario);
+        if (aguardando.putIfAbsent(usuarioId, entrada) != null) {
+            return false;
+        }
+        fila(prioritario).offerLast(entrada);
+        return true;
+    }
+    
+    // Sair também tira a entrada da fila: O(n), mas é raro perto de entrar
+    public boolean sair(long usuarioId) {
+        Entrada entrada = aguardando.remove(usuarioId);
+        if (entrada == null) {
+            return false;
+        }
+        fila(entrada.prioritario).removeFirstOccurrence(entrada);
+        return true;
+    }
+    
+    // Próximo a atender, ou null se ninguém aguarda
+    public Entrada proximo() {
+        Entrada entrada;
+        while ((entrada = prioritaria.pollFirst()) != null || (entrada = comum.pollFirst()) != null) {
+            if (aguardando.remove(entrada.usuarioId, entrada)) {
+                return entrada;
+            }
+        }
+        return null;
+    }
+    
+    // Recoloca no início da própria fila quem saiu por proximo() e não pôde
+    // ser atendido; falso se o usuário já voltou à fila por conta própria
+    public boolean devolver(Entrada entrada) {
+        if (aguardando.putIfAbsent(entrada.usuarioId, entrada) != null) {
+            return false;
+        }
+        fila(entrada.prioritario).offerFirst(entrada);
+        return true;
+    }
+    
+    // Entradas vigentes na ordem de atendimento, para o snapshot
+    public java.util.List<Entrada> emOrdem() {
+        java.util.List<Entrada> entradas = new java.util.ArrayList<>();
+        for (java.util.Deque<Entrada> fila : java.util.Arrays.asList(prioritaria, comum)) {
+            for (Entrada entrada : fila) {
+                if (aguardando.get(entrada.usuarioId) == entrada) {
+                    entradas.add(entrada);
+                }
+            }
+        }
+        return entradas;
+    }
+    
+    public boolean estaVazia() {
+        return aguardando.isEmpty();
+    }
+    
+    public int tamanho() {
+        return aguardando.size();
+    }
+    
+    private java.util.Deque<Entrada> fila(boolean prioritario) {
+        return prioritario ? prioritaria : comum;
+    }
+}
+
+// Entrada (aguardando) ou saída de um usuário da lista de espera de um
+// livro, como registro do diário e do snapshot
+class RegistroEspera implements Persistivel {
+    private long livroId;
+    private long usuarioId;
+    private boolean prioritario;
+    private boolean aguardando;
+    
+    RegistroEspera() {
+    }
+    
+    RegistroEspera(long livroId, long usuarioId, boolean prioritario, boolean aguardando) {
+        this.livroId = livroId;
+        this.usuarioId = usuarioId;
+        this.prioritario = prioritario;
+        this.aguardando = aguardando;
+    }
+    
+    public long getLivroId() { return livroId; }
+    public long getUsuarioId() { return usuarioId; }
+    public boolean isPrioritario() { return prioritario; }
+    public boolean isAguardando() { return aguardando; }
+    
+    @Override
+    public void escreverCamposJson(EscritorJson json) {
+        json.campo("livroId", livroId)
+            .campo("usuarioId", usuarioId)
+            .campo("prioritario", prioritario)
+            .campo("aguardando", aguardando)
+            .campo("tipo", "EsperaLivro");
+    }
+    
+    @Override
+    public void fromJson(String json) {
+        LeitorJson.lerCampos(json).forEach(this::aplicarCampoJson);
+    }
+    
+    void aplicarCampoJson(String campo, String valor) {
+        switch (campo) {
+            case "livroId": livroId = Long.parseLong(valor); break;
+            case "usuarioId": usuarioId = Long.parseLong(valor); break;
+            case "prioritario": prioritario = Boolean.parseBoolean(valor); break;
+            case "aguardando": aguardando = Boolean.parseBoolean(valor); break;
+            default: break;
+        }
+    }
+}
+
+// Pool de licenças de um livro digital. As licenças são vagas numeradas,
+// divididas em listras com contador próprio de livres: pegar uma licença é
+// um CAS no contador de uma listra (escolhida pelo usuário) e outro numa vaga
+// dela, sem trava global. Cada empréstimo devolve um token (geração | vaga)
+// com validade; devolver pelo token é O(1) e tokens antigos não valem mais.
+// Empréstimos sem token (API antiga e restauração) não ocupam vaga: só
+// descontam a permissão de uma listra e são contados à parte, então nunca
+// liberam a vaga de um empréstimo com token. Toda permissão tem vaga, mas os
+// arrays das vagas são alocados em blocos na primeira vez que uma vaga do
+// bloco é ocupada: um título com milhões de licenças ocupa memória na
+// proporção das licenças emprestadas
+class PoolLicencas {
+    private static final long LIVRE = 0;
+    private static final long OCUPANDO = -1;
+    private static final int PASSO = 16; // contadores em linhas de cache separadas
+    private static final int BITS_BLOCO = 10;
+    private static final int TAMANHO_BLOCO = 1 << BITS_BLOCO;
+    private static final int MASCARA_BLOCO = TAMANHO_BLOCO - 1;
+    
+    // Estado das vagas [base, base + tamanho) de um bloco
+    private static final class BlocoVagas {
+        final java.util.concurrent.atomic.AtomicLongArray tokens;
+        final java.util.concurrent.atomic.AtomicLongArray titulares;
+        // Quem o empréstimo atende (ex.: id da reserva), ou 0
+        final java.util.concurrent.atomic.AtomicLongArray referencias;
+        final java.util.concurrent.atomic.AtomicLongArray vencimentos;
+        final java.util.concurrent.atomic.AtomicIntegerArray geracoes;
+        
+        BlocoVagas(int tamanho) {
+            tokens = new java.util.concurrent.atomic.AtomicLongArray(tamanho);
+            titulares = new java.util.concurrent.atomic.AtomicLongArray(tamanho);
+            referencias = new java.util.concurrent.atomic.AtomicLongArray(tamanho);
+            vencimentos = new java.util.concurrent.atomic.AtomicLongArray(tamanho);
+            geracoes = new java.util.concurrent.atomic.AtomicIntegerArray(tamanho);
+        }
+    }
+    
+    private final int total;
+    private final int tamanhoListra;
+    private final int listras;
+    private final java.util.concurrent.atomic.AtomicIntegerArray livres;
+    // Blocos de vagas, null até a primeira ocupação
+    private final java.util.concurrent.atomic.AtomicReferenceArray<BlocoVagas> blocos;
+    // Por listra, onde a próxima procura por vaga livre começa
+    private final java.util.concurrent.atomic.AtomicIntegerArray dicas;
+    // Empréstimos sem token, por listra (a permissão volta à mesma listra)
+    private final java.util.concurrent.atomic.AtomicIntegerArray semToken;
+    private final java.util.concurrent.atomic.LongAdder emprestimos = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder recusas = new java.util.concurrent.atomic.LongAdder();
+    private final java.util.concurrent.atomic.LongAdder vencidos = new java.util.concurrent.atomic.LongAdder();
+    
+    public PoolLicencas(int total) {
+        this.total = Math.max(0, total);
+        int listrasDesejadas = Math.max(1, Math.min(this.total, Runtime.getRuntime().availableProcessors() * 2));
+        this.tamanhoListra = (int) Math.max(1, ((long) this.total + listrasDesejadas - 1) / listrasDesejadas);
+        this.listras = (int) Math.max(1, ((long) this.total + tamanhoListra - 1) / tamanhoListra);
+        this.livres = new java.util.concurrent.atomic.AtomicIntegerArray(listras * PASSO);
+        for (int listra = 0; listra < listras; listra++) {
+            livres.set(listra * PASSO, Math.min(tamanhoListra, this.total - listra * tamanhoListra));
+        }
+        this.blocos = new java.util.concurrent.atomic.AtomicReferenceArray<>((int) (((long) this.total + MASCARA_BLOCO) >>> BITS_BLOCO));
+        this.dicas = new java.util.concurrent.atomic.AtomicIntegerArray(listras * PASSO);
+        this.semToken = new java.util.concurrent.atomic.AtomicIntegerArray(listras * PASSO);
+    }
+    
+    // Empresta uma licença até 'venceEmMillis' (época, ver RelogioGrosso).
+    // Devolve o token, ou -1 se não há licença livre
+    public long adquirir(long usuarioId, long venceEmMillis) {
+        return adquirir(usuarioId, 0, venceEmMillis);
+    }
+    
+    // Com uma referência (id da reserva) para devolverDaReferencia()
+    public long adquirir(long usuarioId, long referencia, long venceEmMillis) {
+        int listra = reservarPermissao(usuarioId);
+        return listra < 0 ? -1 : ocuparVaga(listra, usuarioId, referencia, venceEmMillis);
+    }
+    
+    // Empréstimo sem token e sem prazo; false se não há licença livre
+    public boolean ocuparSemToken(long usuarioId) {
+        int listra = reservarPermissao(usuarioId);
+        if (listra < 0) {
+            return false;
+        }
+        semToken.incrementAndGet(listra * PASSO);
+        emprestimos.increment();
+        return true;
+    }
+    
+    // Devolve um empréstimo sem token; false se não há nenhum
+    public boolean devolverSemToken() {
+        for (int listra = 0; listra < listras; listra++) {
+            int indice = listra * PASSO;
+            for (int atual = semToken.get(indice); atual > 0; atual = semToken.get(indice)) {
+                if (semToken.compareAndSet(indice, atual, atual - 1)) {
+                    livres.incrementAndGet(indice);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    public static int vagaDe(long token) {
+        return (int) token;
+    }
+    
+    // O(1): só o token vigente da vaga a libera; repetir ou usar um token
+    // vencido (já recolhido) devolve false
+    public boolean devolver(long token) {
+        int vaga = (int) token;
+        BlocoVagas bloco = token > 0 ? blocoDe(vaga) : null;
+        if (bloco == null || !bloco.tokens.compareAndSet(vaga & MASCARA_BLOCO, token, LIVRE)) {
+            return false;
+        }
+        livres.incrementAndGet((vaga / tamanhoListra) * PASSO);
+        return true;
+    }
+    
+    // Devolve a vaga se o empréstimo vigente nela é o da referência. O token
+    // é lido antes da referência: se a vaga foi reemprestada no meio, a
+    // referência não confere ou o CAS do token falha
+    public boolean devolverDaReferencia(int vaga, long referencia) {
+        BlocoVagas bloco = blocoDe(vaga);
+        if (bloco == null) {
+            return false;
+        }
+        long token = bloco.tokens.get(vaga & MASCARA_BLOCO);
+        return token > 0 && bloco.referencias.get(vaga & MASCARA_BLOCO) == referencia && devolver(token);
+    }
+    
+    public boolean valido(long token) {
+        int vaga = (int) token;
+        BlocoVagas bloco = token > 0 ? blocoDe(vaga) : null;
+        return bloco != null && bloco.tokens.get(vaga & MASCARA_BLOCO) == token
+            && bloco.vencimentos.get(vaga & MASCARA_BLOCO) > RelogioGrosso.agoraMillis();
+    }
+    
+    // Titular do token vigente, ou -1
+    public long getTitular(long token) {
+        int vaga = (int) token;
+        BlocoVagas bloco = token > 0 ? blocoDe(vaga) : null;
+        if (bloco == null) {
+            return -1;
+        }
+        long titular = bloco.titulares.get(vaga & MASCARA_BLOCO);
+        return bloco.tokens.get(vaga & MASCARA_BLOCO) == token ? titular : -1;
+    }
+    
+    // Recolhe os empréstimos vencidos; varre as vagas dos blocos já alocados,
+    // para rodar periodicamente
+    public int recolherVencidos(long agoraMillis) {
+        int recolhidos = 0;
+        for (int b = 0; b < blocos.length(); b++) {
+            BlocoVagas bloco = blocos.get(b);
+            if (bloco == null) {
+                continue;
+            }
+            for (int i = 0; i < bloco.tokens.length(); i++) {
+                long token = bloco.tokens.get(i);
+                if (token > 0 && bloco.vencimentos.get(i) <= agoraMillis && devolver(token)) {
+                    recolhidos++;
+                }
+            }
+        }
+        vencidos.add(recolhidos);
+        return recolhidos;
+    }
+    
+    // Contadores lidos sem travar quem pega ou devolve licenças
+    public int getTotal() { return total; }
+    public long getEmprestimos() { return emprestimos.sum(); }
+    public long getRecusas() { return recusas.sum(); }
+    public long getVencidos() { return vencidos.sum(); }
+    
+    public int getLivres() {
+        int soma = 0;
+        for (int listra = 0; listra < listras; listra++) {
+            soma += livres.get(listra * PASSO);
+        }
+        return soma;
+    }
+    
+    public int getEmUso() {
+        return total - getLivres();
+    }
+    
+    public int getSemToken() {
+        int soma = 0;
+        for (int listra = 0; listra < listras; listra++) {
+            soma += semToken.get(listra * PASSO);
+        }
+        return soma;
+    }
+    
+    public double getUtilizacao() {
+        return total == 0 ? 0 : (double) getEmUso() / total;
+    }
+    
+    // Listra (escolhida pelo usuário) cuja permissão foi tomada, ou -1
+    private int reservarPermissao(long usuarioId) {
+        long h = usuarioId * 0x9E3779B97F4A7C15L;
+        int inicio = (int) ((h >>> 32) % listras);
+        for (int k = 0; k < listras; k++) {
+            int listra = (inicio + k) % listras;
+            if (reservarNaListra(listra)) {
+                return listra;
+            }
+        }
+        recusas.increment();
+        return -1;
+    }
+    
+    private boolean reservarNaListra(int listra) {
+        int indice = listra * PASSO;
+        for (;;) {
+            int atual = livres.get(indice);
+            if (atual <= 0) {
+                return false;
+            }
+            if (livres.compareAndSet(indice, atual, atual - 1)) {
+                return true;
+            }
+        }
+    }
+    
+    // Com a permissão da listra garantida há ao menos uma vaga livre nela
+    // (empréstimos sem token não ocupam vaga). A procura começa depois da
+    // última vaga ocupada na listra, e um bloco ainda não alocado tem todas
+    // as vagas livres
+    private long ocuparVaga(int listra, long usuarioId, long referencia, long venceEmMillis) {
+        int inicio = listra * tamanhoListra;
+        int quantidade = Math.min(total, inicio + tamanhoListra) - inicio;
+        int dica = dicas.get(listra * PASSO);
+        for (;;) {
+            for (int k = 0; k < quantidade; k++) {
+                int vaga = inicio + (int) (((long) dica + k) % quantidade);
+                BlocoVagas bloco = blocoParaOcupar(vaga);
+                int i = vaga & MASCARA_BLOCO;
+                if (bloco.tokens.get(i) == LIVRE && bloco.tokens.compareAndSet(i, LIVRE, OCUPANDO)) {
+                    long geracao = (bloco.geracoes.incrementAndGet(i) & 0x3FFFFFFFL) + 1;
+                    long token = geracao << 32 | vaga;
+                    bloco.titulares.set(i, usuarioId);
+                    bloco.referencias.set(i, referencia);
+                    bloco.vencimentos.set(i, venceEmMillis);
+                    bloco.tokens.set(i, token);
+                    dicas.set(listra * PASSO, vaga - inicio + 1 == quantidade ? 0 : vaga - inicio + 1);
+                    emprestimos.increment();
+                    return token;
+                }
+            }
+        }
+    }
+    
+    private BlocoVagas blocoDe(int vaga) {
+        return vaga < 0 || vaga >= total ? null : blocos.get(vaga >>> BITS_BLOCO);
+    }
+    
+    // Aloca o bloco da vaga na primeira ocupação; quem perde a corrida usa o
+    // bloco instalado pelo outro
+    private BlocoVagas blocoParaOcupar(int vaga) {
+        int indice = vaga >>> BITS_BLOCO;
+        BlocoVagas bloco = blocos.get(indice);
+        if (bloco == null) {
+            int base = indice << BITS_BLOCO;
+            BlocoVagas novo = new BlocoVagas(Math.min(TAMANHO_BLOCO, total - base));
+            bloco = blocos.compareAndSet(indice, null, novo) ? novo : blocos.get(indice);
+        }
+        return bloco;
+    }
+}
+
+// Vetor persistente (imutável) com compartilhamento estrutural: trie de
+// 32 posições por nó. Alterar ou acrescentar copia só o caminho até a folha
+// (O(log32 n)); a versão anterior continua válida e inalterada, então um
+// leitor pode guardá-la como instantâneo sem cópia e sem trava
+class VetorPersistente<T> extends java.util.AbstractList<T> implements java.util.RandomAccess {
+    private static final int BITS = 5;
+    private static final int LARGURA = 1 << BITS;
+    private static final int MASCARA = LARGURA - 1;
+    private static final VetorPersistente<?> VAZIO = new VetorPersistente<>(new Object[LARGURA], 0, 0, 0);
+    
+    private final Object[] raiz;
+    private final int nivel; // deslocamento do nível da raiz; 0 = raiz é folha
+    private final int tamanho;
+    private final long versao;
+    
+    private VetorPersistente(Object[] raiz, int nivel, int tamanho, long versao) {
+        this.raiz = raiz;
+        this.nivel = nivel;
+        this.tamanho = tamanho;
+        this.versao = versao;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public static <T> VetorPersistente<T> vazio() {
+        return (VetorPersistente<T>) VAZIO;
+    }
+    
+    // Número da versão: cada alteração publica a seguinte
+    public long getVersao() {
+        return versao;
+    }
+    
+    @Override
+    public int size() {
+        return tamanho;
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int indice) {
+        java.util.Objects.checkIndex(indice, tamanho);
+        Object[] no = raiz;
+        for (int deslocamento = nivel; deslocamento > 0; deslocamento -= BITS) {
+            no = (Object[]) no[(indice >>> deslocamento) & MASCARA];
+        }
+        return (T) no[indice & MASCARA];
+    }
+    
+    public VetorPersistente<T> comAcrescimo(T item) {
+        if (tamanho == 1 << (nivel + BITS)) {
+            // Raiz cheia: sobe um nível, com a raiz atual como primeiro filho
+            Object[] novaRaiz = new Object[LARGURA];
+            novaRaiz[0] = raiz;
+            return new VetorPersistente<>(copiarCaminho(novaRaiz, nivel + BITS, tamanho, item), nivel + BITS,
+                                          tamanho + 1, versao + 1);
+        }
+        return new VetorPersistente<>(copiarCaminho(raiz, nivel, tamanho, item), nivel, tamanho + 1, versao + 1);
+    }
+    
+    public VetorPersistente<T> comSubstituicao(int indice, T item) {
+        java.util.Objects.checkIndex(indice, tamanho);
+        return new VetorPersistente<>(copiarCaminho(raiz, nivel, indice, item), nivel, tamanho, versao + 1);
+    }
+    
+    // Inserir no meio desloca os seguintes; as folhas antes do índice são
+    // compartilhadas (ver comFolhasRefeitas)
+    public VetorPersistente<T> comInsercao(int indice, T item) {
+        java.util.Objects.checkIndex(indice, tamanho + 1);
+        return comFolhasRefeitas(indice, tamanho + 1, -1, item);
+    }
+    
+    // Remover desloca os seguintes; as folhas antes do índice são compartilhadas
+    public VetorPersistente<T> semIndice(int indice) {
+        java.util.Objects.checkIndex(indice, tamanho);
+        return comFolhasRefeitas(indice, tamanho - 1, 1, null);
+    }
+    
+    // Refaz só as folhas a partir da que contém 'inicio' e remonta os níveis
+    // acima: O(n/32) mais os itens deslocados, em vez de copiar o vetor
+    // inteiro. Do índice em diante o item j vem da posição j + salto da
+    // versão atual (salto 1: remoção; -1: inserção de 'inserido' em 'inicio')
+    private VetorPersistente<T> comFolhasRefeitas(int inicio, int novoTamanho, int salto, Object inserido) {
+        Object[] antigas = new Object[Math.max(1, (tamanho + MASCARA) >>> BITS)];
+        coletarFolhas(raiz, nivel, antigas, 0);
+        Object[] folhas = new Object[Math.max(1, (novoTamanho + MASCARA) >>> BITS)];
+        int primeira = inicio >>> BITS;
+        System.arraycopy(antigas, 0, folhas, 0, Math.min(primeira, folhas.length));
+        for (int f = primeira; f < folhas.length; f++) {
+            Object[] folha = new Object[LARGURA];
+            for (int k = 0, j = f << BITS; k < LARGURA && j < novoTamanho; k++, j++) {
+                int anterior = j < inicio ? j : salto < 0 && j == inicio ? -1 : j + salto;
+                folha[k] = anterior < 0 ? inserido : ((Object[]) antigas[anterior >>> BITS])[anterior & MASCARA];
+            }
+            folhas[f] = folha;
+        }
+        return montar(folhas, novoTamanho, versao + 1);
+    }
+    
+    private static int coletarFolhas(Object[] no, int deslocamento, Object[] destino, int proxima) {
+        if (deslocamento == 0) {
+            destino[proxima] = no;
+            return proxima + 1;
+        }
+        for (int i = 0; i < LARGURA && no[i] != null && proxima < destino.length; i++) {
+            proxima = coletarFolhas((Object[]) no[i], deslocamento - BITS, destino, proxima);
+        }
+        return proxima;
+    }
+    
+    // Sobe nível a nível a partir das folhas: O(n/32)
+    private static <T> VetorPersistente<T> montar(Object[] nos, int quantidade, long versao) {
+        int nivel = 0;
+        while (nos.length > 1) {
+            Object[] pais = new Object[(nos.length + MASCARA) >>> BITS];
+            for (int i = 0; i < pais.length; i++) {
+                pais[i] = java.util.Arrays.copyOfRange(nos, i << BITS, (i << BITS) + LARGURA);
+            }
+            nos = pais;
+            nivel += BITS;
+        }
+        return new VetorPersistente<>((Object[]) nos[0], nivel, quantidade, versao);
+    }
+    
+    private static Object[] copiarCaminho(Object[] no, int deslocamento, int indice, Object item) {
+        Object[] copia = no != null ? no.clone() : new Object[LARGURA];
+        int posicao = (indice >>> deslocamento) & MASCARA;
+        copia[posicao] = deslocamento == 0 ? item
+            : copiarCaminho((Object[]) copia[posicao], deslocamento - BITS, indice, item);
+        return copia;
+    }
+}
+
+// Interface GeradorIds - contrato do serviço plugável de sequências de ids
+interface GeradorIds {
+    long proximo();
+    
+    // Garante que os próximos ids sejam maiores que 'valor' (ex.: após restaurar dados)
+    void avancarPara(long valor);
+}
+
+// Interface ArmazemSequencias - guarda a marca d'água (maior valor já
+// reservado) de cada sequência
+interface ArmazemSequencias {
+    // Reserva atomicamente o bloco [inicio, inicio + tamanho) e devolve o início
+    long reservarBloco(String sequencia, int tamanho);
+    
+    // Garante que blocos futuros comecem em 'minimo' ou depois
+    void avancarPara(String sequencia, long minimo);
+}
+
+// Armazém em memória - recomeça do 1 a cada execução
+class ArmazemSequenciasMemoria implements ArmazemSequencias {
+    private final java.util.concurrent.ConcurrentMap<String, java.util.concurrent.atomic.AtomicLong> marcas =
+        new java.util.concurrent.ConcurrentHashMap<>();
+    
+    @Override
+    public long reservarBloco(String sequencia, int tamanho) {
+        return marcas.computeIfAbsent(sequencia, s -> new java.util.concurrent.atomic.AtomicLong(1))
+                     .getAndAdd(tamanho);
+    }
+    
+    @Override
+    public void avancarPara(String sequencia, long minimo) {
+        marcas.computeIfAbsent(sequencia, s -> new java.util.concurrent.atomic.AtomicLong(1))
+              .accumulateAndGet(minimo, Math::max);
+    }
+}
+
+// Armazém em arquivo - a marca d'água é gravada (com fsync) antes de o bloco
+// ser usado, então um reinício continua após o último bloco sem varrer dados
+class ArmazemSequenciasArquivo implements ArmazemSequencias {
+    private final java.nio.file.Path diretorio;
+    private final java.util.Map<String, Long> marcas = new java.util.HashMap<>();
+    
+    public ArmazemSequenciasArquivo(java.nio.file.Path diretorio) {
+        this.diretorio = diretorio;
+    }
+    
+    @Override
+    public synchronized long reservarBloco(String sequencia, int tamanho) {
+        try {
+            Long marca = marcas.get(sequencia);
+            long inicio = marca != null ? marca : lerMarca(sequencia);
+            long fim = Math.addExact(inicio, tamanho);
+            gravarMarca(sequencia, fim);
+            marcas.put(sequencia, fim);
+            return inicio;
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException("Falha ao reservar bloco de ids: " + sequencia, e);
+        }
+    }
+    
+    @Override
+    public synchronized void avancarPara(String sequencia, long minimo) {
+        try {
+            Long marca = marcas.get(sequencia);
+            long atual = marca != null ? marca : lerMarca(sequencia);
+            if (minimo > atual) {
+                gravarMarca(sequencia, minimo);
+                marcas.put(sequencia, minimo);
+            }
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException("Falha ao avançar sequência: " + sequencia, e);
+        }
+    }
+    
+    private long lerMarca(String sequencia) throws java.io.IOException {
+        java.nio.file.Path arquivo = diretorio.resolve(sequencia + ".hwm");
+        if (!java.nio.file.Files.exists(arquivo)) {
+            return 1;
+        }
+        return Long.parseLong(java.nio.file.Files.readString(arquivo).trim());
+    }
+    
+    // Grava em arquivo temporário e troca de forma atômica
+    private void gravarMarca(String sequencia, long marca) throws java.io.IOException {
+        java.nio.file.Files.createDirectories(diretorio);
+        java.nio.file.Path temporario = diretorio.resolve(sequencia + ".hwm.tmp");
+        try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(temporario,
+                java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE,
+                java.nio.file.StandardOpenOption.TRUNCATE_EXISTING)) {
+            canal.write(java.nio.ByteBuffer.wrap(
+                Long.toString(marca).getBytes(java.nio.charset.StandardCharsets.US_ASCII)));
+            canal.force(true);
+        }
+        java.nio.file.Files.move(temporario, diretorio.resolve(sequencia + ".hwm"),
+            java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    }
+}
+
+// Sequência hi/lo - reserva blocos no armazém e distribui os ids do bloco
+// sem lock; só a troca de bloco é sincronizada
+class SequenciaHiLo implements GeradorIds {
+    private static final class Bloco {
+        final long fim;
+        final java.util.concurrent.atomic.AtomicLong proximo;
+        
+        Bloco(long inicio, long fim) {
+            this.fim = fim;
+            this.proximo = new java.util.concurrent.atomic.AtomicLong(inicio);
+        }
+    }
+    
+    private final String nome;
+    private final ArmazemSequencias armazem;
+    private final int tamanhoBloco;
+    private volatile Bloco bloco;
+    
+    public SequenciaHiLo(String nome, ArmazemSequencias armazem, int tamanhoBloco) {
+        if (tamanhoBloco <= 0) {
+            throw new IllegalArgumentException("Tamanho de bloco inválido: " + tamanhoBloco);
+        }
+        this.nome = nome;
+        this.armazem = armazem;
+        this.tamanhoBloco = tamanhoBloco;
+    }
+    
+    @Override
+    public long proximo() {
+        while (true) {
+            Bloco atual = bloco;
+            if (atual != null) {
+                long id = atual.proximo.getAndIncrement();
+                if (id < atual.fim) {
+                    return id;
+                }
+            }
+            renovar(atual);
+        }
+    }
+    
+    // Descarta o bloco atual se ele ainda distribuiria ids <= valor. O bloco é
+    // esgotado antes de sair: quem já leu a referência em proximo() não tira
+    // mais ids dele e vai renovar
+    @Override
+    public synchronized void avancarPara(long valor) {
+        armazem.avancarPara(nome, valor + 1);
+        Bloco atual = bloco;
+        if (atual != null && atual.proximo.get() <= valor) {
+            atual.proximo.getAndAccumulate(atual.fim, Math::max);
+            bloco = null;
+        }
+    }
+    
+    // Só uma thread troca o bloco; as demais encontram o novo bloco publicado
+    private synchronized void renovar(Bloco esgotado) {
+        if (bloco == esgotado) {
+            long inicio = armazem.reservarBloco(nome, tamanhoBloco);
+            bloco = new Bloco(inicio, inicio + tamanhoBloco);
+        }
+    }
+    
+    public String getNome() { return nome; }
+}
+
+// Serviço de ids - ponto único para plugar o armazém das sequências
+final class ServicoIds {
+    public static final int TAMANHO_BLOCO_PADRAO = 1000;
+    private static final ArmazemSequencias ARMAZEM_PADRAO = new ArmazemSequenciasMemoria();
+    
+    private ServicoIds() {}
+    
+    public static GeradorIds nova(String nome) {
+        return new SequenciaHiLo(nome, ARMAZEM_PADRAO, TAMANHO_BLOCO_PADRAO);
+    }
+    
+    // Troca as sequências de Usuario, Livro e Reserva para o armazém informado.
+    // As sequências são estáticas das entidades, então a troca vale para a JVM
+    // inteira: todos os sistemas passam a tirar ids do último armazém configurado
+    public static void configurar(ArmazemSequencias armazem, int tamanhoBloco) {
+        Usuario.configurarSequencia(new SequenciaHiLo("usuario", armazem, tamanhoBloco));
+        Livro.configurarSequencia(new SequenciaHiLo("livro", armazem, tamanhoBloco));
+        Reserva.configurarSequencia(new SequenciaHiLo("reserva", armazem, tamanhoBloco));
+    }
+}
+
+// Travas listradas - um conjunto fixo de locks distribuídos por id,
+// para que operações sobre ids diferentes raramente disputem o mesmo lock
+class TravasListradas {
+    private final java.util.concurrent.locks.ReentrantLock[] travas;
+    private final int mascara;
+    
+    public TravasListradas() {
+        this(Runtime.getRuntime().availableProcessors() * 8);
+    }
+    
+    public TravasListradas(int quantidadeMinima) {
+        int quantidade = Integer.highestOneBit(Math.max(16, quantidadeMinima) - 1) << 1;
+        this.travas = new java.util.concurrent.locks.ReentrantLock[quantidade];
+        for (int i = 0; i < quantidade; i++) {
+            travas[i] = new java.util.concurrent.locks.ReentrantLock();
+        }
+        this.mascara = quantidade - 1;
+    }
+    
+    public java.util.concurrent.locks.ReentrantLock obter(long id) {
+        return travas[indice(id)];
+    }
+    
+    public java.util.concurrent.locks.ReentrantLock obter(Object chave) {
+        return obter((long) chave.hashCode());
+    }
+    
+    // Índice da listra; usado também para ordenar aquisições múltiplas
+    public int indice(long id) {
+        long h = id * 0x9E3779B97F4A7C15L; // espalha ids sequenciais
+        return (int) (h ^ (h >>> 32)) & mascara;
+    }
+    
+    // Trava as listras dos ids em ordem crescente de índice, uma vez cada;
+    // a ordem fixa evita deadlock entre lotes concorrentes
+    public java.util.List<java.util.concurrent.locks.ReentrantLock> travarTodas(long... ids) {
+        java.util.BitSet indices = new java.util.BitSet(travas.length);
+        for (long id : ids) {
+            indices.set(indice(id));
+        }
+        java.util.List<java.util.concurrent.locks.ReentrantLock> travadas = new java.util.ArrayList<>(indices.cardinality());
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+            travas[i].lock();
+            travadas.add(travas[i]);
+        }
+        return travadas;
+    }
+    
+    // Libera na ordem inversa da aquisição
+    public static void destravarTodas(java.util.List<java.util.concurrent.locks.ReentrantLock> travadas) {
+        for (int i = travadas.size() - 1; i >= 0; i--) {
+            travadas.get(i).unlock();
+        }
+    }
+}
+
+// Repositório indexado - busca O(1) por chave primária e índices secundários.
+// Seguro para uso concorrente: leituras sem lock, escritas travadas por chave.
+// Listagens vêm de versões imutáveis em ordem de chave (ver VetorPersistente);
+// a mesma versão serve à paginação por cursor, posicionada por busca binária.
+// Os índices secundários guardam só as chaves; o item vem de porChave
+class RepositorioIndexado<K extends Comparable<? super K>, T> extends Repositorio<T> {
+    // Baldes com até tantas chaves são arrays ordenados imutáveis (o caso
+    // comum de índices quase únicos, como email e isbn); maiores viram
+    // conjuntos ordenados concorrentes
+    private static final int LIMITE_BALDE_ARRAY = 32;
+    
+    private final java.util.function.Function<T, K> extratorChave;
+    private final java.util.concurrent.ConcurrentMap<K, T> porChave;
+    // Versão publicada, em ordem de chave; escritas sob 'publicacao'
+    private volatile VetorPersistente<T> versao = VetorPersistente.vazio();
+    private final Object publicacao = new Object();
+    // nome do índice -> valor indexado -> chaves com aquele valor (Object[]
+    // ordenado ou ConcurrentSkipListSet, ver LIMITE_BALDE_ARRAY)
+    private final java.util.concurrent.ConcurrentMap<String, java.util.concurrent.ConcurrentMap<Object, Object>> indices;
+    // Índices devem ser declarados antes do uso concorrente
+    private volatile String[] nomesIndices;
+    private volatile java.util.function.Function<T, ?>[] extratores;
+    // Valores indexados no momento da inserção, para remover corretamente
+    // mesmo que o atributo tenha mudado depois (ex.: setEmail)
+    private final java.util.concurrent.ConcurrentMap<K, Object[]> valoresIndexados;
+    private final TravasListradas travas;
+    
+    @SuppressWarnings("unchecked")
+    public RepositorioIndexado(java.util.function.Function<T, K> extratorChave) {
+        this.extratorChave = extratorChave;
+        this.porChave = new java.util.concurrent.ConcurrentHashMap<>();
+        this.indices = new java.util.concurrent.ConcurrentHashMap<>();
+        this.nomesIndices = new String[0];
+        this.extratores = (java.util.function.Function<T, ?>[]) new java.util.function.Function<?, ?>[0];
+        this.valoresIndexados = new java.util.concurrent.ConcurrentHashMap<>();
+        this.travas = new TravasListradas();
+    }
+    
+    // Declara um índice secundário; itens já existentes são indexados
+    public synchronized RepositorioIndexado<K, T> declararIndice(String nome, java.util.function.Function<T, ?> extrator) {
+        if (indices.containsKey(nome)) {
+            throw new IllegalArgumentException("Índice já declarado: " + nome);
+        }
+        int n = nomesIndices.length;
+        String[] nomes = java.util.Arrays.copyOf(nomesIndices, n + 1);
+        java.util.function.Function<T, ?>[] funcoes = java.util.Arrays.copyOf(extratores, n + 1);
+        nomes[n] = nome;
+        funcoes[n] = extrator;
+        indices.put(nome, new java.util.concurrent.ConcurrentHashMap<>());
+        this.nomesIndices = nomes;
+        this.extratores = funcoes;
+        for (java.util.Map.Entry<K, T> entrada : porChave.entrySet()) {
+            reindexar(entrada.getValue());
+        }
+        return this;
+    }
+    
+    @Override
+    public void adicionar(T item) {
+        K chave = extratorChave.apply(item);
+        java.util.concurrent.locks.Lock trava = travas.obter(chave);
+        trava.lock();
+        try {
+            T anterior = porChave.put(chave, item);
+            if (anterior != null) {
+                desindexar(chave);
+            }
+            valoresIndexados.put(chave, indexar(chave, item));
+            publicar(chave, item);
+        } finally {
+            trava.unlock();
+        }
+    }
+    
+    @Override
+    public void remover(T item) {
+        K chave = extratorChave.apply(item);
+        java.util.concurrent.locks.Lock trava = travas.obter(chave);
+        trava.lock();
+        try {
+            if (porChave.remove(chave) != null) {
+                desindexar(chave);
+                publicar(chave, null);
+            }
+        } finally {
+            trava.unlock();
+        }
+    }
+    
+    // Busca O(1) pela chave primária
+    public T obterPorChave(K chave) {
+        return porChave.get(chave);
+    }
+    
+    public boolean contemChave(K chave) {
+        return porChave.containsKey(chave);
+    }
+    
+    // Busca O(1) pelo valor de um índice secundário
+    public java.util.List<T> buscarPorIndice(String nome, Object valor) {
+        return fluxoPorIndice(nome, valor).collect(java.util.stream.Collectors.toList());
+    }
+    
+    public boolean temIndice(String nome) {
+        return indices.containsKey(nome);
+    }
+    
+    // Itens com o valor indexado, contados até 'teto' (o conjunto ordenado
+    // não guarda o tamanho)
+    public long contarPorIndice(String nome, Object valor, long teto) {
+        Object balde = balde(nome, valor);
+        if (balde instanceof Object[]) {
+            return Math.min(((Object[]) balde).length, teto);
+        }
+        return chavesDoBalde(balde, null).limit(teto).count();
+    }
+    
+    // Chaves com o valor indexado, em ordem, sem cópia do balde
+    public java.util.stream.Stream<K> chavesPorIndice(String nome, Object valor) {
+        return chavesDoBalde(balde(nome, valor), null);
+    }
+    
+    public boolean contemNoIndice(String nome, Object valor, K chave) {
+        Object balde = balde(nome, valor);
+        if (balde instanceof Object[]) {
+            return java.util.Arrays.binarySearch((Object[]) balde, chave) >= 0;
+        }
+        return balde != null && ((java.util.Set<?>) balde).contains(chave);
+    }
+    
+    // Itens com o valor indexado, em ordem de chave e sem cópia do balde
+    public java.util.stream.Stream<T> fluxoPorIndice(String nome, Object valor) {
+        return itensDasChaves(chavesPorIndice(nome, valor));
+    }
+    
+    // Itens em ordem de chave a partir do cursor (exclusivo; null = início),
+    // sobre uma única versão
+    public java.util.stream.Stream<T> fluxoOrdenado(K depoisDe) {
+        VetorPersistente<T> atual = versao;
+        return atual.subList(posicaoApos(atual, depoisDe), atual.size()).stream();
+    }
+    
+    // Página por cursor: O(log n) para posicionar e só os itens da página
+    // (mais os descartados pelo critério) são visitados
+    public Pagina<K, T> pagina(K depoisDe, int limite) {
+        return pagina(depoisDe, limite, item -> true);
+    }
+    
+    public Pagina<K, T> pagina(K depoisDe, int limite, java.util.function.Predicate<T> criterio) {
+        return Pagina.de(fluxoOrdenado(depoisDe).filter(criterio).limit(Pagina.exigirLimite(limite) + 1L)
+                                                .collect(java.util.stream.Collectors.toList()),
+                         limite, extratorChave);
+    }
+    
+    public Pagina<K, T> paginaPorIndice(String nome, Object valor, K depoisDe, int limite) {
+        return Pagina.de(itensDasChaves(chavesDoBalde(balde(nome, valor), depoisDe)).limit(Pagina.exigirLimite(limite) + 1L)
+                                                                                  .collect(java.util.stream.Collectors.toList()),
+                         limite, extratorChave);
+    }
+    
+    // Reindexa um item cujo atributo indexado foi alterado
+    public void reindexar(T item) {
+        K chave = extratorChave.apply(item);
+        java.util.concurrent.locks.Lock trava = travas.obter(chave);
+        trava.lock();
+        try {
+            if (porChave.containsKey(chave)) {
+                desindexar(chave);
+                valoresIndexados.put(chave, indexar(chave, item));
+            }
+        } finally {
+            trava.unlock();
+        }
+    }
+    
+    // Em ordem de chave, que para ids gerados em sequência é a ordem de inclusão
+    @Override
+    public VetorPersistente<T> instantaneo() {
+        return versao;
+    }
+    
+    @Override
+    public int tamanho() {
+        return porChave.size();
+    }
+    
+    // Substitui na mesma posição, insere na posição da chave ou remove (item
+    // null), publicando a nova versão; chamado sob a trava da chave. Chaves
+    // crescentes (ids gerados) só acrescentam no fim, O(log32 n); inserir fora
+    // de ordem ou remover reconstrói o vetor a partir de um array, O(n)
+    private void publicar(K chave, T item) {
+        synchronized (publicacao) {
+            VetorPersistente<T> atual = versao;
+            int posicao = buscarPosicao(atual, chave);
+            if (posicao >= 0) {
+                versao = item != null ? atual.comSubstituicao(posicao, item) : atual.semIndice(posicao);
+            } else if (item != null) {
+                int insercao = -posicao - 1;
+                versao = insercao == atual.size() ? atual.comAcrescimo(item) : atual.comInsercao(insercao, item);
+            }
+        }
+    }
+    
+    // Busca binária pela chave na versão; como Arrays.binarySearch, devolve
+    // -(ponto de inserção) - 1 se ausente
+    private int buscarPosicao(VetorPersistente<T> atual, K chave) {
+        int inicio = 0;
+        int fim = atual.size() - 1;
+        while (inicio <= fim) {
+            int meio = (inicio + fim) >>> 1;
+            int comparacao = extratorChave.apply(atual.get(meio)).compareTo(chave);
+            if (comparacao < 0) {
+                inicio = meio + 1;
+            } else if (comparacao > 0) {
+                fim = meio - 1;
+            } else {
+                return meio;
+            }
+        }
+        return -(inicio + 1);
+    }
+    
+    private int posicaoApos(VetorPersistente<T> atual, K depoisDe) {
+        if (depoisDe == null) {
+            return 0;
+        }
+        int posicao = buscarPosicao(atual, depoisDe);
+        return posicao >= 0 ? posicao + 1 : -posicao - 1;
+    }
+    
+    // Balde do valor indexado, ou null se nenhum item tem o valor
+    private Object balde(String nome, Object valor) {
+        java.util.Map<Object, Object> indice = indices.get(nome);
+        if (indice == null) {
+            throw new IllegalArgumentException("Índice não declarado: " + nome);
+        }
+        return valor == null ? null : indice.get(valor);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private java.util.stream.Stream<K> chavesDoBalde(Object balde, K depoisDe) {
+        if (balde == null) {
+            return java.util.stream.Stream.empty();
+        }
+        if (balde instanceof Object[]) {
+            Object[] chaves = (Object[]) balde;
+            int inicio = 0;
+            if (depoisDe != null) {
+                int posicao = java.util.Arrays.binarySearch(chaves, depoisDe);
+                inicio = posicao >= 0 ? posicao + 1 : -posicao - 1;
+            }
+            return java.util.Arrays.stream(chaves, inicio, chaves.length).map(chave -> (K) chave);
+        }
+        java.util.NavigableSet<K> conjunto = (java.util.NavigableSet<K>) balde;
+        return (depoisDe == null ? conjunto : conjunto.tailSet(depoisDe, false)).stream();
+    }
+    
+    // Chaves removidas entre a leitura do balde e a do item são puladas
+    private java.util.stream.Stream<T> itensDasChaves(java.util.stream.Stream<K> chaves) {
+        return chaves.map(porChave::get).filter(java.util.Objects::nonNull);
+    }
+    
+    private Object[] indexar(K chave, T item) {
+        String[] nomes = nomesIndices;
+        java.util.function.Function<T, ?>[] funcoes = extratores;
+        Object[] valores = new Object[funcoes.length];
+        for (int i = 0; i < funcoes.length; i++) {
+            Object valor = funcoes[i].apply(item);
+            valores[i] = valor;
+            if (valor != null) {
+                // compute é atômico por balde, evitando corrida com desindexar
+                indices.get(nomes[i]).compute(valor, (v, balde) -> comChave(balde, chave));
+            }
+        }
+        return valores;
+    }
+    
+    private void desindexar(K chave) {
+        Object[] valores = valoresIndexados.remove(chave);
+        if (valores == null) return;
+        String[] nomes = nomesIndices;
+        for (int i = 0; i < valores.length && i < nomes.length; i++) {
+            Object valor = valores[i];
+            if (valor == null) continue;
+            // computeIfPresent remove o balde vazio de forma atômica
+            indices.get(nomes[i]).computeIfPresent(valor, (v, balde) -> semChave(balde, chave));
+        }
+    }
+    
+    // Chamados dentro de compute: o array é trocado por uma cópia (leitores
+    // veem a versão anterior inteira); o conjunto é alterado no lugar
+    @SuppressWarnings("unchecked")
+    private static <K> Object comChave(Object balde, K chave) {
+        if (balde == null) {
+            return new Object[] {chave};
+        }
+        if (balde instanceof Object[]) {
+            Object[] chaves = (Object[]) balde;
+            int posicao = java.util.Arrays.binarySearch(chaves, chave);
+            if (posicao >= 0) {
+                return chaves;
+            }
+            if (chaves.length < LIMITE_BALDE_ARRAY) {
+                int insercao = -posicao - 1;
+                Object[] novas = new Object[chaves.length + 1];
+                System.arraycopy(chaves, 0, novas, 0, insercao);
+                novas[insercao] = chave;
+                System.arraycopy(chaves, insercao, novas, insercao + 1, chaves.length - insercao);
+                return novas;
+            }
+            java.util.concurrent.ConcurrentSkipListSet<K> conjunto = new java.util.concurrent.ConcurrentSkipListSet<>();
+            for (Object existente : chaves) {
+                conjunto.add((K) existente);
+            }
+            balde = conjunto;
+        }
+        ((java.util.Set<K>) balde).add(chave);
+        return balde;
+    }
+    
+    private static Object semChave(Object balde, Object chave) {
+        if (balde instanceof Object[]) {
+            Object[] chaves = (Object[]) balde;
+            int posicao = java.util.Arrays.binarySearch(chaves, chave);
+            if (posicao < 0) {
+                return chaves;
+            }
+            if (chaves.length == 1) {
+                return null;
+            }
+            Object[] novas = new Object[chaves.length - 1];
+            System.arraycopy(chaves, 0, novas, 0, posicao);
+            System.arraycopy(chaves, posicao + 1, novas, posicao, novas.length - posicao);
+            return novas;
+        }
+        java.util.Set<?> conjunto = (java.util.Set<?>) balde;
+        conjunto.remove(chave);
+        return conjunto.isEmpty() ? null : conjunto;
+    }
+}
+
+// Chave de consulta de livros - usada pelo cache para invalidação direcionada
+class ConsultaLivro {
+    private final String titulo;
+    private final String autor;
+    private final int limite;
+    
+    public ConsultaLivro(String titulo, String autor, int limite) {
+        this.titulo = titulo;
+        this.autor = autor;
+        this.limite = limite;
+    }
+    
+    public String getTitulo() { return titulo; }
+    public String getAutor() { return autor; }
+    public int getLimite() { return limite; }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ConsultaLivro)) return false;
+        ConsultaLivro outra = (ConsultaLivro) o;
+        return limite == outra.limite
+            && java.util.Objects.equals(titulo, outra.titulo)
+            && java.util.Objects.equals(autor, outra.autor);
+    }
+    
+    @Override
+    public int hashCode() {
+        return java.util.Objects.hash(titulo, autor, limite);
+    }
+    
+    @Override
+    public String toString() {
+        return titulo + (autor != null ? "_" + autor : "") + "#" + limite;
+    }
+}
+
+// Motor de busca - índice invertido sobre tokens normalizados de título e autor
+class MotorBusca {
+    static final int PONTOS_TOKEN_EXATO = 2;
+    static final int PONTOS_PREFIXO = 1;
+    // Tokens de consulta mais curtos que isso só casam exatamente: um prefixo
+    // de uma letra percorreria boa parte do vocabulário a cada busca
+    static final int TAMANHO_MINIMO_PREFIXO = 2;
+    
+    // token -> ids dos livros; ordenado para permitir busca por prefixo, com
+    // ids ordenados para a paginação saltar direto ao cursor
+    private final java.util.NavigableMap<String, java.util.NavigableSet<Long>> indiceTitulo;
+    private final java.util.NavigableMap<String, java.util.NavigableSet<Long>> indiceAutor;
+    private final java.util.NavigableMap<Long, Livro> documentos;
+    // Buscas em paralelo compartilham a leitura; indexação é exclusiva
+    private final java.util.concurrent.locks.ReadWriteLock trava;
+    
+    public MotorBusca() {
+        this.indiceTitulo = new java.util.TreeMap<>();
+        this.indiceAutor = new java.util.TreeMap<>();
+        this.documentos = new java.util.TreeMap<>();
+        this.trava = new java.util.concurrent.locks.ReentrantReadWriteLock();
+    }
+    
+    // Normaliza o texto (minúsculas, sem acentos) e quebra em tokens
+    public static java.util.List<String> tokenizar(String texto) {
+        java.util.List<String> tokens = new java.util.ArrayList<>();
+        if (texto == null || texto.isEmpty()) return tokens;
+        
+        String decomposto = java.text.Normalizer.normalize(texto, java.text.Normalizer.Form.NFD);
+        StringBuilder atual = new StringBuilder();
+        for (int i = 0; i < decomposto.length(); i++) {
+            char c = decomposto.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue; // acento separado pela decomposição
+            }
+            if (Character.isLetterOrDigit(c)) {
+                atual.append(Character.toLowerCase(c));
+            } else if (atual.length() > 0) {
+                tokens.add(atual.toString());
+                atual.setLength(0);
+            }
+        }
+        if (atual.length() > 0) {
+            tokens.add(atual.toString());
+        }
+        return tokens;
+    }
+    
+    public void indexar(Livro livro) {
+        trava.writeLock().lock();
+        try {
+            Livro anterior = documentos.put(livro.getId(), livro);
+            if (anterior != null) {
+                removerTokens(indiceTitulo, tokenizar(anterior.getTitulo()), anterior.getId());
+                removerTokens(indiceAutor, tokenizar(anterior.getAutor()), anterior.getId());
+            }
+            adicionarTokens(indiceTitulo, tokenizar(livro.getTitulo()), livro.getId());
+            adicionarTokens(indiceAutor, tokenizar(livro.getAutor()), livro.getId());
+        } finally {
+            trava.writeLock().unlock();
+        }
+    }
+    
+    public void remover(Livro livro) {
+        trava.writeLock().lock();
+        try {
+            documentos.remove(livro.getId());
+            removerTokens(indiceTitulo, tokenizar(livro.getTitulo()), livro.getId());
+            removerTokens(indiceAutor, tokenizar(livro.getAutor()), livro.getId());
+        } finally {
+            trava.writeLock().unlock();
+        }
+    }
+    
+    public int tamanho() {
+        trava.readLock().lock();
+        try {
+            return documentos.size();
+        } finally {
+            trava.readLock().unlock();
+        }
+    }
+    
+    // Verifica se um livro atenderia à consulta, sem consultar o índice
+    public static boolean atende(Livro livro, String titulo, String autor) {
+        return atende(livro.getTitulo(), livro.getAutor(), titulo, autor);
+    }
+    
+    // Versão sobre os textos, usada sem materializar o livro (CatalogoMapeado)
+    public static boolean atende(String tituloLivro, String autorLivro, String titulo, String autor) {
+        return contemPrefixos(tokenizar(tituloLivro), tokenizar(titulo))
+            && (autor == null || contemPrefixos(tokenizar(autorLivro), tokenizar(autor)));
+    }
+    
+    // Retorna os k livros mais relevantes; todo token da consulta deve
+    // casar (exato ou como prefixo) com algum token do livro
+    public java.util.List<Livro> buscar(String titulo, String autor, int limite) {
+        trava.readLock().lock();
+        try {
+            return buscarNoIndice(titulo, autor, limite);
+        } finally {
+            trava.readLock().unlock();
+        }
+    }
+    
+    // Pontuação de cada livro que casa com a consulta; null para consulta sem
+    // tokens. Permite combinar com outra fonte antes do top-k (catálogo mapeado)
+    public java.util.Map<Long, Integer> pontuar(String titulo, String autor) {
+        trava.readLock().lock();
+        try {
+            java.util.Map<Long, Integer> pontuacao = null;
+            for (String token : tokenizar(titulo)) {
+                pontuacao = intersectar(pontuacao, correspondencias(indiceTitulo, token));
+            }
+            if (autor != null) {
+                for (String token : tokenizar(autor)) {
+                    pontuacao = intersectar(pontuacao, correspondencias(indiceAutor, token));
+                }
+            }
+            return pontuacao;
+        } finally {
+            trava.readLock().unlock();
+        }
+    }
+    
+    // Os 'limite' ids de maior pontuação (empate: menor id), do mais relevante
+    // ao menos; heap mínimo limitado a k elementos, O(n log k)
+    public static java.util.List<Long> maisRelevantes(java.util.Map<Long, Integer> pontuacao, int limite) {
+        java.util.Comparator<java.util.Map.Entry<Long, Integer>> relevancia =
+            java.util.Map.Entry.<Long, Integer>comparingByValue()
+                .thenComparing(java.util.Map.Entry.<Long, Integer>comparingByKey().reversed());
+        java.util.PriorityQueue<java.util.Map.Entry<Long, Integer>> heap =
+            new java.util.PriorityQueue<>(Math.max(1, Math.min(limite, pontuacao.size())), relevancia);
+        
+        for (java.util.Map.Entry<Long, Integer> entrada : pontuacao.entrySet()) {
+            if (heap.size() < limite) {
+                heap.offer(entrada);
+            } else if (limite > 0 && relevancia.compare(entrada, heap.peek()) > 0) {
+                heap.poll();
+                heap.offer(entrada);
+            }
+        }
+        
+        Long[] ids = new Long[heap.size()];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            ids[i] = heap.poll().getKey();
+        }
+        return java.util.Arrays.asList(ids);
+    }
+    
+    // Os 'limite' livros de menor id acima de 'depoisDe' que atendem à consulta,
+    // em ordem de id (paginação por cursor em vez de relevância). As postagens
+    // são ordenadas: cada token salta direto ao seu próximo id a partir do
+    // candidato (ceiling), então só a página e os saltos até ela são visitados
+    public java.util.List<Livro> buscarPagina(String titulo, String autor, long depoisDe, int limite) {
+        Pagina.exigirLimite(limite);
+        trava.readLock().lock();
+        try {
+            java.util.List<java.util.Collection<java.util.NavigableSet<Long>>> termos = termosDaConsulta(titulo, autor);
+            java.util.List<Livro> pagina = new java.util.ArrayList<>(Math.min(limite, 64));
+            if (termos.isEmpty()) {
+                // Consulta sem tokens: todos os livros casam
+                for (Livro livro : documentos.tailMap(depoisDe, false).values()) {
+                    if (pagina.size() == limite) break;
+                    pagina.add(livro);
+                }
+                return pagina;
+            }
+            long minimo = depoisDe; // o próximo id deve ser maior que este
+            buscando:
+            while (pagina.size() < limite && minimo < Long.MAX_VALUE) {
+                long candidato = minimo + 1;
+                // Casa quando todos os tokens param no mesmo id numa passada
+                boolean casou = false;
+                while (!casou) {
+                    casou = true;
+                    for (java.util.Collection<java.util.NavigableSet<Long>> postagens : termos) {
+                        Long proximo = tetoEm(postagens, candidato);
+                        if (proximo == null) {
+                            break buscando;
+                        }
+                        if (proximo != candidato) {
+                            candidato = proximo;
+                            casou = false;
+                        }
+                    }
+                }
+                pagina.add(documentos.get(candidato));
+                minimo = candidato;
+            }
+            return pagina;
+        } finally {
+            trava.readLock().unlock();
+        }
+    }
+    
+    // Para cada token da consulta, as postagens dos termos que casam com ele
+    private java.util.List<java.util.Collection<java.util.NavigableSet<Long>>> termosDaConsulta(String titulo, String autor) {
+        java.util.List<java.util.Collection<java.util.NavigableSet<Long>>> termos = new java.util.ArrayList<>();
+        for (String token : tokenizar(titulo)) {
+            termos.add(termosQueCasam(indiceTitulo, token).values());
+        }
+        if (autor != null) {
+            for (String token : tokenizar(autor)) {
+                termos.add(termosQueCasam(indiceAutor, token).values());
+            }
+        }
+        return termos;
+    }
+    
+    // Menor id >= 'id' na união das postagens dos termos de um token
+    private static Long tetoEm(java.util.Collection<java.util.NavigableSet<Long>> postagens, long id) {
+        Long menor = null;
+        for (java.util.NavigableSet<Long> ids : postagens) {
+            Long teto = ids.ceiling(id);
+            if (teto != null && (menor == null || teto < menor)) {
+                menor = teto;
+            }
+        }
+        return menor;
+    }
+    
+    private java.util.List<Livro> buscarNoIndice(String titulo, String autor, int limite) {
+        java.util.Map<Long, Integer> pontuacao = null;
+        for (String token : tokenizar(titulo)) {
+            pontuacao = intersectar(pontuacao, correspondencias(indiceTitulo, token));
+            if (pontuacao.isEmpty()) return new java.util.ArrayList<>();
+        }
+        if (autor != null) {
+            for (String token : tokenizar(autor)) {
+                pontuacao = intersectar(pontuacao, correspondencias(indiceAutor, token));
+                if (pontuacao.isEmpty()) return new java.util.ArrayList<>();
+            }
+        }
+        
+        if (pontuacao == null) {
+            // Consulta sem tokens: todos os livros casam, em ordem de id
+            return documentos.values().stream()
+                             .limit(limite)
+                             .collect(java.util.stream.Collectors.toList());
+        }
+        return topK(pontuacao, limite);
+    }
+    
+    private java.util.List<Livro> topK(java.util.Map<Long, Integer> pontuacao, int limite) {
+        java.util.List<Livro> resultado = new java.util.ArrayList<>();
+        for (Long id : maisRelevantes(pontuacao, limite)) {
+            resultado.add(documentos.get(id));
+        }
+        return resultado;
+    }
+    
+    // Faixa do índice que casa com o token da consulta (ver TAMANHO_MINIMO_PREFIXO)
+    static <V> java.util.NavigableMap<String, V> termosQueCasam(java.util.NavigableMap<String, V> indice, String token) {
+        return token.length() < TAMANHO_MINIMO_PREFIXO
+            ? indice.subMap(token, true, token, true)
+            : indice.subMap(token, true, token + Character.MAX_VALUE, false);
+    }
+    
+    private static java.util.Map<Long, Integer> correspondencias(
+            java.util.NavigableMap<String, java.util.NavigableSet<Long>> indice, String token) {
+        java.util.Map<Long, Integer> encontrados = new java.util.HashMap<>();
+        for (java.util.Map.Entry<String, java.util.NavigableSet<Long>> entrada : termosQueCasam(indice, token).entrySet()) {
+            int pontos = entrada.getKey().equals(token) ? PONTOS_TOKEN_EXATO : PONTOS_PREFIXO;
+            for (Long id : entrada.getValue()) {
+                encontrados.merge(id, pontos, Math::max);
+            }
+        }
+        return encontrados;
+    }
+    
+    private static java.util.Map<Long, Integer> intersectar(java.util.Map<Long, Integer> acumulado,
+                                                               java.util.Map<Long, Integer> parcial) {
+        if (acumulado == null) return parcial;
+        java.util.Map<Long, Integer> menor = acumulado.size() <= parcial.size() ? acumulado : parcial;
+        java.util.Map<Long, Integer> maior = menor == acumulado ? parcial : acumulado;
+        java.util.Map<Long, Integer> resultado = new java.util.HashMap<>();
+        for (java.util.Map.Entry<Long, Integer> entrada : menor.entrySet()) {
+            Integer outro = maior.get(entrada.getKey());
+            if (outro != null) {
+                resultado.put(entrada.getKey(), entrada.getValue() + outro);
+            }
+        }
+        return resultado;
+    }
+    
+    private static boolean contemPrefixos(java.util.List<String> tokensLivro, java.util.List<String> tokensConsulta) {
+        for (String consulta : tokensConsulta) {
+            boolean encontrado = false;
+            for (String token : tokensLivro) {
+                if (consulta.length() < TAMANHO_MINIMO_PREFIXO ? token.equals(consulta) : token.startsWith(consulta)) {
+                    encontrado = true;
+                    break;
+                }
+            }
+            if (!encontrado) return false;
+        }
+        return true;
+    }
+    
+    private static void adicionarTokens(java.util.Map<String, java.util.NavigableSet<Long>> indice,
+                                        java.util.List<String> tokens, long id) {
+        for (String token : tokens) {
+            indice.computeIfAbsent(token, t -> new java.util.TreeSet<>()).add(id);
+        }
+    }
+    
+    private static void removerTokens(java.util.Map<String, java.util.NavigableSet<Long>> indice,
+                                      java.util.List<String> tokens, long id) {
+        for (String token : tokens) {
+            java.util.Set<Long> ids = indice.get(token);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) indice.remove(token);
+            }
+        }
+    }
+}
+
+// Condição de igualdade/intervalo de uma consulta: o campo e o valor servem
+// ao planejador para escolher índices; o teste vale para qualquer item
+final class Condicao<T> {
+    final String campo;
+    final Object valor;
+    final String descricao;
+    final java.util.function.Predicate<T> teste;
+    
+    Condicao(String campo, Object valor, String descricao, java.util.function.Predicate<T> teste) {
+        this.campo = campo;
+        this.valor = valor;
+        this.descricao = descricao;
+        this.teste = teste;
+    }
+    
+    @Override
+    public String toString() {
+        return descricao;
+    }
+}
+
+// O que uma coleção oferece ao planejador de consultas: listas de postagem
+// ordenadas por chave para os campos indexados e uma varredura para o resto
+interface FonteConsulta<T> {
+    String getNome();
+    long tamanho();
+    
+    // Tamanho da lista de postagem, contado até 'teto'; -1 se o campo não tem índice
+    long estimar(String campo, Object valor, long teto);
+    // Chaves da lista de postagem, em ordem crescente
+    long[] postagens(String campo, Object valor);
+    boolean contem(String campo, Object valor, long chave);
+    T obter(long chave);
+    java.util.stream.Stream<T> varrer();
+    
+    // Até 'limite' itens que os índices não cobrem (ex.: catálogo mapeado),
+    // já filtrados; o fluxo é preguiçoso
+    default java.util.stream.Stream<T> foraDosIndices(java.util.List<Condicao<T>> condicoes, int limite) {
+        return java.util.stream.Stream.empty();
+    }
+    
+    // Linha do explain para a parte fora dos índices; null se não há
+    default String descreverForaDosIndices() {
+        return null;
+    }
+}
+
+// Consulta composta (E lógico) com planejador: estima cada condição
+// indexada, parte da lista de postagem mais seletiva e intersecta as outras
+// (merge de listas ordenadas quando têm tamanho parecido, sondagem no índice
+// quando são muito maiores); condições sem índice viram filtro. Sem nenhuma
+// condição indexada, varre a coleção
+class Consulta<T> {
+    // Contar uma postagem custa o tamanho dela: a estimativa para aqui
+    static final long TETO_ESTIMATIVA = 1 << 14;
+    // Até quantas vezes o tamanho dos candidatos vale fazer merge
+    static final long FATOR_MERGE = 4;
+    
+    private final FonteConsulta<T> fonte;
+    private final java.util.List<Condicao<T>> condicoes = new java.util.ArrayList<>();
+    
+    Consulta(FonteConsulta<T> fonte) {
+        this.fonte = fonte;
+    }
+    
+    protected void onde(String campo, Object valor, String descricao, java.util.function.Predicate<T> teste) {
+        condicoes.add(new Condicao<>(campo, valor, descricao, teste));
+    }
+    
+    // Plano escolhido; recalculado a cada execução, pois as estimativas mudam
+    static final class Plano<T> {
+        final java.util.List<Condicao<T>> indexadas = new java.util.ArrayList<>();
+        final java.util.List<Long> estimativas = new java.util.ArrayList<>();
+        final java.util.List<Condicao<T>> filtros = new java.util.ArrayList<>();
+        
+        boolean varredura() {
+            return indexadas.isEmpty();
+        }
+        
+        // Merge se a postagem é comparável aos candidatos; senão, sondagem
+        boolean usarMerge(int passo) {
+            long base = estimativas.get(0);
+            long estimativa = estimativas.get(passo);
+            return estimativa < TETO_ESTIMATIVA && estimativa <= Math.max(1, base) * FATOR_MERGE;
+        }
+    }
+    
+    Plano<T> planejar() {
+        Plano<T> plano = new Plano<>();
+        java.util.List<Object[]> candidatas = new java.util.ArrayList<>();
+        for (Condicao<T> condicao : condicoes) {
+            long estimativa = condicao.campo != null ? fonte.estimar(condicao.campo, condicao.valor, TETO_ESTIMATIVA) : -1;
+            if (estimativa < 0) {
+                plano.filtros.add(condicao);
+            } else {
+                candidatas.add(new Object[] {condicao, estimativa});
+            }
+        }
+        // A mais seletiva primeiro; empates mantêm a ordem da consulta
+        candidatas.sort(java.util.Comparator.comparingLong(c -> (Long) c[1]));
+        for (Object[] candidata : candidatas) {
+            @SuppressWarnings("unchecked")
+            Condicao<T> condicao = (Condicao<T>) candidata[0];
+            plano.indexadas.add(condicao);
+            plano.estimativas.add((Long) candidata[1]);
+        }
+        return plano;
+    }
+    
+    public java.util.List<T> executar() {
+        return executar(Integer.MAX_VALUE);
+    }
+    
+    public java.util.List<T> executar(int limite) {
+        Plano<T> plano = planejar();
+        java.util.function.Predicate<T> filtro = item -> plano.filtros.stream().allMatch(c -> c.teste.test(item));
+        java.util.stream.Stream<T> resultado;
+        if (plano.varredura()) {
+            resultado = fonte.varrer().filter(filtro);
+        } else {
+            long[] candidatos = fonte.postagens(plano.indexadas.get(0).campo, plano.indexadas.get(0).valor);
+            for (int passo = 1; passo < plano.indexadas.size() && candidatos.length > 0; passo++) {
+                Condicao<T> condicao = plano.indexadas.get(passo);
+                candidatos = plano.usarMerge(passo)
+                    ? intersectar(candidatos, fonte.postagens(condicao.campo, condicao.valor))
+                    : sondar(candidatos, condicao);
+            }
+            resultado = java.util.Arrays.stream(candidatos).mapToObj(fonte::obter)
+                                    .filter(java.util.Objects::nonNull).filter(filtro);
+        }
+        java.util.List<T> itens = resultado.limit(limite).collect(java.util.stream.Collectors.toList());
+        if (itens.size() < limite) {
+            fonte.foraDosIndices(condicoes, limite - itens.size()).forEach(itens::add);
+        }
+        return itens;
+    }
+    
+    // Descreve o plano que executar() usaria agora
+    public String explain() {
+        Plano<T> plano = planejar();
+        StringBuilder saida = new StringBuilder("🧭 Plano de consulta sobre ").append(fonte.getNome()).append(":");
+        int passo = 1;
+        if (plano.varredura()) {
+            saida.append("\n  ").append(passo++).append(". varredura completa (")
+                 .append(fonte.tamanho()).append(" itens)");
+        } else {
+            for (int i = 0; i < plano.indexadas.size(); i++) {
+                saida.append("\n  ").append(passo++).append(". ")
+                     .append(i == 0 ? "índice " : plano.usarMerge(i) ? "interseção (merge) com índice "
+                                                                      : "interseção (sondagem) no índice ")
+                     .append(plano.indexadas.get(i)).append(" (")
+                     .append(formatarEstimativa(plano.estimativas.get(i))).append(")");
+            }
+        }
+        for (Condicao<T> filtro : plano.filtros) {
+            saida.append("\n  ").append(passo++).append(". filtro ").append(filtro);
+        }
+        String foraDosIndices = fonte.descreverForaDosIndices();
+        if (foraDosIndices != null) {
+            saida.append("\n  + ").append(foraDosIndices);
+        }
+        return saida.toString();
+    }
+    
+    private boolean contem(long[] chaves, long chave) {
+        return java.util.Arrays.binarySearch(chaves, chave) >= 0;
+    }
+    
+    private long[] sondar(long[] candidatos, Condicao<T> condicao) {
+        return java.util.Arrays.stream(candidatos)
+                               .filter(chave -> fonte.contem(condicao.campo, condicao.valor, chave))
+                               .toArray();
+    }
+    
+    // Merge de duas listas ordenadas: O(a + b)
+    static long[] intersectar(long[] a, long[] b) {
+        long[] resultado = new long[Math.min(a.length, b.length)];
+        int tamanho = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                resultado[tamanho++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return java.util.Arrays.copyOf(resultado, tamanho);
+    }
+    
+    private static String formatarEstimativa(long estimativa) {
+        return estimativa >= TETO_ESTIMATIVA ? "≥" + TETO_ESTIMATIVA + " itens" : "~" + estimativa + " itens";
+    }
+}
+
+// Consulta sobre o acervo: categoria, autor, tipo e ISBN usam os índices
+// do repositório; disponibilidade muda a cada reserva e fica como filtro
+class ConsultaAcervo extends Consulta<Livro> {
+    ConsultaAcervo(FonteConsulta<Livro> fonte) {
+        super(fonte);
+    }
+    
+    public ConsultaAcervo categoria(String categoria) {
+        onde("categoria", categoria, "categoria = " + categoria,
+             livro -> java.util.Objects.equals(categoria, livro.getCategoria()));
+        return this;
+    }
+    
+    public ConsultaAcervo autor(String autor) {
+        onde("autor", autor, "autor = " + autor, livro -> java.util.Objects.equals(autor, livro.getAutor()));
+        return this;
+    }
+    
+    public ConsultaAcervo tipo(String tipoMidia) {
+        onde("tipo", tipoMidia, "tipo = " + tipoMidia,
+             livro -> java.util.Objects.equals(tipoMidia, livro.getTipoMidia()));
+        return this;
+    }
+    
+    public ConsultaAcervo isbn(String isbn) {
+        onde("isbn", isbn, "isbn = " + isbn, livro -> java.util.Objects.equals(isbn, livro.getIsbn()));
+        return this;
+    }
+    
+    public ConsultaAcervo disponivel(boolean disponivel) {
+        onde("disponivel", disponivel, "disponivel = " + disponivel, livro -> livro.isDisponivel() == disponivel);
+        return this;
+    }
+}
+
+// Consulta sobre as reservas: usuário e livro usam as listas de adjacência;
+// status e datas são filtros lidos das colunas do armazém
+class ConsultaReservas extends Consulta<Reserva> {
+    ConsultaReservas(FonteConsulta<Reserva> fonte) {
+        super(fonte);
+    }
+    
+    public ConsultaReservas usuario(long usuarioId) {
+        onde("usuario", usuarioId, "usuario = " + usuarioId, reserva -> reserva.getUsuarioId() == usuarioId);
+        return this;
+    }
+    
+    public ConsultaReservas livro(long livroId) {
+        onde("livro", livroId, "livro = " + livroId, reserva -> reserva.getLivroId() == livroId);
+        return this;
+    }
+    
+    public ConsultaReservas status(String status) {
+        // Status nunca usado não casa com nada; não é internado
+        int codigo = Reserva.procurarStatus(status);
+        onde("status", status, "status = " + status, reserva -> reserva.getCodigoStatus() == codigo);
+        return this;
+    }
+    
+    // Vencimento estritamente antes do dia
+    public ConsultaReservas venceAntes(java.time.LocalDate dia) {
+        int diaEpoch = (int) dia.toEpochDay();
+        onde("vencimento", dia, "vencimento < " + dia, reserva -> reserva.getDiaVencimento() < diaEpoch);
+        return this;
+    }
+    
+    // Data da reserva no intervalo [de, ate]
+    public ConsultaReservas reservadaEntre(java.time.LocalDate de, java.time.LocalDate ate) {
+        int inicio = (int) de.toEpochDay();
+        int fim = (int) ate.toEpochDay();
+        onde("dataReserva", de, "dataReserva entre " + de + " e " + ate,
+             reserva -> reserva.getDiaReserva() >= inicio && reserva.getDiaReserva() <= fim);
+        return this;
+    }
+}
+
+// ================ CLASSE PRINCIPAL - SISTEMA ================
+
+class SistemaBiblioteca {
+    private Repositorio<Usuario> repositorioUsuarios;
+    private Repositorio<Livro> repositorioLivros;
+    private Repositorio<Reserva> repositorioReservas;
+    private Cache<String, java.util.List<Livro>> cacheConsultas;
+    
+    // Constantes final
+    private static final String VERSAO = "1.0";
+    private static final int CACHE_SIZE = 50;
+    
+    public SistemaBiblioteca() {
+        this.repositorioUsuarios = new Repositorio<>();
+        this.repositorioLivros = new Repositorio<>();
+        this.repositorioReservas = new Repositorio<>();
+        this.cacheConsultas = new Cache<>(CACHE_SIZE);
+        
+        inicializarDadosDemo();
+    }
+    
+    private void inicializarDadosDemo() {
+        // Criando usuários - demonstra polimorfismo e herança
+        Usuario user1 = new UsuarioComum("João Silva", "joao@email.com", "123456");
+        Usuario user2 = new UsuarioComum("Maria Santos");
+        Usuario admin = new Administrador("Ana Admin", "ana@admin.com", "admin123");
+        
+        repositorioUsuarios.adicionar(user1);
+        repositorioUsuarios.adicionar(user2);
+        repositorioUsuarios.adicionar(admin);
+        
+        // Criando livros - demonstra polimorfismo e herança
+        Livro livro1 = new LivroFisico("Java: Como Programar", "Paul Deitel", 
+                                      "978-85-7522-123-4", "Programação", "Estante A1");
+        Livro livro2 = new LivroDigital("Clean Code", "Robert Martin", 
+                                       "978-85-7522-456-7", "Programação", 
+                                       "/livros/clean_code.pdf", 3);
+        Livro livro3 = new LivroFisico("Design Patterns", "Gang of Four");
+        
+        repositorioLivros.adicionar(livro1);
+        repositorioLivros.adicionar(livro2);
+        repositorioLivros.adicionar(livro3);
+    }
+    
+    // Método sobrecarregado para busca
+    public java.util.List<Livro> buscarLivro(String titulo) {
+        return buscarLivro(titulo, null);
+    }
+    
+    public java.util.List<Livro> buscarLivro(String titulo, String autor) {
+        String chaveCache = titulo + (autor != null ? "_" + autor : "");
+        
+        // Verifica cache primeiro
+        if (cacheConsultas.contem(chaveCache)) {
+            System.out.println("📋 Resultado obtido do cache");
+            return cacheConsultas.obter(chaveCache);
         }
         
         // Busca nos repositórios
@@ -645,7 +5881,7 @@ class SistemaBiblioteca {
         
         // Realiza a reserva
         livro.reservar(usuarioId);
-        Reserva reserva = new Reserva(usuarioId, livroId);
+        Reserva reserva = new ReservaAvulsa(usuarioId, livroId);
         repositorioReservas.adicionar(reserva);
         
         // Incrementa contador para usuários comuns
@@ -854,8 +6090,8 @@ public class BibliotecaDigitalDemo {
         // Demonstrar Template Method Pattern
         System.out.println("\n📊 Template Method Pattern:");
         java.util.List<Reserva> reservasDemo = java.util.Arrays.asList(
-            new Reserva(1, 1),
-            new Reserva(2, 2)
+            new ReservaAvulsa(1, 1),
+            new ReservaAvulsa(2, 2)
         );
         
         RelatorioUso relatorioUso = new RelatorioUso(reservasDemo);
@@ -933,49 +6169,224 @@ public class BibliotecaDigitalDemo {
 
 // Classe adicional para demonstrar Template Method Pattern
 class RelatorioInventario extends Relatorio {
-    private java.util.List<Livro> livros;
+    private EstatisticasBiblioteca estatisticas;
     
     public RelatorioInventario(java.util.List<Livro> livros) {
+        this(EstatisticasBiblioteca.deLivros(livros));
+    }
+    
+    // Lê os contadores mantidos pelo sistema: O(1) no tamanho do acervo
+    public RelatorioInventario(EstatisticasBiblioteca estatisticas) {
         super("Relatório de Inventário");
-        this.livros = livros;
+        this.estatisticas = estatisticas;
     }
     
     @Override
     protected String gerarConteudo() {
         StringBuilder conteudo = new StringBuilder();
-        conteudo.append("Total de livros: ").append(livros.size()).append("\n");
+        conteudo.append("Total de livros: ").append(estatisticas.getTotalLivros()).append("\n");
+        
+        conteudo.append("Livros físicos: ").append(estatisticas.getLivros("LivroFisico")).append("\n");
+        conteudo.append("Livros digitais: ").append(estatisticas.getLivros("LivroDigital")).append("\n");
+        conteudo.append("Livros disponíveis: ").append(estatisticas.getLivrosDisponiveis()).append("\n");
+        conteudo.append("Livros reservados: ").append(estatisticas.getLivrosReservados());
+        
+        java.util.Map<String, Long> porCategoria = estatisticas.getLivrosPorCategoria();
+        if (!porCategoria.isEmpty()) {
+            conteudo.append("\nLivros por categoria:");
+            porCategoria.forEach((categoria, total) ->
+                conteudo.append("\n  ").append(categoria).append(": ").append(total));
+        }
+        
+        return conteudo.toString();
+    }
+}
+
+// Relatório analítico - métricas pesadas sobre grandes volumes de reservas.
+// Todas as métricas saem de uma única passada fork-join: cada thread acumula
+// num Acumulador próprio e os parciais são combinados ao final
+class RelatorioAnalitico extends Relatorio {
+    private static final int LIMITE_RANKING = 10;
+    
+    private java.util.Collection<Reserva> reservas;
+    private ArmazemReservas armazem;
+    private java.util.function.Supplier<? extends java.util.stream.Stream<? extends Livro>> livrosDigitais;
+    private java.util.function.LongFunction<? extends Livro> buscarLivro;
+    private java.util.function.LongFunction<? extends Usuario> buscarUsuario;
+    
+    // As funções de busca são chamadas em paralelo, precisam ser thread-safe
+    // e não devem alterar o acervo; livrosDigitais fornece um fluxo novo a
+    // cada geração (livros de outros tipos são ignorados)
+    public RelatorioAnalitico(java.util.Collection<Reserva> reservas,
+                              java.util.function.Supplier<? extends java.util.stream.Stream<? extends Livro>> livrosDigitais,
+                              java.util.function.LongFunction<? extends Livro> buscarLivro,
+                              java.util.function.LongFunction<? extends Usuario> buscarUsuario) {
+        super("Relatório Analítico de Reservas");
+        this.reservas = reservas;
+        this.livrosDigitais = livrosDigitais;
+        this.buscarLivro = buscarLivro;
+        this.buscarUsuario = buscarUsuario;
+    }
+    
+    // Varre as colunas do armazém direto, sem materializar visões de reserva
+    public RelatorioAnalitico(ArmazemReservas armazem,
+                              java.util.function.Supplier<? extends java.util.stream.Stream<? extends Livro>> livrosDigitais,
+                              java.util.function.LongFunction<? extends Livro> buscarLivro,
+                              java.util.function.LongFunction<? extends Usuario> buscarUsuario) {
+        this(java.util.Collections.emptyList(), livrosDigitais, buscarLivro, buscarUsuario);
+        this.armazem = armazem;
+    }
+    
+    // Acumulador mutável por thread; combinar() soma os parciais
+    static final class Acumulador {
+        long totalReservas;
+        long reservasAtivas;
+        long licencasEmUso;
+        long licencasDisponiveis;
+        final java.util.Map<String, long[]> porCategoria = new java.util.HashMap<>();
+        final java.util.Map<String, long[]> porAutor = new java.util.HashMap<>();
+        final java.util.Map<String, long[]> porTipoUsuario = new java.util.HashMap<>();
+        
+        void acumular(Reserva reserva, Livro livro, Usuario usuario) {
+            acumular(reserva.getCodigoStatus() == Reserva.STATUS_ATIVA, livro, usuario);
+        }
+        
+        void acumular(boolean ativa, Livro livro, Usuario usuario) {
+            totalReservas++;
+            if (ativa) {
+                reservasAtivas++;
+            }
+            if (livro != null) {
+                contar(porCategoria, livro.getCategoria() != null ? livro.getCategoria() : EstatisticasBiblioteca.SEM_CATEGORIA, 1);
+                contar(porAutor, livro.getAutor(), 1);
+            }
+            if (usuario != null) {
+                contar(porTipoUsuario, usuario.getTipo(), 1);
+            }
+        }
         
-        long livrosFisicos = livros.stream()
-            .filter(l -> l instanceof LivroFisico)
-            .count();
+        void acumular(LivroDigital livro) {
+            licencasEmUso += livro.getLicencasEmUso();
+            licencasDisponiveis += livro.getLicencasDisponiveis();
+        }
         
-        long livrosDigitais = livros.stream()
-            .filter(l -> l instanceof LivroDigital)
-            .count();
+        void combinar(Acumulador outro) {
+            totalReservas += outro.totalReservas;
+            reservasAtivas += outro.reservasAtivas;
+            licencasEmUso += outro.licencasEmUso;
+            licencasDisponiveis += outro.licencasDisponiveis;
+            outro.porCategoria.forEach((chave, total) -> contar(porCategoria, chave, total[0]));
+            outro.porAutor.forEach((chave, total) -> contar(porAutor, chave, total[0]));
+            outro.porTipoUsuario.forEach((chave, total) -> contar(porTipoUsuario, chave, total[0]));
+        }
         
-        long livrosDisponiveis = livros.stream()
-            .filter(Livro::isDisponivel)
-            .count();
+        private static void contar(java.util.Map<String, long[]> contadores, String chave, long quantidade) {
+            contadores.computeIfAbsent(chave, c -> new long[1])[0] += quantidade;
+        }
+    }
+    
+    // A passada sobre as reservas domina o custo; as licenças são somadas
+    // numa única passada sobre os livros digitais, sem copiar o acervo
+    Acumulador calcular() {
+        Acumulador resultado;
+        if (armazem != null) {
+            ArmazemReservas colunas = armazem;
+            resultado = java.util.stream.IntStream.range(0, colunas.tamanho()).parallel().collect(Acumulador::new,
+                (acumulador, linha) -> acumulador.acumular(colunas.getCodigoStatus(linha) == Reserva.STATUS_ATIVA,
+                    buscarLivro.apply(colunas.getLivroId(linha)), buscarUsuario.apply(colunas.getUsuarioId(linha))),
+                Acumulador::combinar);
+        } else {
+            resultado = reservas.parallelStream().collect(Acumulador::new,
+                (acumulador, reserva) -> acumulador.acumular(reserva,
+                    buscarLivro.apply(reserva.getLivroId()), buscarUsuario.apply(reserva.getUsuarioId())),
+                Acumulador::combinar);
+        }
+        try (java.util.stream.Stream<? extends Livro> digitais = livrosDigitais.get()) {
+            digitais.forEach(livro -> {
+                if (livro instanceof LivroDigital) {
+                    resultado.acumular((LivroDigital) livro);
+                }
+            });
+        }
+        return resultado;
+    }
+    
+    @Override
+    protected String gerarConteudo() {
+        Acumulador metricas = calcular();
+        StringBuilder conteudo = new StringBuilder();
+        conteudo.append("Total de reservas: ").append(metricas.totalReservas).append("\n");
+        conteudo.append("Reservas ativas: ").append(metricas.reservasAtivas).append("\n");
         
-        conteudo.append("Livros físicos: ").append(livrosFisicos).append("\n");
-        conteudo.append("Livros digitais: ").append(livrosDigitais).append("\n");
-        conteudo.append("Livros disponíveis: ").append(livrosDisponiveis).append("\n");
-        conteudo.append("Livros reservados: ").append(livros.size() - livrosDisponiveis);
+        conteudo.append("\nReservas por tipo de usuário:");
+        anexarRanking(conteudo, metricas.porTipoUsuario);
+        conteudo.append("\nReservas por categoria:");
+        anexarRanking(conteudo, metricas.porCategoria);
+        conteudo.append("\nReservas por autor:");
+        anexarRanking(conteudo, metricas.porAutor);
         
+        double utilizacao = metricas.licencasDisponiveis == 0 ? 0
+            : 100.0 * metricas.licencasEmUso / metricas.licencasDisponiveis;
+        conteudo.append(String.format("\nUtilização de licenças digitais: %d/%d (%.1f%%)",
+                                      metricas.licencasEmUso, metricas.licencasDisponiveis, utilizacao));
         return conteudo.toString();
     }
+    
+    // Os mais reservados primeiro, limitado a LIMITE_RANKING linhas
+    private static void anexarRanking(StringBuilder conteudo, java.util.Map<String, long[]> contadores) {
+        contadores.entrySet().stream()
+            .sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]))
+            .limit(LIMITE_RANKING)
+            .forEach(entrada -> conteudo.append("\n  ").append(entrada.getKey())
+                                        .append(": ").append(entrada.getValue()[0]));
+        conteudo.append("\n");
+    }
 }
 
 // Extensão da classe SistemaBiblioteca para demonstrar método estático
 class SistemaBiblioteca {
-    private Repositorio<Usuario> repositorioUsuarios;
-    private Repositorio<Livro> repositorioLivros;
-    private Repositorio<Reserva> repositorioReservas;
-    private Cache<String, java.util.List<Livro>> cacheConsultas;
+    private RepositorioIndexado<Long, Usuario> repositorioUsuarios;
+    private RepositorioIndexado<Long, Livro> repositorioLivros;
+    private ArmazemReservas repositorioReservas;
+    // Linhas de reserva por usuário e por livro, para consultas sem varredura
+    private final ListasAdjacencia reservasPorUsuario = new ListasAdjacencia();
+    private final ListasAdjacencia reservasPorLivro = new ListasAdjacencia();
+    // Listas de espera por livro, criadas quando alguém passa a aguardar
+    private final java.util.concurrent.ConcurrentHashMap<Long, ListaEspera> listasEspera = new java.util.concurrent.ConcurrentHashMap<>();
+    // Guarda só os ids do resultado: a disponibilidade é lida do livro vivo a
+    // cada acerto, então reservas e devoluções não invalidam nada
+    private Cache<ConsultaLivro, long[]> cacheConsultas;
+    private MotorBusca motorBusca;
+    // Travas por usuário e por livro; aquisição sempre na ordem usuário -> livro
+    private final TravasListradas travasUsuarios = new TravasListradas();
+    private final TravasListradas travasLivros = new TravasListradas();
+    // Diário de operações; null quando o sistema roda só em memória
+    private DiarioOperacoes diario;
+    // Tarefas periódicas (snapshots, expiração); criado no primeiro uso
+    private java.util.concurrent.ScheduledExecutorService agendador;
+    private boolean snapshotsAgendados;
+    private boolean expiracaoAgendada;
+    // Vencimentos das reservas ativas, por dia
+    private final RodaExpiracao expiracoes = new RodaExpiracao(java.time.LocalDate.now().toEpochDay());
+    // Acervo servido do snapshot binário mapeado; null quando não há
+    private CatalogoMapeado catalogoMapeado;
+    private volatile boolean catalogoContabilizado;
+    // Totais para os relatórios, atualizados a cada inclusão, reserva e liberação
+    private final EstatisticasBiblioteca estatisticas = new EstatisticasBiblioteca();
+    // Notificações saem do caminho da reserva; entrega assíncrona e em lote
+    private volatile DespachanteNotificacoes notificacoes = new DespachanteNotificacoes();
+    // Log assíncrono de operações e rejeições (arquivo rotativo compartilhado por padrão)
+    private volatile RegistroOperacoes registro = RegistroOperacoes.compartilhado();
+    // Login com KDF em executor limitado; depois, só o token da sessão
+    private final ServicoAutenticacao autenticacao = new ServicoAutenticacao(this::registrarSenhaAtualizada);
     
     // Constantes final
     private static final String VERSAO = "1.0";
     private static final int CACHE_SIZE = 50;
+    private static final int CACHE_PESO_MAXIMO = CACHE_SIZE * 20; // em livros armazenados
+    private static final long CACHE_TTL_MILLIS = 10 * 60 * 1000L;
+    private static final String MOTIVO_INDISPONIVEL = "Livro não está disponível para reserva";
+    private static final String MOTIVO_LISTA_ESPERA = "Livro reservado para a lista de espera";
     
     // Método estático para acessar versão
     public static String getVersao() {
@@ -983,35 +6394,530 @@ class SistemaBiblioteca {
     }
     
     public SistemaBiblioteca() {
-        this.repositorioUsuarios = new Repositorio<>();
-        this.repositorioLivros = new Repositorio<>();
-        this.repositorioReservas = new Repositorio<>();
-        this.cacheConsultas = new Cache<>(CACHE_SIZE);
+        this(true);
+    }
+    
+    // Construtor sobrecarregado - sistema vazio, usado na restauração
+    private SistemaBiblioteca(boolean comDadosDemo) {
+        this.repositorioUsuarios = new RepositorioIndexado<Long, Usuario>(Usuario::getId)
+            .declararIndice("email", Usuario::getEmail);
+        this.repositorioLivros = new RepositorioIndexado<Long, Livro>(Livro::getId)
+            .declararIndice("categoria", Livro::getCategoria)
+            .declararIndice("autor", Livro::getAutor)
+            .declararIndice("tipo", Livro::getTipoMidia)
+            .declararIndice("isbn", Livro::getIsbn);
+        this.repositorioReservas = new ArmazemReservas();
+        this.cacheConsultas = new Cache<>(CACHE_PESO_MAXIMO, ids -> ids.length, CACHE_TTL_MILLIS);
+        this.motorBusca = new MotorBusca();
         
-        inicializarDadosDemo();
+        if (comDadosDemo) {
+            inicializarDadosDemo();
+        }
+    }
+    
+    // Reconstrói um sistema a partir de uma exportação JSON Lines (exportarJson).
+    // O arquivo é lido em fluxo com buffer fixo e um único mapa de campos
+    public static SistemaBiblioteca restaurarJson(java.nio.file.Path origem) throws java.io.IOException {
+        SistemaBiblioteca sistema = new SistemaBiblioteca(false);
+        long[] maioresIds = new long[3];
+        sistema.carregarRegistros(origem, maioresIds, false);
+        avancarSequencias(maioresIds);
+        return sistema;
+    }
+    
+    // Abre um sistema durável: carrega o último snapshot, reaplica os segmentos
+    // do diário em ordem (leitura sequencial) e passa a registrar as operações.
+    // As sequências de ids passam a usar marcas d'água no mesmo diretório:
+    // ids de um bloco já distribuído nunca se repetem após uma queda, mesmo
+    // que a operação que os usou não tenha chegado ao diário. A troca é global
+    // (ServicoIds.configurar): um processo deve ter um único sistema com
+    // diário, e os demais sistemas da JVM passam a gravar nas marcas dele
+    public static SistemaBiblioteca abrirComDiario(java.nio.file.Path diretorio) throws java.io.IOException {
+        SistemaBiblioteca sistema = new SistemaBiblioteca(false);
+        long[] maioresIds = new long[3];
+        java.nio.file.Path snapshot = diretorio.resolve(DiarioOperacoes.ARQUIVO_SNAPSHOT);
+        if (java.nio.file.Files.exists(snapshot)) {
+            sistema.carregarRegistros(snapshot, maioresIds, false);
+        }
+        // Só o último segmento pode ter sido interrompido no meio de um registro
+        java.util.List<java.nio.file.Path> segmentos = DiarioOperacoes.segmentos(diretorio);
+        for (int i = 0; i < segmentos.size(); i++) {
+            sistema.carregarRegistros(segmentos.get(i), maioresIds, i == segmentos.size() - 1);
+        }
+        ServicoIds.configurar(new ArmazemSequenciasArquivo(diretorio), ServicoIds.TAMANHO_BLOCO_PADRAO);
+        avancarSequencias(maioresIds);
+        sistema.diario = new DiarioOperacoes(diretorio);
+        return sistema;
+    }
+    
+    // Abre o acervo a partir de um snapshot binário (gravarCatalogoBinario):
+    // só o cabeçalho é lido, os livros são materializados quando acessados
+    public static SistemaBiblioteca abrirCatalogoBinario(java.nio.file.Path arquivo) throws java.io.IOException {
+        SistemaBiblioteca sistema = new SistemaBiblioteca(false);
+        sistema.catalogoMapeado = CatalogoMapeado.abrir(arquivo);
+        Livro.avancarSequenciaPara(sistema.catalogoMapeado.getMaiorId());
+        return sistema;
+    }
+    
+    public void gravarCatalogoBinario(java.nio.file.Path destino) throws java.io.IOException {
+        CatalogoMapeado.gravar(destino, fluxoDeLivros().collect(java.util.stream.Collectors.toList()));
+    }
+    
+    // Contadores do cache de consultas desde a criação do sistema
+    public long getAcertosCacheConsultas() {
+        return cacheConsultas.getAcertos();
+    }
+    
+    public long getFalhasCacheConsultas() {
+        return cacheConsultas.getFalhas();
+    }
+    
+    // O catálogo mapeado é contabilizado na primeira leitura, não na abertura;
+    // as alterações anteriores a isso já são deltas sobre o estado do arquivo
+    public EstatisticasBiblioteca getEstatisticas() {
+        if (catalogoMapeado != null && !catalogoContabilizado) {
+            synchronized (estatisticas) {
+                if (!catalogoContabilizado) {
+                    catalogoMapeado.acumularEstatisticas(estatisticas);
+                    catalogoContabilizado = true;
+                }
+            }
+        }
+        return estatisticas;
+    }
+    
+    // Snapshot: rotaciona o diário e exporta o estado. Como os registros do
+    // diário carregam estado completo, reaplicar o segmento novo sobre um
+    // snapshot tirado sem pausar as operações converge para o estado correto
+    public synchronized void criarSnapshot() throws java.io.IOException {
+        if (diario == null) {
+            throw new IllegalStateException("Sistema sem diário de operações");
+        }
+        long segmentoFechado = diario.rotacionar();
+        java.nio.file.Path destino = diario.getDiretorio().resolve(DiarioOperacoes.ARQUIVO_SNAPSHOT);
+        java.nio.file.Path temporario = destino.resolveSibling(DiarioOperacoes.ARQUIVO_SNAPSHOT + ".tmp");
+        exportarJson(temporario);
+        try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(
+                temporario, java.nio.file.StandardOpenOption.WRITE)) {
+            canal.force(true);
+        }
+        java.nio.file.Files.move(temporario, destino, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                                 java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        diario.descartarAte(segmentoFechado);
+    }
+    
+    public synchronized void iniciarSnapshotsPeriodicos(long intervalo, java.util.concurrent.TimeUnit unidade) {
+        if (snapshotsAgendados) {
+            return;
+        }
+        snapshotsAgendados = true;
+        obterAgendador().scheduleWithFixedDelay(() -> {
+            try {
+                criarSnapshot();
+            } catch (java.io.IOException e) {
+                System.out.println("❌ Falha ao criar snapshot: " + e.getMessage());
+            }
+        }, intervalo, intervalo, unidade);
+    }
+    
+    private synchronized java.util.concurrent.ScheduledExecutorService obterAgendador() {
+        if (agendador == null) {
+            agendador = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(tarefa -> {
+                Thread thread = new Thread(tarefa, "tarefas-biblioteca");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return agendador;
+    }
+    
+    // Troca o despachante (capacidade, trabalhadores, política de fila)
+    public synchronized void configurarNotificacoes(DespachanteNotificacoes despachante) {
+        DespachanteNotificacoes anterior = notificacoes;
+        despachante.configurarRegistro(registro);
+        notificacoes = despachante;
+        anterior.close();
+    }
+    
+    // Troca o log de operações, por exemplo para um DestinoArquivoRotativo
+    public synchronized void configurarRegistro(RegistroOperacoes novoRegistro) {
+        RegistroOperacoes anterior = registro;
+        registro = novoRegistro;
+        notificacoes.configurarRegistro(novoRegistro);
+        anterior.close();
+    }
+    
+    public synchronized void fechar() throws java.io.IOException {
+        if (agendador != null) {
+            agendador.shutdown();
+            agendador = null;
+        }
+        snapshotsAgendados = false;
+        expiracaoAgendada = false;
+        notificacoes.close();
+        registro.close();
+        autenticacao.close();
+        if (diario != null) {
+            diario.close();
+        }
+    }
+    
+    // Lê um arquivo JSON Lines (exportação ou segmento do diário) e aplica
+    // cada registro. Cada registro termina em '\n': no último segmento do
+    // diário, bytes depois da última quebra de linha são um registro que a
+    // queda interrompeu, e são descartados do arquivo para que os segmentos
+    // seguintes não fiquem atrás de lixo. Qualquer outro erro é corrupção
+    private void carregarRegistros(java.nio.file.Path arquivo, long[] maioresIds, boolean ultimoSegmento)
+            throws java.io.IOException {
+        long tamanho = java.nio.file.Files.size(arquivo);
+        long completo = ultimoSegmento ? fimDaUltimaLinha(arquivo) : tamanho;
+        if (completo < tamanho) {
+            System.out.println("⚠️ Registro incompleto ignorado no fim de " + arquivo.getFileName());
+            try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(
+                    arquivo, java.nio.file.StandardOpenOption.WRITE)) {
+                canal.truncate(completo);
+                canal.force(true);
+            }
+        }
+        try (java.io.Reader entrada = java.nio.file.Files.newBufferedReader(
+                arquivo, java.nio.charset.StandardCharsets.UTF_8)) {
+            LeitorJson leitor = new LeitorJson(entrada);
+            java.util.Map<String, String> campos = new java.util.HashMap<>();
+            long registros = 0;
+            while (true) {
+                try {
+                    if (!leitor.lerRegistro(campos)) {
+                        break;
+                    }
+                } catch (IllegalStateException e) {
+                    throw new java.io.IOException("Registro " + (registros + 1) + " corrompido em " + arquivo, e);
+                }
+                registros++;
+                aplicarRegistro(campos, maioresIds);
+            }
+        } catch (java.io.UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    // Posição logo após o último '\n' do arquivo (0 se não há nenhum). O byte
+    // 0x0A não aparece dentro de caracteres UTF-8 multibyte
+    private static long fimDaUltimaLinha(java.nio.file.Path arquivo) throws java.io.IOException {
+        try (java.nio.channels.FileChannel canal = java.nio.channels.FileChannel.open(
+                arquivo, java.nio.file.StandardOpenOption.READ)) {
+            java.nio.ByteBuffer bloco = java.nio.ByteBuffer.allocate(1 << 12);
+            long fim = canal.size();
+            while (fim > 0) {
+                long inicio = Math.max(0, fim - bloco.capacity());
+                bloco.clear().limit((int) (fim - inicio));
+                while (bloco.hasRemaining()) {
+                    if (canal.read(bloco, inicio + bloco.position()) < 0) {
+                        break;
+                    }
+                }
+                for (int i = bloco.position() - 1; i >= 0; i--) {
+                    if (bloco.get(i) == '\n') {
+                        return inicio + i + 1;
+                    }
+                }
+                fim = inicio;
+            }
+            return 0;
+        }
+    }
+    
+    // Registros gravam o estado completo (upsert); reaplicar é idempotente
+    private void aplicarRegistro(java.util.Map<String, String> campos, long[] maioresIds) {
+        if ("remover".equals(campos.get("op"))) {
+            Livro livro = obterLivro(Long.parseLong(campos.get("id")));
+            if ("Livro".equals(campos.get("tipo")) && livro != null) {
+                removerLivro(livro);
+            }
+            return;
+        }
+        Persistivel entidade = RestauradorJson.criar(campos);
+        if (entidade instanceof Usuario) {
+            Usuario usuario = (Usuario) entidade;
+            repositorioUsuarios.adicionar(usuario);
+            maioresIds[0] = Math.max(maioresIds[0], usuario.getId());
+        } else if (entidade instanceof Livro) {
+            Livro livro = (Livro) entidade;
+            adicionarLivro(livro);
+            maioresIds[1] = Math.max(maioresIds[1], livro.getId());
+        } else if (entidade instanceof Reserva) {
+            Reserva reserva = (Reserva) entidade;
+            Reserva anterior = repositorioReservas.obterPorChave(reserva.getId());
+            if (anterior != null) {
+                estatisticas.reservaRemovida(anterior);
+            }
+            repositorioReservas.adicionar(reserva);
+            estatisticas.reservaAdicionada(reserva);
+            if (anterior == null) {
+                indexarReserva(reserva);
+            }
+            if ("ativa".equals(reserva.getStatus())) {
+                expiracoes.agendar(reserva.getId(), reserva.getDiaExpiracao());
+            } else {
+                expiracoes.cancelar(reserva.getId());
+            }
+            maioresIds[2] = Math.max(maioresIds[2], reserva.getId());
+        } else if (entidade instanceof RegistroEspera) {
+            RegistroEspera espera = (RegistroEspera) entidade;
+            if (espera.isAguardando()) {
+                listasEspera.compute(espera.getLivroId(), (id, lista) -> {
+                    ListaEspera atual = lista != null ? lista : new ListaEspera();
+                    atual.entrar(espera.getUsuarioId(), espera.isPrioritario());
+                    return atual;
+                });
+            } else {
+                ListaEspera lista = listasEspera.get(espera.getLivroId());
+                if (lista != null) {
+                    lista.sair(espera.getUsuarioId());
+                }
+                descartarListaSeVazia(espera.getLivroId());
+            }
+        }
+    }
+    
+    // Novos ids continuam depois dos restaurados
+    private static void avancarSequencias(long[] maioresIds) {
+        Usuario.avancarSequenciaPara(maioresIds[0]);
+        Livro.avancarSequenciaPara(maioresIds[1]);
+        Reserva.avancarSequenciaPara(maioresIds[2]);
+    }
+    
+    private long registrarNoDiario(Persistivel... entidades) {
+        return diario != null ? diario.anexar(entidades) : 0;
+    }
+    
+    // Hash regravado no login vai para o diário; sem isso a restauração
+    // voltaria ao hash antigo e o login seguinte repetiria a regravação
+    private void registrarSenhaAtualizada(Usuario usuario) {
+        aguardarDiario(registrarNoDiario(usuario));
+    }
+    
+    // Espera o fsync do lote que contém o ticket (commit em grupo)
+    private void aguardarDiario(long ticket) {
+        if (diario == null || ticket == 0) {
+            return;
+        }
+        try {
+            diario.aguardar(ticket);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException("Falha ao gravar o diário de operações", e);
+        }
+    }
+    
+    private void inicializarDadosDemo() {
+        // Criando usuários - demonstra polimorfismo e herança
+        // Senhas provisórias: o KDF no custo cheio fica para o primeiro login
+        Usuario user1 = new UsuarioComum("João Silva");
+        user1.setEmail("joao@email.com");
+        user1.definirSenhaProvisoria("123456");
+        Usuario user2 = new UsuarioComum("Maria Santos");
+        Usuario admin = new Administrador("Ana Admin");
+        admin.setEmail("ana@admin.com");
+        admin.definirSenhaProvisoria("admin123");
+        
+        adicionarUsuario(user1);
+        adicionarUsuario(user2);
+        adicionarUsuario(admin);
+        
+        // Criando livros - demonstra polimorfismo e herança
+        Livro livro1 = new LivroFisico("Java: Como Programar", "Paul Deitel", 
+                                      "978-85-7522-123-4", "Programação", "Estante A1");
+        Livro livro2 = new LivroDigital("Clean Code", "Robert Martin", 
+                                       "978-85-7522-456-7", "Programação", 
+                                       "/livros/clean_code.pdf", 3);
+        Livro livro3 = new LivroFisico("Design Patterns", "Gang of Four");
+        
+        adicionarLivro(livro1);
+        adicionarLivro(livro2);
+        adicionarLivro(livro3);
+    }
+    
+    public void adicionarUsuario(Usuario usuario) {
+        repositorioUsuarios.adicionar(usuario);
+        aguardarDiario(registrarNoDiario(usuario));
+    }
+    
+    // Mantém repositório e índice de busca sincronizados
+    public void adicionarLivro(Livro livro) {
+        Livro anterior = repositorioLivros.obterPorChave(livro.getId());
+        if (anterior == null && catalogoMapeado != null) {
+            // Registro do catálogo mapeado ainda não promovido (e não removido):
+            // o catálogo já o conta, então ele sai como o livro substituído
+            anterior = catalogoMapeado.lerPorId(livro.getId());
+        }
+        if (anterior != null) {
+            estatisticas.livroRemovido(anterior);
+        }
+        repositorioLivros.adicionar(livro);
+        estatisticas.livroAdicionado(livro);
+        motorBusca.indexar(livro);
+        aguardarDiario(registrarNoDiario(livro));
+        // Só as consultas que passariam a incluir o livro são invalidadas
+        cacheConsultas.invalidarSe((consulta, resultado) ->
+            MotorBusca.atende(livro, consulta.getTitulo(), consulta.getAutor()));
+    }
+    
+    public void removerLivro(Livro livro) {
+        boolean presente = repositorioLivros.contemChave(livro.getId());
+        repositorioLivros.remover(livro);
+        if (catalogoMapeado != null) {
+            presente |= catalogoMapeado.marcarRemovido(livro.getId());
+        }
+        if (presente) {
+            estatisticas.livroRemovido(livro);
+        }
+        motorBusca.remover(livro);
+        invalidarConsultasCom(livro);
+        if (diario != null) {
+            aguardarDiario(diario.anexarRemocao("Livro", livro.getId()));
+        }
+    }
+    
+    // Variantes autorizadas das operações de escrita: a permissão exigida é
+    // checada contra a máscara do ator antes de qualquer alteração
+    public boolean adicionarUsuario(Usuario ator, Usuario usuario) {
+        if (!autorizar(ator, Permissoes.ADMIN)) {
+            return false;
+        }
+        adicionarUsuario(usuario);
+        return true;
+    }
+    
+    public boolean adicionarLivro(Usuario ator, Livro livro) {
+        if (!autorizar(ator, Permissoes.WRITE)) {
+            return false;
+        }
+        adicionarLivro(livro);
+        return true;
+    }
+    
+    public boolean removerLivro(Usuario ator, Livro livro) {
+        if (!autorizar(ator, Permissoes.DELETE)) {
+            return false;
+        }
+        removerLivro(livro);
+        return true;
+    }
+    
+    private boolean autorizar(Usuario ator, long permissoes) {
+        if (ator == null || !ator.isAtivo() || !ator.temPermissoes(permissoes)) {
+            registro.registrarRejeicao("Permissão negada", ator != null ? ator.getId() : 0, permissoes);
+            return false;
+        }
+        return true;
+    }
+    
+    // Invalida as consultas em cache cujo resultado contém o livro; só a
+    // remoção muda o conjunto de um resultado já calculado
+    private void invalidarConsultasCom(Livro livro) {
+        long id = livro.getId();
+        cacheConsultas.invalidarSe((consulta, ids) -> java.util.Arrays.stream(ids).anyMatch(i -> i == id));
+    }
+    
+    // Busca pela chave; livros do catálogo mapeado são materializados e
+    // promovidos ao repositório no primeiro acesso, que passa a ser o dono do
+    // estado. A promoção é serializada: o cache do catálogo é limitado, e duas
+    // leituras concorrentes poderiam materializar objetos diferentes
+    private Livro obterLivro(long livroId) {
+        Livro livro = repositorioLivros.obterPorChave(livroId);
+        if (livro == null && catalogoMapeado != null) {
+            synchronized (catalogoMapeado) {
+                livro = repositorioLivros.obterPorChave(livroId);
+                if (livro == null) {
+                    livro = catalogoMapeado.buscarPorId(livroId);
+                    if (livro != null) {
+                        repositorioLivros.adicionar(livro);
+                    }
+                }
+            }
+        }
+        return livro;
+    }
+    
+    // Leitura sem efeitos: o livro do repositório ou, se não foi promovido,
+    // o registro do catálogo mapeado (que continua dono dele), lido sem cache
+    private Livro consultarLivro(long livroId) {
+        Livro livro = repositorioLivros.obterPorChave(livroId);
+        return livro == null && catalogoMapeado != null ? catalogoMapeado.lerPorId(livroId) : livro;
+    }
+    
+    // Só os livros digitais: índice "tipo" do repositório e, do catálogo
+    // mapeado, os registros digitais ainda não promovidos
+    private java.util.stream.Stream<Livro> fluxoDeLivrosDigitais() {
+        java.util.stream.Stream<Livro> doRepositorio = repositorioLivros.fluxoPorIndice("tipo", "LivroDigital");
+        if (catalogoMapeado == null) {
+            return doRepositorio;
+        }
+        CatalogoMapeado catalogo = catalogoMapeado;
+        return java.util.stream.Stream.concat(
+            catalogo.registrosApos(null, 0)
+                    .filter(indice -> "LivroDigital".equals(catalogo.getTipoMidia(indice))
+                                      && !repositorioLivros.contemChave(catalogo.getId(indice)))
+                    .mapToObj(catalogo::ler),
+            doRepositorio);
     }
     
-    private void inicializarDadosDemo() {
-        // Criando usuários - demonstra polimorfismo e herança
-        Usuario user1 = new UsuarioComum("João Silva", "joao@email.com", "123456");
-        Usuario user2 = new UsuarioComum("Maria Santos");
-        Usuario admin = new Administrador("Ana Admin", "ana@admin.com", "admin123");
-        
-        repositorioUsuarios.adicionar(user1);
-        repositorioUsuarios.adicionar(user2);
-        repositorioUsuarios.adicionar(admin);
-        
-        // Criando livros - demonstra polimorfismo e herança
-        Livro livro1 = new LivroFisico("Java: Como Programar", "Paul Deitel", 
-                                      "978-85-7522-123-4", "Programação", "Estante A1");
-        Livro livro2 = new LivroDigital("Clean Code", "Robert Martin", 
-                                       "978-85-7522-456-7", "Programação", 
-                                       "/livros/clean_code.pdf", 3);
-        Livro livro3 = new LivroFisico("Design Patterns", "Gang of Four");
-        
-        repositorioLivros.adicionar(livro1);
-        repositorioLivros.adicionar(livro2);
-        repositorioLivros.adicionar(livro3);
+    // Livros do catálogo mapeado (na posição do registro, já promovidos ou
+    // não) seguidos dos adicionados depois da abertura. Preguiçoso: registros
+    // são lidos um a um e não entram no cache do catálogo
+    private java.util.stream.Stream<Livro> fluxoDeLivros() {
+        if (catalogoMapeado == null) {
+            return repositorioLivros.fluxo();
+        }
+        CatalogoMapeado catalogo = catalogoMapeado;
+        return java.util.stream.Stream.concat(
+            catalogo.registrosApos(null, 0).mapToObj(indice -> {
+                Livro promovido = repositorioLivros.obterPorChave(catalogo.getId(indice));
+                return promovido != null ? promovido : catalogo.ler(indice);
+            }),
+            repositorioLivros.fluxo(livro -> {
+                // Um id removido do catálogo e adicionado de novo só existe no repositório
+                int indice = catalogo.indiceDe(livro.getId());
+                return indice < 0 || catalogo.isRemovido(indice);
+            }));
+    }
+    
+    // Acrescenta os livros do catálogo mapeado que casam com o filtro, entre os
+    // registros dados (crescentes; null = todos), sem repetir ids e sem os já
+    // promovidos, que o repositório devolveu
+    private java.util.List<Livro> comCatalogoMapeado(java.util.List<Livro> resultado, int[] registros,
+                                                     java.util.function.IntPredicate filtro, int limite) {
+        if (catalogoMapeado == null || resultado.size() >= limite) {
+            return resultado;
+        }
+        java.util.List<Livro> unidos = new java.util.ArrayList<>(resultado);
+        java.util.Set<Long> ids = new java.util.HashSet<>();
+        resultado.forEach(livro -> ids.add(livro.getId()));
+        catalogoMapeado.registrosApos(registros, 0)
+            .filter(indice -> !ids.contains(catalogoMapeado.getId(indice))
+                              && !repositorioLivros.contemChave(catalogoMapeado.getId(indice)))
+            .filter(filtro)
+            .limit(limite - unidos.size())
+            .forEach(indice -> unidos.add(catalogoMapeado.obter(indice)));
+        return unidos;
+    }
+    
+    // Junta as pontuações do MotorBusca e do índice do catálogo mapeado e
+    // aplica um único top-k, então livros dos dois lados são ordenados juntos
+    private java.util.List<Livro> buscarComCatalogoMapeado(String titulo, String autor, int limite) {
+        java.util.Map<Long, Integer> pontuacao = motorBusca.pontuar(titulo, autor);
+        if (pontuacao == null) {
+            // Consulta sem tokens: todos casam, na ordem do catálogo
+            return comCatalogoMapeado(motorBusca.buscar(titulo, autor, limite), null, indice -> true, limite);
+        }
+        java.util.Map<Long, Integer> unidas = new java.util.HashMap<>(pontuacao);
+        catalogoMapeado.pontuar(titulo, autor).forEach((indice, pontos) ->
+            unidas.merge(catalogoMapeado.getId(indice), pontos, Math::max));
+        java.util.List<Livro> resultado = new java.util.ArrayList<>();
+        for (long id : MotorBusca.maisRelevantes(unidas, limite)) {
+            Livro livro = repositorioLivros.obterPorChave(id);
+            resultado.add(livro != null ? livro : catalogoMapeado.buscarPorId(id));
+        }
+        return resultado;
     }
     
     // Método sobrecarregado para busca
@@ -1019,69 +6925,789 @@ class SistemaBiblioteca {
         return buscarLivro(titulo, null);
     }
     
+    // Todos os livros que casam, do mais ao menos relevante; para só os k
+    // primeiros, buscarLivro(titulo, autor, limite)
     public java.util.List<Livro> buscarLivro(String titulo, String autor) {
-        String chaveCache = titulo + (autor != null ? "_" + autor : "");
+        return buscarLivro(titulo, autor, Integer.MAX_VALUE);
+    }
+    
+    // Retorna os livros mais relevantes, limitados a 'limite' resultados
+    public java.util.List<Livro> buscarLivro(String titulo, String autor, int limite) {
+        ConsultaLivro chaveCache = new ConsultaLivro(titulo, autor, limite);
         
         // Verifica cache primeiro
-        if (cacheConsultas.contem(chaveCache)) {
+        long[] emCache = cacheConsultas.obter(chaveCache);
+        if (emCache != null) {
             System.out.println("📋 Resultado obtido do cache");
-            return cacheConsultas.obter(chaveCache);
+            java.util.List<Livro> livros = new java.util.ArrayList<>(emCache.length);
+            for (long id : emCache) {
+                Livro livro = consultarLivro(id);
+                if (livro != null) {
+                    livros.add(livro);
+                }
+            }
+            return livros;
         }
         
-        // Busca nos repositórios
-        java.util.List<Livro> resultado = repositorioLivros.buscar(livro -> {
-            boolean tituloMatch = livro.getTitulo().toLowerCase()
-                                      .contains(titulo.toLowerCase());
-            boolean autorMatch = autor == null || livro.getAutor().toLowerCase()
-                                                      .contains(autor.toLowerCase());
-            return tituloMatch && autorMatch;
-        });
+        // Busca no índice invertido e, se houver, no do catálogo mapeado
+        java.util.List<Livro> resultado = catalogoMapeado == null
+            ? motorBusca.buscar(titulo, autor, limite)
+            : buscarComCatalogoMapeado(titulo, autor, limite);
         
         // Armazena no cache
-        cacheConsultas.armazenar(chaveCache, resultado);
+        cacheConsultas.armazenar(chaveCache, resultado.stream().mapToLong(Livro::getId).toArray());
         
         return resultado;
     }
     
-    public boolean realizarReserva(int usuarioId, int livroId) {
-        // Busca usuário e livro
-        Usuario usuario = repositorioUsuarios.buscar(u -> u.getId() == usuarioId)
-                                           .stream().findFirst().orElse(null);
-        Livro livro = repositorioLivros.buscar(l -> l.getId() == livroId)
-                                     .stream().findFirst().orElse(null);
+    public boolean realizarReserva(long usuarioId, long livroId) {
+        return reservar(usuarioId, livroId, false) == null;
+    }
+    
+    // Devolve null em caso de sucesso, ou o motivo da recusa. No repasse o
+    // usuário é o próximo da lista de espera e pode pegar o livro guardado
+    private String reservar(long usuarioId, long livroId, boolean repasse) {
+        // Busca usuário e livro pela chave primária - O(1)
+        Usuario usuario = repositorioUsuarios.obterPorChave(usuarioId);
+        Livro livro = obterLivro(livroId);
         
         if (usuario == null || livro == null) {
-            System.out.println("❌ Usuário ou livro não encontrado");
-            return false;
+            registro.registrarRejeicao("Usuário ou livro não encontrado", usuarioId, livroId);
+            return "Usuário ou livro não encontrado";
+        }
+        if (!usuario.temPermissoes(Permissoes.RESERVAR)) {
+            registro.registrarRejeicao("Usuário sem permissão para reservar", usuarioId);
+            return "Usuário sem permissão para reservar";
         }
         
-        if (!usuario.podeReservar()) {
-            System.out.println("❌ Usuário não pode fazer mais reservas");
-            return false;
+        // Verificação e efetivação atômicas sob as travas do usuário e do livro;
+        // livros diferentes caem em listras diferentes e reservam em paralelo
+        long ticketDiario;
+        Reserva reserva;
+        java.util.concurrent.locks.Lock travaUsuario = travasUsuarios.obter(usuarioId);
+        java.util.concurrent.locks.Lock travaLivro = travasLivros.obter(livroId);
+        travaUsuario.lock();
+        try {
+            if (!usuario.podeReservar()) {
+                registro.registrarRejeicao("Usuário não pode fazer mais reservas", usuarioId);
+                return "Usuário não pode fazer mais reservas";
+            }
+            
+            travaLivro.lock();
+            try {
+                if (!livro.podeSerReservado()) {
+                    registro.registrarRejeicao(MOTIVO_INDISPONIVEL, livroId);
+                    return MOTIVO_INDISPONIVEL;
+                }
+                // Com gente aguardando, o livro liberado é de quem está na fila
+                if (!repasse && temEspera(livroId)) {
+                    registro.registrarRejeicao(MOTIVO_LISTA_ESPERA, usuarioId, livroId);
+                    return MOTIVO_LISTA_ESPERA;
+                }
+                
+                // Realiza a reserva
+                boolean estavaDisponivel = livro.isDisponivel();
+                Reserva nova = new ReservaAvulsa(usuarioId, livroId);
+                if (!retirarExemplar(livro, nova)) {
+                    registro.registrarRejeicao(MOTIVO_INDISPONIVEL, livroId);
+                    return MOTIVO_INDISPONIVEL;
+                }
+                if (estavaDisponivel != livro.isDisponivel()) {
+                    estatisticas.disponibilidadeAlterada(livro.isDisponivel());
+                }
+                
+                // Incrementa contador para usuários comuns
+                if (usuario instanceof UsuarioComum) {
+                    ((UsuarioComum) usuario).incrementarReservas();
+                }
+                
+                // A visão do armazém passa a ser a reserva: mudanças de status vão às colunas
+                reserva = repositorioReservas.adicionar(nova);
+                estatisticas.reservaAdicionada(reserva);
+                indexarReserva(reserva);
+                // Anexado sob as travas: a ordem no diário segue a ordem das alterações
+                ticketDiario = registrarNoDiario(reserva, livro, usuario);
+            } finally {
+                travaLivro.unlock();
+            }
+        } finally {
+            travaUsuario.unlock();
         }
         
-        if (!livro.podeSerReservado()) {
-            System.out.println("❌ Livro não está disponível para reserva");
+        // Fora das travas: um encerramento concorrente que chegue antes só
+        // deixa uma entrada que, ao vencer, encontra a reserva já inativa
+        expiracoes.agendar(reserva.getId(), reserva.getDiaExpiracao());
+        
+        // O fsync acontece fora das travas, em grupo com outras reservas
+        aguardarDiario(ticketDiario);
+        
+        // Notifica o usuário sem esperar a entrega
+        notificacoes.enviar(usuario, (repasse ? "Sua vez na lista de espera! Reserva realizada: "
+                                              : "Reserva realizada: ") + livro.getTitulo());
+        
+        registro.registrar(repasse ? "Reserva repassada da lista de espera" : "Reserva realizada", usuarioId, livroId);
+        return null;
+    }
+    
+    // Entra na fila do livro; administradores entram na fila prioritária.
+    // Se o livro já estiver livre, o repasse acontece na hora
+    public boolean entrarNaListaEspera(long usuarioId, long livroId) {
+        Usuario usuario = repositorioUsuarios.obterPorChave(usuarioId);
+        Livro livro = obterLivro(livroId);
+        if (usuario == null || livro == null) {
+            registro.registrarRejeicao("Usuário ou livro não encontrado", usuarioId, livroId);
+            return false;
+        }
+        if (!usuario.temPermissoes(Permissoes.RESERVAR)) {
+            registro.registrarRejeicao("Usuário sem permissão para reservar", usuarioId);
+            return false;
+        }
+        boolean prioritario = usuario.temPermissoes(Permissoes.ADMIN);
+        // A entrada vai ao diário antes de ficar visível, então a saída pelo
+        // repasse nunca é gravada antes dela; repetida, é ignorada
+        aguardarDiario(registrarNoDiario(new RegistroEspera(livroId, usuarioId, prioritario, true)));
+        // Criar a lista e entrar nela é atômico com o descarte da lista vazia
+        boolean[] entrou = new boolean[1];
+        listasEspera.compute(livroId, (id, lista) -> {
+            ListaEspera atual = lista != null ? lista : new ListaEspera();
+            entrou[0] = atual.entrar(usuarioId, prioritario);
+            return atual;
+        });
+        if (!entrou[0]) {
+            return false;
+        }
+        registro.registrar("Entrou na lista de espera", usuarioId, livroId);
+        // Cobre a liberação que aconteceu entre a recusa e a entrada na fila
+        if (livro.podeSerReservado()) {
+            repassar(java.util.Collections.singleton(livro));
+        }
+        return true;
+    }
+    
+    public boolean sairDaListaEspera(long usuarioId, long livroId) {
+        ListaEspera lista = listasEspera.get(livroId);
+        if (lista == null || !lista.sair(usuarioId)) {
             return false;
         }
+        aguardarDiario(registrarNoDiario(new RegistroEspera(livroId, usuarioId, false, false)));
+        descartarListaSeVazia(livroId);
+        return true;
+    }
+    
+    // Listas vazias saem do mapa; entrar usa compute() na mesma chave
+    private void descartarListaSeVazia(long livroId) {
+        listasEspera.computeIfPresent(livroId, (id, lista) ->
+            lista.estaVazia() && !lista.repassando.get() ? null : lista);
+    }
+    
+    public int getTamanhoListaEspera(long livroId) {
+        ListaEspera lista = listasEspera.get(livroId);
+        return lista != null ? lista.tamanho() : 0;
+    }
+    
+    private boolean temEspera(long livroId) {
+        ListaEspera lista = listasEspera.get(livroId);
+        return lista != null && !lista.estaVazia();
+    }
+    
+    // Entrega os livros liberados aos próximos das filas: uma tentativa por
+    // aguardante. Um repasse por livro de cada vez (a flag da lista); quem
+    // encontra a flag ocupada deixa o trabalho para o dono, que repete o laço
+    // enquanto houver livro livre e fila
+    private void repassar(java.util.Set<Livro> liberados) {
+        for (Livro livro : liberados) {
+            ListaEspera lista = listasEspera.get(livro.getId());
+            if (lista == null) {
+                continue;
+            }
+            do {
+                if (!lista.repassando.compareAndSet(false, true)) {
+                    break;
+                }
+                try {
+                    ListaEspera.Entrada entrada;
+                    while (livro.podeSerReservado() && (entrada = lista.proximo()) != null) {
+                        String motivo = reservar(entrada.usuarioId, livro.getId(), true);
+                        if (MOTIVO_INDISPONIVEL.equals(motivo)) {
+                            // Perdeu a corrida para quem reservou com a fila já
+                            // vazia: volta ao início da própria fila
+                            lista.devolver(entrada);
+                            break;
+                        }
+                        if (motivo != null) {
+                            // Não pode receber o livro (limite, permissão...): sai
+                            // da fila e é avisado, em vez de sumir em silêncio
+                            registro.registrarRejeicao("Repasse da lista de espera recusado", entrada.usuarioId, livro.getId());
+                            Usuario usuario = repositorioUsuarios.obterPorChave(entrada.usuarioId);
+                            if (usuario != null) {
+                                notificacoes.enviar(usuario, "Você saiu da lista de espera de " + livro.getTitulo()
+                                                             + ": " + motivo);
+                            }
+                        }
+                        aguardarDiario(registrarNoDiario(
+                            new RegistroEspera(livro.getId(), entrada.usuarioId, entrada.prioritario, false)));
+                    }
+                } finally {
+                    lista.repassando.set(false);
+                }
+            } while (livro.podeSerReservado() && !lista.estaVazia());
+            descartarListaSeVazia(livro.getId());
+        }
+    }
+    
+    // Reserva um carrinho de livros para um usuário; um resultado por item, na ordem
+    public java.util.List<ResultadoReserva> realizarReservas(long usuarioId, long... livroIds) {
+        long[] usuarioIds = new long[livroIds.length];
+        java.util.Arrays.fill(usuarioIds, usuarioId);
+        return realizarLote(usuarioIds, livroIds);
+    }
+    
+    // Carrinhos de vários usuários num só ciclo; resultados na ordem de iteração do mapa
+    public java.util.List<ResultadoReserva> realizarReservas(java.util.Map<Long, long[]> livrosPorUsuario) {
+        int total = 0;
+        for (long[] livroIds : livrosPorUsuario.values()) {
+            total += livroIds.length;
+        }
+        long[] usuarioIds = new long[total];
+        long[] livroIds = new long[total];
+        int i = 0;
+        for (java.util.Map.Entry<Long, long[]> carrinho : livrosPorUsuario.entrySet()) {
+            for (long livroId : carrinho.getValue()) {
+                usuarioIds[i] = carrinho.getKey();
+                livroIds[i++] = livroId;
+            }
+        }
+        return realizarLote(usuarioIds, livroIds);
+    }
+    
+    // Item i = (usuarioIds[i], livroIds[i]). Busca e valida cada usuário uma
+    // vez, trava todas as listras envolvidas (usuários antes de livros, cada
+    // grupo em ordem de índice), aplica os itens válidos, anexa tudo ao diário
+    // numa só entrada e envia uma notificação agregada por usuário
+    private java.util.List<ResultadoReserva> realizarLote(long[] usuarioIds, long[] livroIds) {
+        int itens = livroIds.length;
+        ResultadoReserva[] resultados = new ResultadoReserva[itens];
+        java.util.Map<Long, Usuario> usuarios = new java.util.HashMap<>();
+        Livro[] livros = new Livro[itens];
+        for (int i = 0; i < itens; i++) {
+            Usuario usuario = usuarios.computeIfAbsent(usuarioIds[i], repositorioUsuarios::obterPorChave);
+            livros[i] = obterLivro(livroIds[i]);
+            if (usuario == null || livros[i] == null) {
+                resultados[i] = ResultadoReserva.falha(usuarioIds[i], livroIds[i], "Usuário ou livro não encontrado");
+            } else if (!usuario.temPermissoes(Permissoes.RESERVAR)) {
+                resultados[i] = ResultadoReserva.falha(usuarioIds[i], livroIds[i], "Usuário sem permissão para reservar");
+            }
+        }
         
-        // Realiza a reserva
-        livro.reservar(usuarioId);
-        Reserva reserva = new Reserva(usuarioId, livroId);
-        repositorioReservas.adicionar(reserva);
+        java.util.List<Reserva> criadas = new java.util.ArrayList<>();
+        long ticketDiario = 0;
+        java.util.List<java.util.concurrent.locks.ReentrantLock> travadasUsuarios = travasUsuarios.travarTodas(usuarioIds);
+        try {
+            java.util.List<java.util.concurrent.locks.ReentrantLock> travadasLivros = travasLivros.travarTodas(livroIds);
+            try {
+                // Limite de reservas lido uma vez por usuário, já sob as travas
+                java.util.Map<Long, int[]> vagas = new java.util.HashMap<>();
+                java.util.List<Persistivel> paraDiario = new java.util.ArrayList<>();
+                for (int i = 0; i < itens; i++) {
+                    if (resultados[i] != null) {
+                        continue;
+                    }
+                    Usuario usuario = usuarios.get(usuarioIds[i]);
+                    Livro livro = livros[i];
+                    int[] restantes = vagas.computeIfAbsent(usuarioIds[i], id -> new int[] {usuario.getVagasReserva()});
+                    if (restantes[0] == 0) {
+                        resultados[i] = ResultadoReserva.falha(usuarioIds[i], livroIds[i], "Usuário não pode fazer mais reservas");
+                        continue;
+                    }
+                    if (!livro.podeSerReservado()) {
+                        resultados[i] = ResultadoReserva.falha(usuarioIds[i], livroIds[i], MOTIVO_INDISPONIVEL);
+                        continue;
+                    }
+                    if (temEspera(livroIds[i])) {
+                        resultados[i] = ResultadoReserva.falha(usuarioIds[i], livroIds[i], MOTIVO_LISTA_ESPERA);
+                        continue;
+                    }
+                    
+                    boolean estavaDisponivel = livro.isDisponivel();
+                    Reserva nova = new ReservaAvulsa(usuarioIds[i], livroIds[i]);
+                    if (!retirarExemplar(livro, nova)) {
+                        resultados[i] = ResultadoReserva.falha(usuarioIds[i], livroIds[i], MOTIVO_INDISPONIVEL);
+                        continue;
+                    }
+                    if (estavaDisponivel != livro.isDisponivel()) {
+                        estatisticas.disponibilidadeAlterada(livro.isDisponivel());
+                    }
+                    if (usuario instanceof UsuarioComum) {
+                        ((UsuarioComum) usuario).incrementarReservas();
+                    }
+                    if (restantes[0] != Integer.MAX_VALUE) {
+                        restantes[0]--;
+                    }
+                    
+                    Reserva reserva = repositorioReservas.adicionar(nova);
+                    estatisticas.reservaAdicionada(reserva);
+                    indexarReserva(reserva);
+                    criadas.add(reserva);
+                    resultados[i] = ResultadoReserva.sucesso(reserva);
+                    java.util.Collections.addAll(paraDiario, reserva, livro, usuario);
+                }
+                if (!paraDiario.isEmpty()) {
+                    ticketDiario = registrarNoDiario(paraDiario.toArray(new Persistivel[0]));
+                }
+            } finally {
+                TravasListradas.destravarTodas(travadasLivros);
+            }
+        } finally {
+            TravasListradas.destravarTodas(travadasUsuarios);
+        }
         
-        // Incrementa contador para usuários comuns
-        if (usuario instanceof UsuarioComum) {
-            ((UsuarioComum) usuario).incrementarReservas();
+        for (Reserva reserva : criadas) {
+            expiracoes.agendar(reserva.getId(), reserva.getDiaExpiracao());
         }
+        aguardarDiario(ticketDiario);
         
-        // Notifica o usuário
-        usuario.receberNotificacao("Reserva realizada: " + livro.getTitulo());
+        // Uma notificação por usuário com todos os títulos reservados
+        java.util.Map<Long, java.util.List<String>> titulos = new java.util.LinkedHashMap<>();
+        for (int i = 0; i < itens; i++) {
+            if (resultados[i].isSucesso()) {
+                titulos.computeIfAbsent(usuarioIds[i], id -> new java.util.ArrayList<>()).add(livros[i].getTitulo());
+            } else {
+                registro.registrarRejeicao(resultados[i].getMotivo(), usuarioIds[i], livroIds[i]);
+            }
+        }
+        titulos.forEach((usuarioId, lista) -> {
+            notificacoes.enviar(usuarios.get(usuarioId), "Reservas realizadas: " + String.join(", ", lista));
+            registro.registrar("Reservas em lote realizadas", usuarioId, lista.size());
+        });
+        return java.util.Arrays.asList(resultados);
+    }
+    
+    // Reservas do usuário (ativas e encerradas), em ordem de realização
+    public java.util.List<Reserva> obterReservasDoUsuario(long usuarioId) {
+        return reservasNasLinhas(reservasPorUsuario.obter(usuarioId), -1, Integer.MAX_VALUE);
+    }
+    
+    // Reservas ativas do livro: quem está com o título agora
+    public java.util.List<Reserva> obterReservasAtivasDoLivro(long livroId) {
+        return reservasNasLinhas(reservasPorLivro.obter(livroId), Reserva.STATUS_ATIVA, Integer.MAX_VALUE);
+    }
+    
+    // Reservas ativas do usuário com vencimento anterior a 'hoje'
+    public java.util.List<Reserva> obterReservasVencidasDoUsuario(long usuarioId, java.time.LocalDate hoje) {
+        return reservasNasLinhas(reservasPorUsuario.obter(usuarioId), Reserva.STATUS_ATIVA, (int) hoje.toEpochDay());
+    }
+    
+    // Consulta composta sobre as reservas: usuário e livro usam as listas de
+    // adjacência (postagens são linhas do armazém), o resto lê as colunas
+    public ConsultaReservas consultarReservas() {
+        return new ConsultaReservas(new FonteConsulta<Reserva>() {
+            @Override public String getNome() { return "reservas"; }
+            @Override public long tamanho() { return repositorioReservas.tamanho(); }
+            
+            @Override
+            public long estimar(String campo, Object valor, long teto) {
+                ListasAdjacencia lista = listaPorCampo(campo);
+                return lista == null ? -1 : Math.min(lista.contar((Long) valor), teto);
+            }
+            
+            // As linhas entram na lista fora da trava do armazém: ordena
+            @Override
+            public long[] postagens(String campo, Object valor) {
+                return java.util.Arrays.stream(listaPorCampo(campo).obter((Long) valor)).asLongStream().sorted().toArray();
+            }
+            
+            // Sondagem O(1) direto na coluna
+            @Override
+            public boolean contem(String campo, Object valor, long linha) {
+                long id = "usuario".equals(campo) ? repositorioReservas.getUsuarioId((int) linha)
+                                                  : repositorioReservas.getLivroId((int) linha);
+                return id == (Long) valor;
+            }
+            
+            @Override public Reserva obter(long linha) { return repositorioReservas.obterPorLinha((int) linha); }
+            
+            @Override
+            public java.util.stream.Stream<Reserva> varrer() {
+                return java.util.stream.IntStream.range(0, repositorioReservas.tamanho())
+                                                 .mapToObj(repositorioReservas::obterPorLinha);
+            }
+        });
+    }
+    
+    private ListasAdjacencia listaPorCampo(String campo) {
+        return "usuario".equals(campo) ? reservasPorUsuario : "livro".equals(campo) ? reservasPorLivro : null;
+    }
+    
+    public void listarReservasDoUsuario(long usuarioId) {
+        System.out.println("\n📋 === RESERVAS DO USUÁRIO " + usuarioId + " ===");
+        obterReservasDoUsuario(usuarioId).forEach(System.out::println);
+    }
+    
+    // Chamado sob as travas da reserva, junto com a inclusão no armazém
+    private void indexarReserva(Reserva reserva) {
+        int linha = repositorioReservas.linhaDe(reserva.getId());
+        reservasPorUsuario.adicionar(reserva.getUsuarioId(), linha);
+        reservasPorLivro.adicionar(reserva.getLivroId(), linha);
+    }
+    
+    // Filtra as linhas pelo status (-1 = qualquer) e vencimento anterior ao dia
+    // limite, lendo só as colunas; visões apenas para as que passam
+    private java.util.List<Reserva> reservasNasLinhas(int[] linhas, int codigoStatus, int diaLimite) {
+        java.util.List<Reserva> resultado = new java.util.ArrayList<>();
+        for (int linha : linhas) {
+            if ((codigoStatus < 0 || repositorioReservas.getCodigoStatus(linha) == codigoStatus)
+                    && repositorioReservas.getDiaVencimento(linha) < diaLimite) {
+                resultado.add(repositorioReservas.obterPorLinha(linha));
+            }
+        }
+        return resultado;
+    }
+    
+    // Encerra uma reserva ativa, liberando o livro e o limite do usuário
+    public boolean finalizarReserva(long reservaId) {
+        Reserva reserva = repositorioReservas.obterPorChave(reservaId);
+        if (reserva == null) {
+            registro.registrarRejeicao("Reserva não encontrada", reservaId);
+            return false;
+        }
         
-        System.out.println("✅ Reserva realizada com sucesso!");
+        java.util.Set<Livro> liberados = new java.util.HashSet<>();
+        long ticketDiario = encerrarReserva(reserva, "finalizada", liberados);
+        if (ticketDiario < 0) {
+            registro.registrarRejeicao("Reserva já finalizada", reservaId);
+            return false;
+        }
+        expiracoes.cancelar(reservaId);
+        
+        aguardarDiario(ticketDiario);
+        repassar(liberados);
+        return true;
+    }
+    
+    // Expira em lote as reservas vencidas até hoje, sem varrer o repositório:
+    // a roda de expiração entrega só os ids que venceram
+    public int expirarReservasVencidas() {
+        return expirarReservasVencidas(java.time.LocalDate.now());
+    }
+    
+    public int expirarReservasVencidas(java.time.LocalDate hoje) {
+        java.util.List<Long> vencidas = expiracoes.avancarAte(hoje.toEpochDay());
+        java.util.Set<Livro> liberados = new java.util.HashSet<>();
+        long ultimoTicket = 0;
+        int expiradas = 0;
+        for (long reservaId : vencidas) {
+            Reserva reserva = repositorioReservas.obterPorChave(reservaId);
+            long ticket = reserva != null ? encerrarReserva(reserva, "expirada", liberados) : -1;
+            if (ticket >= 0) {
+                ultimoTicket = Math.max(ultimoTicket, ticket);
+                expiradas++;
+            }
+        }
+        // Um único fsync para o lote inteiro
+        aguardarDiario(ultimoTicket);
+        repassar(liberados);
+        if (expiradas > 0) {
+            registro.registrar("Reservas expiradas", expiradas);
+        }
+        int recolhidas = recolherLicencasVencidas();
+        if (recolhidas > 0) {
+            registro.registrar("Licenças vencidas recolhidas", recolhidas);
+        }
+        return expiradas;
+    }
+    
+    // Verifica os vencimentos a cada intervalo (o dia vira dentro dele)
+    // Chamadas repetidas não agendam de novo; uma falha numa execução é
+    // reportada sem cancelar as seguintes
+    public synchronized void iniciarExpiracaoPeriodica(long intervalo, java.util.concurrent.TimeUnit unidade) {
+        if (expiracaoAgendada) {
+            return;
+        }
+        expiracaoAgendada = true;
+        obterAgendador().scheduleWithFixedDelay(() -> {
+            try {
+                expirarReservasVencidas();
+            } catch (RuntimeException e) {
+                System.out.println("❌ Falha ao expirar reservas: " + e.getMessage());
+            }
+        }, 0, intervalo, unidade);
+    }
+    
+    // Sob a trava do livro, já validado com podeSerReservado(). Livros
+    // digitais emprestam uma licença com token, válida até o fim do dia de
+    // expiração da reserva (a expiração da reserva chega antes e a devolve).
+    // Falso se a licença não pôde ser emprestada: um arrendar() direto, fora
+    // da trava do livro, pode ter levado a última depois da verificação
+    private boolean retirarExemplar(Livro livro, Reserva reserva) {
+        if (livro instanceof LivroDigital) {
+            long venceEm = java.time.LocalDate.ofEpochDay(reserva.getDiaExpiracao() + 1)
+                .atStartOfDay(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return ((LivroDigital) livro).arrendarParaReserva(reserva.getId(), reserva.getUsuarioId(), venceEm);
+        }
+        livro.reservar(reserva.getUsuarioId());
         return true;
     }
     
+    // Livros digitais devolvem a licença da própria reserva (ver
+    // LivroDigital.devolverDaReserva)
+    private void devolverExemplar(Livro livro, long reservaId) {
+        if (livro instanceof LivroDigital) {
+            ((LivroDigital) livro).devolverDaReserva(reservaId);
+        } else {
+            livro.liberar();
+        }
+    }
+    
+    // Recolhe as licenças digitais com prazo vencido: empréstimos de arrendar()
+    // e de reservas cuja expiração não chegou a rodar. Só livros do
+    // repositório podem ter empréstimos (emprestar promove o livro)
+    private int recolherLicencasVencidas() {
+        long agora = RelogioGrosso.agoraMillis();
+        java.util.Set<Livro> liberados = new java.util.HashSet<>();
+        int recolhidas = 0;
+        for (Livro livro : (Iterable<Livro>) repositorioLivros.fluxoPorIndice("tipo", "LivroDigital")::iterator) {
+            LivroDigital digital = (LivroDigital) livro;
+            if (digital.getLicencasEmUso() == digital.getLicencas().getSemToken()) {
+                continue;
+            }
+            java.util.concurrent.locks.Lock travaLivro = travasLivros.obter(livro.getId());
+            travaLivro.lock();
+            try {
+                boolean estavaDisponivel = livro.isDisponivel();
+                int n = digital.recolherVencidas(agora);
+                recolhidas += n;
+                if (estavaDisponivel != livro.isDisponivel()) {
+                    estatisticas.disponibilidadeAlterada(livro.isDisponivel());
+                    liberados.add(livro);
+                } else if (n > 0 && temEspera(livro.getId())) {
+                    liberados.add(livro);
+                }
+            } finally {
+                travaLivro.unlock();
+            }
+        }
+        repassar(liberados);
+        return recolhidas;
+    }
+    
+    // Encerra uma reserva ativa com o novo status, sob as travas do usuário e
+    // do livro. Retorna o ticket do diário, ou -1 se ela já não estava ativa;
+    // livros que voltaram a ficar disponíveis, ou que devolveram uma unidade
+    // com fila de espera, são acrescentados a 'liberados'
+    private long encerrarReserva(Reserva reserva, String novoStatus, java.util.Set<Livro> liberados) {
+        Usuario usuario = repositorioUsuarios.obterPorChave(reserva.getUsuarioId());
+        Livro livro = obterLivro(reserva.getLivroId());
+        java.util.concurrent.locks.Lock travaUsuario = travasUsuarios.obter(reserva.getUsuarioId());
+        java.util.concurrent.locks.Lock travaLivro = travasLivros.obter(reserva.getLivroId());
+        travaUsuario.lock();
+        try {
+            travaLivro.lock();
+            try {
+                // Revalidado sob as travas: só uma chamada concorrente encerra
+                if (!"ativa".equals(reserva.getStatus())) {
+                    return -1;
+                }
+                if (livro != null) {
+                    boolean estavaDisponivel = livro.isDisponivel();
+                    devolverExemplar(livro, reserva.getId());
+                    if (estavaDisponivel != livro.isDisponivel()) {
+                        estatisticas.disponibilidadeAlterada(livro.isDisponivel());
+                        liberados.add(livro);
+                    } else if (temEspera(livro.getId())) {
+                        liberados.add(livro);
+                    }
+                }
+                reserva.setStatus(novoStatus);
+                estatisticas.statusReservaAlterado("ativa", novoStatus);
+                
+                if (usuario instanceof UsuarioComum) {
+                    ((UsuarioComum) usuario).decrementarReservas();
+                }
+                return livro != null && usuario != null
+                    ? registrarNoDiario(reserva, livro, usuario)
+                    : registrarNoDiario(reserva);
+            } finally {
+                travaLivro.unlock();
+            }
+        } finally {
+            travaUsuario.unlock();
+        }
+    }
+    
+    // Consultas pelos índices secundários
+    public java.util.List<Livro> buscarLivrosPorCategoria(String categoria) {
+        return comCatalogoMapeado(repositorioLivros.buscarPorIndice("categoria", categoria),
+            catalogoMapeado != null ? catalogoMapeado.registrosPorCategoria(categoria) : null,
+            indice -> true, Integer.MAX_VALUE);
+    }
+    
+    public java.util.List<Livro> buscarLivrosPorAutor(String autor) {
+        return comCatalogoMapeado(repositorioLivros.buscarPorIndice("autor", autor),
+            catalogoMapeado != null ? catalogoMapeado.registrosPorAutor(autor) : null,
+            indice -> true, Integer.MAX_VALUE);
+    }
+    
+    // Variantes paginadas por cursor (id do último item da página anterior;
+    // null para a primeira). Resultados em ordem de id; só a página é montada
+    public Pagina<Long, Livro> buscarLivro(String titulo, String autor, Long depoisDe, int limite) {
+        long cursor = depoisDe != null ? depoisDe : Long.MIN_VALUE;
+        return paginaComCatalogoMapeado(motorBusca.buscarPagina(titulo, autor, cursor, Pagina.exigirLimite(limite) + 1), depoisDe,
+            catalogoMapeado != null ? catalogoMapeado.registrosCorrespondentes(titulo, autor) : null,
+            limite);
+    }
+    
+    public Pagina<Long, Livro> buscarLivrosPorCategoria(String categoria, Long depoisDe, int limite) {
+        return paginaComCatalogoMapeado(
+            repositorioLivros.paginaPorIndice("categoria", categoria, depoisDe, Pagina.exigirLimite(limite) + 1).getItens(), depoisDe,
+            catalogoMapeado != null ? catalogoMapeado.registrosPorCategoria(categoria) : null,
+            limite);
+    }
+    
+    public Pagina<Long, Livro> buscarLivrosPorAutor(String autor, Long depoisDe, int limite) {
+        return paginaComCatalogoMapeado(
+            repositorioLivros.paginaPorIndice("autor", autor, depoisDe, Pagina.exigirLimite(limite) + 1).getItens(), depoisDe,
+            catalogoMapeado != null ? catalogoMapeado.registrosPorAutor(autor) : null,
+            limite);
+    }
+    
+    // Junta, em ordem de id e sem repetir, até limite + 1 livros do
+    // repositório (já ordenados) com os registros do catálogo mapeado (lista
+    // crescente do índice; null = todos) após o cursor
+    private Pagina<Long, Livro> paginaComCatalogoMapeado(java.util.List<Livro> doRepositorio, Long depoisDe,
+                                                         int[] registros, int limite) {
+        if (catalogoMapeado == null) {
+            return Pagina.de(doRepositorio, limite, Livro::getId);
+        }
+        int inicio = depoisDe != null ? catalogoMapeado.primeiroApos(depoisDe) : 0;
+        java.util.List<Livro> doCatalogo = catalogoMapeado.filtrar(registros, inicio, indice -> true, limite + 1);
+        java.util.List<Livro> unidos = new java.util.ArrayList<>(limite + 1);
+        int i = 0;
+        int j = 0;
+        while (unidos.size() <= limite && (i < doRepositorio.size() || j < doCatalogo.size())) {
+            Livro proximo;
+            if (j == doCatalogo.size()
+                    || (i < doRepositorio.size() && doRepositorio.get(i).getId() <= doCatalogo.get(j).getId())) {
+                proximo = doRepositorio.get(i++);
+                // Livro promovido ao repositório: a cópia do catálogo é a mesma
+                if (j < doCatalogo.size() && doCatalogo.get(j).getId() == proximo.getId()) {
+                    j++;
+                }
+            } else {
+                proximo = doCatalogo.get(j++);
+            }
+            unidos.add(proximo);
+        }
+        return Pagina.de(unidos, limite, Livro::getId);
+    }
+    
+    // Consulta composta sobre o acervo, planejada sobre os índices do
+    // repositório; o catálogo mapeado é varrido com os filtros aplicados
+    // direto nos registros
+    public ConsultaAcervo consultarLivros() {
+        return new ConsultaAcervo(new FonteConsulta<Livro>() {
+            @Override public String getNome() { return "livros"; }
+            @Override public long tamanho() { return repositorioLivros.tamanho(); }
+            
+            @Override
+            public long estimar(String campo, Object valor, long teto) {
+                return valor != null && repositorioLivros.temIndice(campo)
+                    ? repositorioLivros.contarPorIndice(campo, valor, teto) : -1;
+            }
+            
+            @Override
+            public long[] postagens(String campo, Object valor) {
+                return repositorioLivros.chavesPorIndice(campo, valor).mapToLong(Long::longValue).toArray();
+            }
+            
+            @Override
+            public boolean contem(String campo, Object valor, long chave) {
+                return repositorioLivros.contemNoIndice(campo, valor, chave);
+            }
+            
+            @Override public Livro obter(long chave) { return repositorioLivros.obterPorChave(chave); }
+            @Override public java.util.stream.Stream<Livro> varrer() { return repositorioLivros.fluxo(); }
+            
+            @Override
+            public java.util.stream.Stream<Livro> foraDosIndices(java.util.List<Condicao<Livro>> condicoes, int limite) {
+                if (catalogoMapeado == null) {
+                    return java.util.stream.Stream.empty();
+                }
+                // Parte da menor postagem do índice do catálogo (categoria ou
+                // autor), se houver; os registros são lidos sem entrar no cache
+                int[] registros = null;
+                for (Condicao<Livro> condicao : condicoes) {
+                    int[] postagem = postagemNoCatalogo(condicao);
+                    if (postagem != null && (registros == null || postagem.length < registros.length)) {
+                        registros = postagem;
+                    }
+                }
+                java.util.function.IntPredicate filtro = indice -> !repositorioLivros.contemChave(catalogoMapeado.getId(indice));
+                for (Condicao<Livro> condicao : condicoes) {
+                    filtro = filtro.and(filtroNoCatalogo(condicao));
+                }
+                return catalogoMapeado.registrosApos(registros, 0).filter(filtro).limit(limite)
+                                      .mapToObj(catalogoMapeado::ler);
+            }
+            
+            @Override
+            public String descreverForaDosIndices() {
+                return catalogoMapeado == null ? null
+                    : "catálogo mapeado (" + catalogoMapeado.tamanho()
+                      + " registros; postagem de categoria/autor se houver, filtros nos registros)";
+            }
+        });
+    }
+    
+    // Condição avaliada no registro mapeado; campos sem leitura direta
+    // leem o livro (sem guardá-lo no cache do catálogo)
+    private java.util.function.IntPredicate filtroNoCatalogo(Condicao<Livro> condicao) {
+        Object valor = condicao.valor;
+        switch (String.valueOf(condicao.campo)) {
+            case "categoria": return indice -> java.util.Objects.equals(valor, catalogoMapeado.getCategoria(indice));
+            case "autor": return indice -> java.util.Objects.equals(valor, catalogoMapeado.getAutor(indice));
+            case "tipo": return indice -> java.util.Objects.equals(valor, catalogoMapeado.getTipoMidia(indice));
+            case "isbn": return indice -> java.util.Objects.equals(valor, catalogoMapeado.getIsbn(indice));
+            case "disponivel": return indice -> java.util.Objects.equals(valor, catalogoMapeado.isDisponivel(indice));
+            default: return indice -> condicao.teste.test(catalogoMapeado.ler(indice));
+        }
+    }
+    
+    // Lista de postagem do índice do catálogo mapeado para a condição; null
+    // se o campo não tem índice lá
+    private int[] postagemNoCatalogo(Condicao<Livro> condicao) {
+        if ("categoria".equals(condicao.campo) && (condicao.valor == null || condicao.valor instanceof String)) {
+            return catalogoMapeado.registrosPorCategoria((String) condicao.valor);
+        }
+        if ("autor".equals(condicao.campo) && (condicao.valor == null || condicao.valor instanceof String)) {
+            return catalogoMapeado.registrosPorAutor((String) condicao.valor);
+        }
+        return null;
+    }
+    
+    public Usuario buscarUsuarioPorEmail(String email) {
+        java.util.List<Usuario> usuarios = repositorioUsuarios.buscarPorIndice("email", email);
+        return usuarios.isEmpty() ? null : usuarios.get(0);
+    }
+    
+    // Login assíncrono: completa com o token da sessão ou null
+    public java.util.concurrent.CompletableFuture<String> entrar(String email, String senha) {
+        return autenticacao.entrar(buscarUsuarioPorEmail(email), senha);
+    }
+    
+    public void sair(String token) {
+        autenticacao.encerrarSessao(token);
+    }
+    
+    // Reserva em nome da sessão, sem repetir a verificação de senha
+    public boolean realizarReserva(String token, long livroId) {
+        Usuario usuario = autenticacao.validarSessao(token);
+        if (usuario == null) {
+            registro.registrarRejeicao("Sessão inválida ou expirada", livroId);
+            return false;
+        }
+        return realizarReserva(usuario.getId(), livroId);
+    }
+    
     public void listarUsuarios() {
         System.out.println("\n👥 === USUÁRIOS DO SISTEMA ===");
         repositorioUsuarios.obterTodos().forEach(System.out::println);
@@ -1089,7 +7715,7 @@ class SistemaBiblioteca {
     
     public void listarLivros() {
         System.out.println("\n📚 === CATÁLOGO DE LIVROS ===");
-        repositorioLivros.obterTodos().forEach(livro -> {
+        fluxoDeLivros().forEach(livro -> {
             System.out.println(livro);
             if (!livro.isDisponivel()) {
                 System.out.println("   📍 " + livro.getDetalhesReserva());
@@ -1102,8 +7728,74 @@ class SistemaBiblioteca {
         repositorioReservas.obterTodos().forEach(System.out::println);
     }
     
+    // Listagens paginadas: imprimem uma página e devolvem o cursor da seguinte
+    public Pagina<Long, Usuario> listarUsuarios(Long depoisDe, int limite) {
+        System.out.println("\n👥 === USUÁRIOS DO SISTEMA ===");
+        return imprimirPagina(repositorioUsuarios.pagina(depoisDe, limite));
+    }
+    
+    public Pagina<Long, Livro> listarLivros(Long depoisDe, int limite) {
+        System.out.println("\n📚 === CATÁLOGO DE LIVROS ===");
+        return imprimirPagina(paginaComCatalogoMapeado(
+            repositorioLivros.pagina(depoisDe, Pagina.exigirLimite(limite) + 1).getItens(), depoisDe, null, limite));
+    }
+    
+    public Pagina<Long, Reserva> listarReservas(Long depoisDe, int limite) {
+        System.out.println("\n📋 === RESERVAS ===");
+        return imprimirPagina(repositorioReservas.pagina(depoisDe, limite));
+    }
+    
+    private static <T> Pagina<Long, T> imprimirPagina(Pagina<Long, T> pagina) {
+        pagina.getItens().forEach(System.out::println);
+        if (pagina.temProxima()) {
+            System.out.println("➡️ Próxima página após o id " + pagina.getProximo());
+        }
+        return pagina;
+    }
+    
+    // Exporta usuários, livros, reservas e filas de espera em JSON Lines, em
+    // fluxo: um único escritor e um buffer de saída, sem Strings por registro
+    public long exportarJson(java.nio.file.Path destino) throws java.io.IOException {
+        try (java.io.Writer saida = new java.io.BufferedWriter(
+                new java.io.OutputStreamWriter(java.nio.file.Files.newOutputStream(destino),
+                                               java.nio.charset.StandardCharsets.UTF_8),
+                1 << 16)) {
+            EscritorJson json = new EscritorJson(saida);
+            long total = json.escreverTodos(repositorioUsuarios.obterTodos());
+            total += json.escreverTodos((Iterable<Livro>) fluxoDeLivros()::iterator);
+            total += json.escreverTodos(repositorioReservas.obterTodos());
+            total += json.escreverTodos(registrosDeEspera());
+            return total;
+        } catch (java.io.UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    // Filas de espera na ordem de atendimento, como registros de entrada
+    private java.util.List<RegistroEspera> registrosDeEspera() {
+        java.util.List<RegistroEspera> registros = new java.util.ArrayList<>();
+        listasEspera.forEach((livroId, lista) -> {
+            for (ListaEspera.Entrada entrada : lista.emOrdem()) {
+                registros.add(new RegistroEspera(livroId, entrada.usuarioId, entrada.prioritario, true));
+            }
+        });
+        return registros;
+    }
+    
     public void gerarRelatorioUso() {
-        RelatorioUso relatorio = new RelatorioUso(repositorioReservas.obterTodos());
+        RelatorioUso relatorio = new RelatorioUso(getEstatisticas());
+        System.out.println("\n" + relatorio.gerar());
+    }
+    
+    public void gerarRelatorioInventario() {
+        RelatorioInventario relatorio = new RelatorioInventario(getEstatisticas());
+        System.out.println("\n" + relatorio.gerar());
+    }
+    
+    // Métricas por categoria, autor, tipo de usuário e licenças, em paralelo
+    public void gerarRelatorioAnalitico() {
+        RelatorioAnalitico relatorio = new RelatorioAnalitico(repositorioReservas, this::fluxoDeLivrosDigitais,
+            this::consultarLivro, repositorioUsuarios::obterPorChave);
         System.out.println("\n" + relatorio.gerar());
     }
     
@@ -1122,9 +7814,9 @@ class SistemaBiblioteca {
         for (Usuario usuario : usuarios) {
             boolean autenticado = false;
             if (usuario instanceof UsuarioComum) {
-                autenticado = usuario.autenticar("123456");
+                autenticado = autenticacao.verificar(usuario, "123456");
             } else if (usuario instanceof Administrador) {
-                autenticado = usuario.autenticar("admin123");
+                autenticado = autenticacao.verificar(usuario, "admin123");
             }
             
             System.out.println(usuario.getNome() + ": " + 
@@ -1155,5 +7847,5 @@ class SistemaBiblioteca {
     
     // Método final que não pode ser sobrescrito
     public final void logOperacao(String operacao) {
-        System.out.println("🔍 LOG: " + java.time.LocalDateTime.now() + " - " + operacao);
+        registro.registrar(operacao);
     }
\ No newline at end of file